@@ -0,0 +1,178 @@
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps an overloaded server answering instead of piling up threads and
+ * memory. Three limits, each turning work away with a cheap "busy"
+ * Response that tells the client when to retry:
+ *
+ *   maxConnections  connections open at once; the rest get one busy reply and are closed
+ *   maxQueued       requests admitted server-wide and not yet answered
+ *   rate / burst    mutating requests per second per client address (a token bucket)
+ *
+ * Server and NioServer call connect for each accepted socket and admit for
+ * each request; ClientHandler and NioServer.Connection send the busy reply.
+ */
+public class AdmissionControl {
+    static final int MAX_CONNECTIONS = Integer.getInteger("reservation.maxConnections", 1024);
+    static final int MAX_QUEUED = Integer.getInteger("reservation.maxQueued", 512);
+    static final double RATE = Double.parseDouble(System.getProperty("reservation.rateLimit", "100")); // 0 = unlimited
+    static final int BURST = Integer.getInteger("reservation.rateBurst", 200);
+    static final long BUSY_RETRY_MS = Long.getLong("reservation.busyRetryMs", 250);
+
+    // actions that change state and so count against the rate limit
+    private static final Set<String> MUTATING = Set.of("createAccount", "makeReservation", "makeReservationsBatch",
+            "reserveBestAvailable", "holdSeats", "confirmHold", "releaseHold", "cancelReservation", "cancelAll",
+            "setHours", "setSeating", "setSeatPrice");
+
+    private final int maxConnections;
+    private final int maxQueued;
+    private final double rate;
+    private final int burst;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Map<InetAddress, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private final LongAdder refusedConnections = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder overloaded = new LongAdder();
+
+    public AdmissionControl() {
+        this(MAX_CONNECTIONS, MAX_QUEUED, RATE, BURST);
+    }
+
+    public AdmissionControl(int maxConnections, int maxQueued, double ratePerSecond, int burst) {
+        this.maxConnections = maxConnections;
+        this.maxQueued = maxQueued;
+        this.rate = ratePerSecond;
+        this.burst = Math.max(1, burst);
+    }
+
+    /** A Client for a newly accepted connection from address, or null if the server is full. */
+    public Client connect(InetAddress address) {
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            refusedConnections.increment();
+            return null;
+        }
+        Bucket b = buckets.compute(address, (a, cur) -> {
+            Bucket next = cur != null ? cur : new Bucket();
+            next.connections++;
+            return next;
+        });
+        return new Client(address, b);
+    }
+
+    // Bounds the worker queues in front of admitted requests.
+    public int getMaxConnections() { return maxConnections; }
+    public int getMaxQueued() { return maxQueued; }
+
+    public int getConnections() { return connections.get(); }
+    public int getQueued() { return queued.get(); }
+    public long getRefusedConnections() { return refusedConnections.sum(); }
+    public long getRateLimited() { return rateLimited.sum(); }
+    public long getOverloaded() { return overloaded.sum(); }
+
+    @Override
+    public String toString() {
+        return "connections=" + getConnections() + " queued=" + getQueued() + " refused=" + getRefusedConnections()
+                + " rateLimited=" + getRateLimited() + " overloaded=" + getOverloaded();
+    }
+
+    static Response busy(String message, long retryAfterMillis) {
+        Response res = new Response(false, message, null);
+        res.setRetryAfterMillis(Math.max(1, retryAfterMillis));
+        return res;
+    }
+
+    // The answer to a connection there's no room for.
+    static Response refused() {
+        return busy("Server busy", BUSY_RETRY_MS);
+    }
+
+    /** One admitted connection. Close it when the connection ends. */
+    public class Client implements Closeable {
+        private final InetAddress address;
+        private final Bucket bucket;
+        private boolean closed;
+
+        private Client(InetAddress address, Bucket bucket) {
+            this.address = address;
+            this.bucket = bucket;
+        }
+
+        /**
+         * null if req may run, in which case call done() once it is answered;
+         * otherwise the busy Response to send instead, with req's id.
+         */
+        public Response admit(Request req) {
+            if (rate > 0 && MUTATING.contains(req.getAction())) {
+                long wait = bucket.take(rate, burst);
+                if (wait > 0) {
+                    rateLimited.increment();
+                    return withId(busy("Too many requests", TimeUnit.NANOSECONDS.toMillis(wait) + 1), req);
+                }
+            }
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                overloaded.increment();
+                return withId(busy("Server busy", BUSY_RETRY_MS), req);
+            }
+            return null;
+        }
+
+        public void done() {
+            queued.decrementAndGet();
+        }
+
+        // The busy answer for a request turned away because no worker could take it.
+        public Response overloaded(Request req) {
+            overloaded.increment();
+            return withId(busy("Server busy", BUSY_RETRY_MS), req);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) return;
+            closed = true;
+            connections.decrementAndGet();
+            // the address's bucket lives as long as any of its connections, so reconnecting doesn't refill it
+            buckets.computeIfPresent(address, (a, b) -> --b.connections == 0 ? null : b);
+        }
+
+        private Response withId(Response res, Request req) {
+            res.setId(req.getId());
+            return res;
+        }
+    }
+
+    /**
+     * Token bucket kept as one timestamp (GCRA): the time at which the
+     * bucket would be full again. A request takes a token if that time is
+     * less than burst tokens ahead of now; a single CAS, no refill thread.
+     */
+    private static final class Bucket {
+        private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+        int connections; // guarded by the map's compute
+
+        // 0 if a token was taken, else nanos until one is available
+        long take(double rate, int burst) {
+            long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            long tolerance = interval * burst;
+            while (true) {
+                long now = System.nanoTime();
+                long full = fullAt.get();
+                long next = Math.max(full, now) + interval;
+                if (next - now > tolerance) return next - now - tolerance;
+                if (fullAt.compareAndSet(full, next)) return 0;
+            }
+        }
+    }
+}
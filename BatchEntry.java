@@ -0,0 +1,32 @@
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/** One (date, time, seats) part of a makeReservationsBatch request. */
+public class BatchEntry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private LocalDate date;
+    private LocalTime time;
+    private List<Integer> seats;
+
+    public BatchEntry(LocalDate date, LocalTime time, List<Integer> seats) {
+        this.date = date;
+        this.time = time;
+        this.seats = new ArrayList<>(seats);
+    }
+
+    public LocalDate getDate() {
+        return date;
+    }
+
+    public LocalTime getTime() {
+        return time;
+    }
+
+    public List<Integer> getSeats() {
+        return seats;
+    }
+}
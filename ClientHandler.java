@@ -1,40 +1,391 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.time.LocalDate;
 import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class ClientHandler implements Runnable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_IN_FLIGHT = 64; // pipelined requests per connection before we stop reading
+    private static final int PIPELINE_THREADS = Integer.getInteger("reservation.pipeline.threads",
+            Runtime.getRuntime().availableProcessors() * 2);
+    // runs requests that carry an id, so one connection can have many in flight; the rest wait in
+    // the queue, which MAX_IN_FLIGHT per connection and admission control's maxQueued keep bounded
+    private static final ThreadPoolExecutor PIPELINE = new ThreadPoolExecutor(PIPELINE_THREADS, PIPELINE_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "pipelined-request");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        PIPELINE.allowCoreThreadTimeOut(true);
+    }
+    // A refused socket is closed this long after its answer, so the answer lands before the close;
+    // past MAX_LINGERING refused sockets waiting for that, the next ones are closed right away.
+    private static final long REFUSAL_LINGER_MILLIS = 1000;
+    private static final int MAX_LINGERING = 1024;
+    private static final AtomicInteger LINGERING = new AtomicInteger();
+    private static final ScheduledExecutorService REFUSALS = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "connection-refusals");
+        t.setDaemon(true);
+        return t;
+    });
+    // What a refused connection gets, whatever protocol it speaks: the object stream header and one
+    // busy Response. Binary clients tell it from a frame by its first byte (see WireProtocol).
+    static final byte[] REFUSAL = encodeRefusal();
+    // every incoming request goes here when -Dreservation.trace is set (see TraceRecorder)
+    private static final TraceRecorder TRACE = TraceRecorder.fromProperties();
+    private static final AtomicInteger CONNECTIONS = new AtomicInteger();
+
     private Socket socket;
-    private ReservationHandler handler;
+    private final ReservationHandler handler; // null when an engine routes the requests
+    private final ShardedEngine engine; // null: every request runs on handler
+    private final Metrics metrics;
     private ObjectInputStream in;
     private ObjectOutputStream out;
+    private OutputStream rawOut; // under out, for pre-encoded answers
+    private WritableByteChannel outCh; // binary protocol only
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final List<SlotEvents.Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    // subscribeSlot's held subscription, started once its answer is written
+    private final Map<Request, SlotEvents.Subscription> unanswered = new ConcurrentHashMap<>();
+    private Consumer<Response> pushTarget = this::push; // where subscribed slots' events go
+    private final AdmissionControl.Client client; // null: every request runs
+    private final int connection = CONNECTIONS.incrementAndGet(); // numbers this connection in the trace
 
     public ClientHandler(Socket socket, ReservationHandler handler) {
+        this(socket, handler, null);
+    }
+
+    public ClientHandler(Socket socket, ReservationHandler handler, AdmissionControl.Client client) {
+        this(socket, handler, null, client);
+    }
+
+    // Requests go to the shard that owns them; see ShardedEngine.
+    public ClientHandler(Socket socket, ShardedEngine engine, AdmissionControl.Client client) {
+        this(socket, null, engine, client);
+    }
+
+    private ClientHandler(Socket socket, ReservationHandler handler, ShardedEngine engine, AdmissionControl.Client client) {
         this.socket = socket;
         this.handler = handler;
+        this.engine = engine;
+        this.metrics = engine != null ? engine.getMetrics() : handler.getMetrics();
+        this.client = client;
     }
 
     @Override
     public void run() {
         try {
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
+            socket.setTcpNoDelay(true);
+            // buffered so a response goes out in one write; flush() sends it. The stream header goes
+            // out before we know the protocol: object stream clients may wait for it, binary ones skip it.
+            rawOut = new BufferedOutputStream(socket.getOutputStream());
+            out = new ObjectOutputStream(rawOut);
+            out.flush();
+            InputStream raw = socket.getInputStream();
+            byte[] first = sniff(raw);
+            if (!WireProtocol.isObjectStream(first[0], first[1])) {
+                runBinary(first, raw);
+                return;
+            }
+            in = new ObjectInputStream(new SequenceInputStream(new ByteArrayInputStream(first), raw));
 
             while (true) {
                 Object obj = in.readObject();
                 if (!(obj instanceof Request req)) continue;
+                serve(req);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Client disconnected: " + e.getMessage());
+        } finally {
+            closeSubscriptions();
+            if (client != null) client.close();
+        }
+    }
+
+    /**
+     * Answers a connection the server has no room for with REFUSAL and
+     * closes it, without waiting for the client: the answer fits an empty
+     * send buffer, and the close comes REFUSAL_LINGER_MILLIS later from a
+     * timer, since closing with unread input would reset the connection
+     * before the answer lands.
+     */
+    static void refuse(Socket socket) {
+        try {
+            socket.getOutputStream().write(REFUSAL);
+            socket.shutdownOutput();
+        } catch (IOException ignored) {
+            // gone already
+        }
+        lingerThenClose(socket);
+    }
+
+    // Closes a refused connection once its answer has had time to land.
+    static void lingerThenClose(Closeable socket) {
+        if (LINGERING.incrementAndGet() > MAX_LINGERING) {
+            LINGERING.decrementAndGet();
+            closeQuietly(socket);
+            return;
+        }
+        REFUSALS.schedule(() -> {
+            LINGERING.decrementAndGet();
+            closeQuietly(socket);
+        }, REFUSAL_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static byte[] encodeRefusal() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream o = new ObjectOutputStream(bytes)) {
+            o.writeObject(AdmissionControl.refused());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // can't happen, bytes is in memory
+        }
+        return bytes.toByteArray();
+    }
+
+    // Reads the client's first two bytes to pick a protocol.
+    private static byte[] sniff(InputStream raw) throws IOException {
+        byte[] first = new byte[2];
+        int n = 0;
+        while (n < 2) {
+            int r = raw.read(first, n, 2 - n);
+            if (r < 0) throw new EOFException();
+            n += r;
+        }
+        return first;
+    }
 
-                Response res = handleRequest(req);
+    // Binary protocol (see WireProtocol): frames are decoded from and encoded into direct buffers.
+    private void runBinary(byte[] first, InputStream raw) throws IOException {
+        ReadableByteChannel inCh = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(raw);
+        outCh = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+        ByteBuffer inBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        inBuf.put(first);
+        while (inBuf.position() < 4) {
+            if (inCh.read(inBuf) < 0) throw new EOFException();
+        }
+        inBuf.flip();
+        if (inBuf.getInt() != WireProtocol.MAGIC) throw new IOException("Unknown protocol");
+
+        while (true) {
+            Request req;
+            try {
+                inBuf = WireProtocol.readFrame(inCh, inBuf);
+                req = WireProtocol.decodeRequest(inBuf);
+            } catch (RuntimeException bad) {
+                throw new IOException("Malformed frame: " + bad.getMessage());
+            }
+            serve(req);
+        }
+    }
+
+    // Requests without an id run right here, in order. The rest run on the pipeline pool and may
+    // be answered out of order; once MAX_IN_FLIGHT are outstanding we stop reading until one finishes.
+    // A request admission control turns away is answered "busy" right here, in its place in line.
+    private void serve(Request req) throws IOException {
+        trace(req);
+        Response busy = client == null ? null : client.admit(req);
+        if (busy != null) {
+            reply(req, busy);
+            return;
+        }
+        if (req.getId() == 0) {
+            try {
+                respond(req);
+            } finally {
+                done();
+            }
+            return;
+        }
+        inFlight.acquireUninterruptibly();
+        long queued = System.nanoTime();
+        PIPELINE.execute(() -> {
+            metrics.getQueueWait().recordSince(queued);
+            try {
+                respond(req);
+            } catch (IOException e) {
+                try {
+                    socket.close(); // ends the read loop too
+                } catch (IOException ignored) {
+                }
+            } finally {
+                done();
+                inFlight.release();
+            }
+        });
+    }
+
+    private void done() {
+        if (client != null) client.done();
+    }
+
+    /** Records req in the trace, if one is being recorded. */
+    void trace(Request req) {
+        if (TRACE != null) TRACE.record(connection, req);
+    }
+
+    static TraceRecorder getTrace() {
+        return TRACE;
+    }
+
+    private void respond(Request req) throws IOException {
+        long start = System.nanoTime();
+        byte[] cached = cachedAnswer(req, outCh != null ? ResponseCache.BINARY : ResponseCache.OBJECT_STREAM);
+        if (cached == null) {
+            Response res = handleRequest(req);
+            try {
+                reply(req, res);
+            } finally {
+                answered(req);
+            }
+            metrics.recordRequest(req.getAction(), start, res.isSuccess());
+            return;
+        }
+        ByteBuffer frame = outCh == null ? null : WireProtocol.encodeResponse(WireProtocol.GET_RESERVATIONS, req.getId(), cached);
+        writeLock.lock();
+        try {
+            if (frame != null) {
+                while (frame.hasRemaining()) outCh.write(frame);
+            } else {
+                out.flush(); // nothing may sit in the object stream's own buffer ahead of the raw bytes
+                rawOut.write(cached);
+                out.reset();
+                out.flush();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        metrics.recordRequest(req.getAction(), start, true);
+    }
+
+    private void reply(Request req, Response res) throws IOException {
+        write(WireProtocol.opcode(req.getAction()), res);
+    }
+
+    // Runs on a SlotEvents delivery thread; a client that can't be written to is dropped.
+    private void push(Response event) {
+        try {
+            write(WireProtocol.SEAT_EVENT, event);
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void write(byte opcode, Response res) throws IOException {
+        ByteBuffer frame = outCh == null ? null : WireProtocol.encodeResponse(opcode, res);
+        writeLock.lock();
+        try {
+            if (frame != null) {
+                while (frame.hasRemaining()) outCh.write(frame);
+            } else {
                 out.writeObject(res);
+                out.reset(); // otherwise a re-sent object (e.g. a slot's reservation list) arrives as a stale back-reference
                 out.flush();
             }
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Client disconnected: " + e.getMessage());
+        } finally {
+            writeLock.unlock();
         }
     }
 
-    private Response handleRequest(Request req) {
+    // NioServer writes pushed events through its own connection instead.
+    void pushTo(Consumer<Response> target) {
+        pushTarget = target;
+    }
+
+    // Called once req's answer has been written: a subscription it made may now push events.
+    void answered(Request req) {
+        if (unanswered.isEmpty()) return;
+        SlotEvents.Subscription sub = unanswered.remove(req);
+        if (sub != null) sub.start();
+    }
+
+    void closeSubscriptions() {
+        for (SlotEvents.Subscription s : subscriptions) s.close();
+        subscriptions.clear();
+        unanswered.clear();
+    }
+
+    /**
+     * A getReservations answer already encoded for format, from the
+     * response cache; null for any other request, which goes through
+     * handleRequest. Object stream answers are the bytes writeObject writes
+     * right after a reset(), which is how every answer is sent; they hold
+     * the response id, so only requests without one are served this way.
+     * With an engine the owning shard's cache is read right here, without
+     * a trip through the shard's queue.
+     */
+    byte[] cachedAnswer(Request req, int format) {
+        if (!"getReservations".equals(req.getAction()) || !(req.getPayload() instanceof Object[] data)) return null;
+        if (format == ResponseCache.OBJECT_STREAM && req.getId() != 0) return null;
+        if (data.length < 2 || !(data[0] instanceof LocalDate date) || !(data[1] instanceof LocalTime time)) return null;
+        ReservationHandler owner = engine != null ? engine.handlerFor(date, time) : handler;
+        return owner.getEncodedReservations(format, date, time, list -> {
+            Response res = new Response(true, "Success", list);
+            return format == ResponseCache.BINARY ? WireProtocol.encodeResponseBody(WireProtocol.GET_RESERVATIONS, res) : serialized(res);
+        });
+    }
+
+    // What writeObject(res) writes on a stream with nothing written since its header or last reset().
+    private static byte[] serialized(Response res) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (ObjectOutputStream o = new ObjectOutputStream(bytes)) {
+            o.writeObject(res);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] all = bytes.toByteArray();
+        return Arrays.copyOfRange(all, 4, all.length); // drop the stream header
+    }
+
+    // Seats as binary requests decode them (an int[]) or as object stream clients send them (a List<Integer>).
+    private static int[] seatsOf(Object seats) {
+        if (seats instanceof int[] array) return array;
+        List<?> list = (List<?>) seats;
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) array[i] = (Integer) list.get(i);
+        return array;
+    }
+
+    // Also used by NioServer, which owns the socket I/O itself.
+    Response handleRequest(Request req) {
+        Response res = engine != null ? engine.execute(req, this::execute) : execute(handler, req);
+        res.setId(req.getId());
+        return res;
+    }
+
+    // handler is the one that owns req: this connection's, or the shard's the engine picked
+    private Response execute(ReservationHandler handler, Request req) {
         try {
             String action = req.getAction();
             Object payload = req.getPayload();
@@ -55,12 +406,62 @@ public class ClientHandler implements Runnable {
                     String username = (String) data[0];
                     LocalDate date = (LocalDate) data[1];
                     LocalTime time = (LocalTime) data[2];
-                    List<Integer> seats = (List<Integer>) data[3];
+                    int[] seats = seatsOf(data[3]);
 
                     boolean ok = handler.makeReservation(username, date, time, seats);
-                    double total = handler.calculateTotalPrice(seats);
+                    double total = handler.calculateTotalPrice(date, time, seats);
                     return new Response(ok, ok ? "Reservation confirmed" : "Seats unavailable", total);
                 }
+                case "makeReservationsBatch" -> {
+                    Object[] data = (Object[]) payload;
+                    String username = (String) data[0];
+                    List<BatchEntry> entries = new ArrayList<>();
+                    for (Object e : (List<?>) data[1]) entries.add((BatchEntry) e);
+
+                    boolean ok = handler.makeReservationsBatch(username, entries);
+                    double total = 0;
+                    for (BatchEntry e : entries) total += handler.calculateTotalPrice(e.getDate(), e.getTime(), e.getSeats());
+                    return new Response(ok, ok ? "All reservations confirmed" : "Seats unavailable, nothing booked", total);
+                }
+                case "reserveBestAvailable" -> {
+                    Object[] data = (Object[]) payload;
+                    String username = (String) data[0];
+                    LocalDate date = (LocalDate) data[1];
+                    LocalTime time = (LocalTime) data[2];
+                    int count = (Integer) data[3];
+                    SeatPreferences prefs = (SeatPreferences) data[4];
+
+                    Reservation r = handler.reserveBestAvailable(username, date, time, count, prefs);
+                    return new Response(r != null, r != null ? "Reservation confirmed" : "No " + count + " seats together", r);
+                }
+                case "holdSeats" -> {
+                    Object[] data = (Object[]) payload;
+                    String username = (String) data[0];
+                    LocalDate date = (LocalDate) data[1];
+                    LocalTime time = (LocalTime) data[2];
+                    int[] seats = seatsOf(data[3]);
+                    int ttlSeconds = (Integer) data[4];
+
+                    long holdId = handler.holdSeats(username, date, time, seats, ttlSeconds);
+                    return new Response(holdId != 0, holdId != 0 ? "Seats held" : "Seats unavailable", holdId);
+                }
+                case "confirmHold" -> {
+                    Object[] data = (Object[]) payload;
+                    String username = (String) data[0];
+                    long holdId = (Long) data[1];
+
+                    Reservation r = handler.confirmHold(username, holdId);
+                    return new Response(r != null, r != null ? "Reservation confirmed" : "Hold expired",
+                            r != null ? r.getTotalPrice() : 0.0);
+                }
+                case "releaseHold" -> {
+                    Object[] data = (Object[]) payload;
+                    String username = (String) data[0];
+                    long holdId = (Long) data[1];
+
+                    boolean ok = handler.releaseHold(username, holdId);
+                    return new Response(ok, ok ? "Hold released" : "No such hold", null);
+                }
                 case "getReservations" -> {
                     Object[] data = (Object[]) payload;
                     LocalDate date = (LocalDate) data[0];
@@ -68,12 +469,65 @@ public class ClientHandler implements Runnable {
                     List<Reservation> reservations = handler.getReservationsForSlot(date, time);
                     return new Response(true, "Success", reservations);
                 }
+                case "getReservationsForUser" -> {
+                    Object[] data = (Object[]) payload;
+                    String username = (String) data[0];
+                    LocalDate from = (LocalDate) data[1];
+                    int limit = (Integer) data[2];
+                    // optional cursor: the time and how many at that date and time to skip
+                    List<Reservation> page = data.length > 4
+                            ? handler.getReservationsForUser(username, from, (LocalTime) data[3], (Integer) data[4], limit)
+                            : handler.getReservationsForUser(username, from, limit);
+                    return new Response(true, "Success", page);
+                }
+                case "getReservationsSince" -> {
+                    Object[] data = (Object[]) payload;
+                    LocalDate date = (LocalDate) data[0];
+                    LocalTime time = (LocalTime) data[1];
+                    long since = (Long) data[2];
+                    SlotDelta delta = handler.getReservationChanges(date, time, since);
+                    return new Response(true, "Success", delta);
+                }
+                case "subscribeSlot" -> {
+                    Object[] data = (Object[]) payload;
+                    LocalDate date = (LocalDate) data[0];
+                    LocalTime time = (LocalTime) data[1];
+                    // subscribe before reading the slot, so no change falls between the two; the events
+                    // are held until the answer is out (see answered), so none arrives ahead of it
+                    synchronized (subscriptions) {
+                        boolean already = false;
+                        for (SlotEvents.Subscription sub : subscriptions) {
+                            already |= sub.getDate().equals(date) && sub.getTime().equals(time);
+                        }
+                        if (!already) {
+                            SlotEvents.Subscription sub = handler.subscribeSlot(date, time,
+                                    e -> pushTarget.accept(new Response(true, "Seat event", e)), true);
+                            subscriptions.add(sub);
+                            unanswered.put(req, sub);
+                        }
+                    }
+                    return new Response(true, "Subscribed", handler.getReservationsForSlot(date, time));
+                }
+                case "unsubscribeSlot" -> {
+                    Object[] data = (Object[]) payload;
+                    LocalDate date = (LocalDate) data[0];
+                    LocalTime time = (LocalTime) data[1];
+                    boolean ok = false;
+                    for (SlotEvents.Subscription sub : subscriptions) {
+                        if (sub.getDate().equals(date) && sub.getTime().equals(time)) {
+                            sub.close();
+                            subscriptions.remove(sub);
+                            ok = true;
+                        }
+                    }
+                    return new Response(ok, ok ? "Unsubscribed" : "Not subscribed", null);
+                }
                 case "cancelReservation" -> {
                     Object[] data = (Object[]) payload;
                     String username = (String) data[0];
                     LocalDate date = (LocalDate) data[1];
                     LocalTime time = (LocalTime) data[2];
-                    List<Integer> seats = (List<Integer>) data[3];
+                    int[] seats = seatsOf(data[3]);
 
                     boolean ok = handler.cancelReservation(username, date, time, seats);
                     return new Response(ok, ok ? "Reservation cancelled" : "Could not cancel", null);
@@ -90,6 +544,11 @@ public class ClientHandler implements Runnable {
                     boolean ok = handler.validateAdmin(key);
                     return new Response(ok, ok ? "Admin access granted" : "Invalid admin key", null);
                 }
+                case "stats" -> {
+                    String key = (String) payload;
+                    if (!handler.validateAdmin(key)) return new Response(false, "Invalid admin key", null);
+                    return new Response(true, "Stats", handler.getMetrics().report());
+                }
                 case "setHours" -> {
                     Object[] data = (Object[]) payload;
                     LocalTime open = (LocalTime) data[0];
@@ -109,6 +568,7 @@ public class ClientHandler implements Runnable {
                     Object[] data = (Object[]) payload;
                     int idx = (Integer) data[0];
                     double price = (Double) data[1];
+                    if (idx < 0 || idx >= handler.getTotalSeats()) return new Response(false, "Invalid seat", null);
                     handler.setSeatPrice(idx, price);
                     return new Response(true, "Price set", null);
                 }
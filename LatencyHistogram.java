@@ -0,0 +1,90 @@
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in nanoseconds, bucketed like HdrHistogram:
+ * values below 64 get a bucket each, and every power of two above that is
+ * split into 32 buckets, so a percentile is within about 3% of the truth.
+ * Values past MAX_VALUE (about 18 minutes) count as MAX_VALUE.
+ *
+ * record is a few atomic adds on a fixed array and never allocates, so it
+ * can sit on any request path. Readers see counts that may be a record or
+ * two apart from each other, which is fine for monitoring.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS; // buckets per power of two
+    static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long v = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(index(v));
+        count.incrementAndGet();
+        total.addAndGet(v);
+        long m;
+        while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+            // lost a race with a bigger or equal value; look again
+        }
+    }
+
+    // Records the time since startNanos (a System.nanoTime() reading).
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() { return count.get(); }
+    public long getMax() { return max.get(); }
+
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+
+    /** The value below which the fraction q (0..1) of recordings fall, rounded up to its bucket's top. */
+    public long getPercentile(double q) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += counts.get(i);
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highestIn(i), max.get());
+        }
+        return max.get();
+    }
+
+    // count, then p50 / p99 / p999 / max in microseconds
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "count=%d p50=%s p99=%s p999=%s max=%s", getCount(),
+                micros(getPercentile(0.50)), micros(getPercentile(0.99)), micros(getPercentile(0.999)), micros(getMax()));
+    }
+
+    static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1fus", nanos / (double) TimeUnit.MICROSECONDS.toNanos(1));
+    }
+
+    // Values below 2*SUB map to themselves; above, the top SUB_BITS+1 bits pick the bucket.
+    static int index(long v) {
+        if (v < 2 * SUB) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return shift * SUB + (int) (v >>> shift);
+    }
+
+    // The largest value that lands in bucket i.
+    static long highestIn(int i) {
+        if (i < 2 * SUB) return i;
+        int shift = i / SUB - 1;
+        long sub = i - shift * SUB;
+        return ((sub + 1) << shift) - 1;
+    }
+}
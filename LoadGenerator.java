@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for Server, speaking the binary protocol through one
+ * ReservationClient per connection thread. Configured with system
+ * properties:
+ *
+ *   loadgen.host / loadgen.port     server (localhost:4242)
+ *   loadgen.connections             connections, one thread each (8)
+ *   loadgen.duration / .warmup      seconds measured, and run before measuring (30 / 5)
+ *   loadgen.mode                    "closed": each connection sends as soon as it has an answer;
+ *                                   "open": requests are due at a fixed rate, answered or not
+ *   loadgen.rate                    open mode: requests per second over all connections (1000)
+ *   loadgen.mix                     action weights (login:10,getReservations:60,makeReservation:20,cancelReservation:10)
+ *   loadgen.slots / loadgen.skew    showtimes (28: a week of 18:00..21:00) and the Zipf exponent of
+ *                                   their popularity (1.0; 0 is uniform)
+ *   loadgen.users / loadgen.seats   accounts to spread requests over (100), seats per slot (50)
+ *
+ * Latencies are corrected for coordinated omission. In open mode each
+ * request is timed from when it was due, not from when it could be sent,
+ * so a stall counts against every request scheduled behind it. In closed
+ * mode a response slower than the warmup's mean also records the requests
+ * that would have been sent in the meantime (HdrHistogram's expected
+ * interval correction). Service time, from the actual send, is reported
+ * too.
+ *
+ * Start the server with -Dreservation.rateLimit=0, or most writes from one
+ * machine are answered busy by AdmissionControl.
+ */
+public class LoadGenerator {
+    private static final String HOST = System.getProperty("loadgen.host", "localhost");
+    private static final int PORT = Integer.getInteger("loadgen.port", 4242);
+    private static final int CONNECTIONS = Integer.getInteger("loadgen.connections", 8);
+    private static final int DURATION = Integer.getInteger("loadgen.duration", 30);
+    private static final int WARMUP = Integer.getInteger("loadgen.warmup", 5);
+    private static final boolean OPEN = "open".equalsIgnoreCase(System.getProperty("loadgen.mode", "closed"));
+    private static final double RATE = Double.parseDouble(System.getProperty("loadgen.rate", "1000"));
+    private static final String MIX = System.getProperty("loadgen.mix",
+            "login:10,getReservations:60,makeReservation:20,cancelReservation:10");
+    private static final int SLOTS = Integer.getInteger("loadgen.slots", 28);
+    private static final double SKEW = Double.parseDouble(System.getProperty("loadgen.skew", "1.0"));
+    private static final int USERS = Integer.getInteger("loadgen.users", 100);
+    private static final int SEATS = Integer.getInteger("loadgen.seats", 50);
+
+    private static final String[] ACTIONS = {"login", "getReservations", "makeReservation", "cancelReservation"};
+    private static final LocalDate FIRST_DAY = LocalDate.now().plusDays(1);
+
+    private final double[] mix = new double[ACTIONS.length]; // cumulative weights, last is 1
+    private final double[] popularity = new double[SLOTS];   // cumulative Zipf weights, last is 1
+    private final LatencyHistogram[] corrected = new LatencyHistogram[ACTIONS.length];
+    private final LatencyHistogram service = new LatencyHistogram();
+    private final LongAdder ok = new LongAdder();
+    private final LongAdder failed = new LongAdder(); // answered, but not successfully (e.g. seat taken)
+    private final LongAdder busy = new LongAdder();   // turned away by admission control
+    private final LongAdder errors = new LongAdder(); // no answer: connection refused or lost
+    private final LongAdder warmupCount = new LongAdder();
+    private final LongAdder warmupNanos = new LongAdder();
+    private volatile long expectedInterval; // closed mode: mean response time seen during warmup
+    private long measureFrom;
+    private long measureUntil;
+
+    public LoadGenerator() {
+        double[] weights = new double[ACTIONS.length];
+        for (String part : MIX.split(",")) {
+            String[] kv = part.split(":");
+            int i = Arrays.asList(ACTIONS).indexOf(kv[0].trim());
+            if (i < 0) throw new IllegalArgumentException("Unknown action in loadgen.mix: " + kv[0]);
+            weights[i] = Double.parseDouble(kv[1].trim());
+        }
+        cumulative(weights, mix);
+        double[] zipf = new double[SLOTS];
+        for (int k = 0; k < SLOTS; k++) zipf[k] = 1 / Math.pow(k + 1, SKEW);
+        cumulative(zipf, popularity);
+        for (int i = 0; i < ACTIONS.length; i++) corrected[i] = new LatencyHistogram();
+    }
+
+    private static void cumulative(double[] weights, double[] into) {
+        double sum = 0;
+        for (double w : weights) sum += w;
+        double acc = 0;
+        for (int i = 0; i < weights.length; i++) {
+            acc += weights[i];
+            into[i] = acc / sum;
+        }
+    }
+
+    public void run() throws InterruptedException {
+        try (ReservationClient setup = new ReservationClient(HOST, PORT)) {
+            for (int u = 0; u < USERS; u++) setup.createAccount(user(u), "pw");
+        } catch (IOException e) {
+            System.err.println("Can't reach " + HOST + ":" + PORT + ": " + e.getMessage());
+            return;
+        }
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(WARMUP);
+        measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(DURATION);
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < CONNECTIONS; c++) {
+            int id = c;
+            Thread t = new Thread(() -> connection(id, start), "loadgen-" + c);
+            t.start();
+            threads.add(t);
+        }
+        if (!OPEN) {
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(measureFrom - System.nanoTime()));
+            long n = warmupCount.sum();
+            expectedInterval = n == 0 ? 0 : warmupNanos.sum() / n;
+        }
+        for (Thread t : threads) t.join();
+        report();
+    }
+
+    // One connection's loop; in open mode it owns 1/CONNECTIONS of the rate.
+    private void connection(int id, long start) {
+        long interval = OPEN ? (long) (TimeUnit.SECONDS.toNanos(1) * CONNECTIONS / RATE) : 0;
+        long due = start + (OPEN ? ThreadLocalRandom.current().nextLong(Math.max(1, interval)) : 0); // stagger
+        ArrayDeque<int[]> booked = new ArrayDeque<>(); // (slot, seat, user) this connection reserved
+        ReservationClient client = null;
+        while (true) {
+            long now = System.nanoTime();
+            if (OPEN) {
+                if (due - now > 0) LockSupport.parkNanos(due - now);
+            } else {
+                due = now;
+            }
+            if (due - measureUntil >= 0) break;
+            boolean measured = due - measureFrom >= 0;
+            int action = pick(mix);
+            long sent = System.nanoTime();
+            try {
+                if (client == null) client = new ReservationClient(HOST, PORT);
+                Response res = send(client, action, id, booked);
+                long end = System.nanoTime();
+                if (measured) {
+                    if (res.getRetryAfterMillis() > 0) busy.increment();
+                    else if (res.isSuccess()) ok.increment();
+                    else failed.increment();
+                    service.record(end - sent);
+                    record(action, end - due);
+                } else if (!OPEN) {
+                    warmupCount.increment();
+                    warmupNanos.add(end - sent);
+                }
+            } catch (IOException e) {
+                if (measured) errors.increment();
+                close(client);
+                client = null;
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+            }
+            due += interval;
+        }
+        close(client);
+    }
+
+    private Response send(ReservationClient client, int action, int id, ArrayDeque<int[]> booked) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int u = (id + CONNECTIONS * random.nextInt(Math.max(1, USERS / CONNECTIONS + 1))) % USERS;
+        int slot = pick(popularity);
+        switch (ACTIONS[action]) {
+            case "login" -> {
+                return client.login(user(u), "pw");
+            }
+            case "getReservations" -> {
+                return client.getReservations(day(slot), time(slot));
+            }
+            case "makeReservation" -> {
+                int seat = random.nextInt(SEATS);
+                Response res = client.makeReservation(user(u), day(slot), time(slot), List.of(seat));
+                if (res.isSuccess()) booked.add(new int[] {slot, seat, u});
+                return res;
+            }
+            default -> {
+                int[] b = booked.poll();
+                if (b == null) b = new int[] {slot, random.nextInt(SEATS), u};
+                return client.cancelReservation(user(b[2]), day(b[0]), time(b[0]), List.of(b[1]));
+            }
+        }
+    }
+
+    // Closed mode back-fills the requests a slow response held up; open mode's latency already includes them.
+    private void record(int action, long latency) {
+        LatencyHistogram h = corrected[action];
+        h.record(latency);
+        long interval = expectedInterval;
+        if (OPEN || interval <= 0) return;
+        for (long missed = latency - interval; missed >= interval; missed -= interval) h.record(missed);
+    }
+
+    private void report() {
+        long total = ok.sum() + failed.sum() + busy.sum() + errors.sum();
+        System.out.printf(Locale.ROOT, "%s loop, %d connections, %d s%s, mix %s, %d slots (skew %.2f)%n",
+                OPEN ? "open" : "closed", CONNECTIONS, DURATION, OPEN ? String.format(Locale.ROOT, ", %.0f req/s offered", RATE) : "",
+                MIX, SLOTS, SKEW);
+        System.out.printf(Locale.ROOT, "throughput %.1f req/s: %d ok, %d failed answers, %d busy, %d errors (error rate %.2f%%)%n",
+                total / (double) DURATION, ok.sum(), failed.sum(), busy.sum(), errors.sum(),
+                total == 0 ? 0 : 100.0 * (busy.sum() + errors.sum()) / total);
+        System.out.println("latency corrected for coordinated omission"
+                + (OPEN ? " (from when each request was due):" : " (expected interval " + LatencyHistogram.micros(expectedInterval) + "):"));
+        for (int i = 0; i < ACTIONS.length; i++) {
+            if (corrected[i].getCount() > 0) System.out.printf(Locale.ROOT, "  %-18s %s%n", ACTIONS[i], corrected[i]);
+        }
+        System.out.printf(Locale.ROOT, "service time (from send): %s%n", service);
+        if (busy.sum() > 0) System.out.println("the server shed load; start it with -Dreservation.rateLimit=0 to measure its capacity");
+    }
+
+    private static int pick(double[] cumulative) {
+        int i = Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble());
+        return Math.min(i >= 0 ? i : -i - 1, cumulative.length - 1);
+    }
+
+    private static String user(int u) {
+        return "load_user_" + u;
+    }
+
+    // four showtimes a day, 18:00 to 21:00
+    private static LocalDate day(int slot) {
+        return FIRST_DAY.plusDays(slot / 4);
+    }
+
+    private static LocalTime time(int slot) {
+        return LocalTime.of(18 + slot % 4, 0);
+    }
+
+    private static void close(ReservationClient client) {
+        if (client == null) return;
+        try {
+            client.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        new LoadGenerator().run();
+    }
+}
@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Where the server's time goes. Per action (indexed by wire protocol
+ * opcode, 0 for unknown actions): a latency histogram from the start of
+ * handling to the answer being written, and a count of failed answers.
+ * Server-wide:
+ *
+ *   queueWait    time a request waited for a worker thread
+ *   lockWait     time a change waited for its slot's lock
+ *   persistence  time a change waited for its log record to be written (and synced, per durability)
+ *
+ * Recording never allocates. report() renders everything, plus any sections
+ * other parts of the server add (response cache, admission control), for
+ * the admin "stats" action and the periodic dump.
+ */
+public class Metrics {
+    private final Instant started = Instant.now();
+    private final LatencyHistogram[] latency = new LatencyHistogram[WireProtocol.opcodes()];
+    private final LongAdder[] failures = new LongAdder[latency.length];
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram lockWait = new LatencyHistogram();
+    private final LatencyHistogram persistence = new LatencyHistogram();
+    private final Map<String, Supplier<?>> sections = new ConcurrentSkipListMap<>(); // reported by name
+    private ScheduledExecutorService dumper;
+
+    public Metrics() {
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new LatencyHistogram();
+            failures[i] = new LongAdder();
+        }
+    }
+
+    // One answered request; startNanos is when handling began.
+    public void recordRequest(String action, long startNanos, boolean success) {
+        int op = WireProtocol.opcode(action);
+        latency[op].recordSince(startNanos);
+        if (!success) failures[op].increment();
+    }
+
+    public LatencyHistogram getLatency(String action) { return latency[WireProtocol.opcode(action)]; }
+    public long getFailures(String action) { return failures[WireProtocol.opcode(action)].sum(); }
+    public LatencyHistogram getQueueWait() { return queueWait; }
+    public LatencyHistogram getLockWait() { return lockWait; }
+    public LatencyHistogram getPersistence() { return persistence; }
+
+    /** Adds a line "name: source.get()" to every report. */
+    public void addSection(String name, Supplier<?> source) {
+        sections.put(name, source);
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("stats at ").append(Instant.now()).append(", up ")
+                .append(Duration.between(started, Instant.now()).toSeconds()).append(" s\n");
+        sb.append(String.format(Locale.ROOT, "%-22s %9s %7s %10s %10s %10s %10s%n",
+                "action", "count", "failed", "p50", "p99", "p999", "max"));
+        for (int op = 0; op < latency.length; op++) {
+            LatencyHistogram h = latency[op];
+            if (h.getCount() == 0) continue;
+            row(sb, op == 0 ? "(unknown)" : WireProtocol.action((byte) op), h, failures[op].sum());
+        }
+        sb.append('\n');
+        row(sb, "queueWait", queueWait, 0);
+        row(sb, "lockWait", lockWait, 0);
+        row(sb, "persistence", persistence, 0);
+        for (Map.Entry<String, Supplier<?>> s : sections.entrySet()) {
+            sb.append(s.getKey()).append(": ").append(s.getValue().get()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void row(StringBuilder sb, String name, LatencyHistogram h, long failed) {
+        sb.append(String.format(Locale.ROOT, "%-22s %9d %7d %10s %10s %10s %10s%n", name, h.getCount(), failed,
+                LatencyHistogram.micros(h.getPercentile(0.50)), LatencyHistogram.micros(h.getPercentile(0.99)),
+                LatencyHistogram.micros(h.getPercentile(0.999)), LatencyHistogram.micros(h.getMax())));
+    }
+
+    /**
+     * Rewrites file with report() every intervalSeconds, on a daemon thread.
+     * The report goes to a temporary file first and is moved into place, so
+     * a reader never sees half of one.
+     */
+    public synchronized void dumpEvery(String file, long intervalSeconds) {
+        if (dumper != null || intervalSeconds <= 0) return;
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stats-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        Path target = Path.of(file);
+        Path tmp = Path.of(file + ".tmp");
+        dumper.scheduleAtFixedRate(() -> {
+            try {
+                Files.writeString(tmp, report());
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+}
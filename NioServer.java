@@ -0,0 +1,616 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Selector-based server mode. A few I/O threads own every socket and only
+ * move bytes; decoding a Request, running it and encoding the Response
+ * happen on a separate worker pool. Idle clients cost a buffer each
+ * instead of a parked thread.
+ *
+ * Speaks both protocols ClientHandler does, picked by the client's first
+ * bytes. Either way the I/O thread decodes whole requests straight from
+ * its read buffer and leaves a half-arrived one there for the next read.
+ * Binary frames (WireProtocol) carry their length; object streams don't,
+ * so the I/O thread just tries readObject and rolls back if the bytes run
+ * out (see readObjects). Requests without an id run one at a time, in
+ * order; requests that carry an id run concurrently (see runConcurrently).
+ *
+ * AdmissionControl caps connections and requests in progress, so the
+ * worker queue is bounded too. Requests it turns away are answered "busy"
+ * without reaching a worker's real work, and so are any the full worker
+ * queue turns away. Connections it has no room for get their busy answer
+ * right on the accept path.
+ */
+public class NioServer {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_IN_FLIGHT = 64; // pipelined requests per connection before we stop reading
+    private static final byte[] STREAM_HEADER = ByteBuffer.allocate(4).putInt(WireProtocol.STREAM_HEADER).array();
+    private static final int PUSH_BACKLOG = 64; // queued writes before pushed events wait for the client
+
+    private final int port;
+    private final ReservationHandler handler; // null when an engine routes the requests
+    private final ShardedEngine engine;
+    private final Metrics metrics;
+    private final AdmissionControl admission;
+    private final IoLoop[] loops;
+    private final ExecutorService workers;
+    private ServerSocketChannel server;
+    private int nextLoop;
+
+    public NioServer(int port, ReservationHandler handler, int ioThreads, int workerThreads) {
+        this(port, handler, ioThreads, workerThreads, new AdmissionControl());
+    }
+
+    public NioServer(int port, ReservationHandler handler, int ioThreads, int workerThreads, AdmissionControl admission) {
+        this(port, handler, null, ioThreads, workerThreads, admission);
+    }
+
+    // Workers hand each request to the shard that owns it; see ShardedEngine.
+    public NioServer(int port, ShardedEngine engine, int ioThreads, int workerThreads, AdmissionControl admission) {
+        this(port, null, engine, ioThreads, workerThreads, admission);
+    }
+
+    private NioServer(int port, ReservationHandler handler, ShardedEngine engine, int ioThreads, int workerThreads,
+                      AdmissionControl admission) {
+        this.port = port;
+        this.handler = handler;
+        this.engine = engine;
+        this.metrics = engine != null ? engine.getMetrics() : handler.getMetrics();
+        this.admission = admission;
+        this.loops = new IoLoop[Math.max(1, ioThreads)];
+        int threads = Math.max(1, workerThreads);
+        // each connection queues at most one in-order task, and admission caps the concurrent ones;
+        // should a closing connection's task still be queued at the limit, the job is answered busy,
+        // never run by the submitting thread, which may be an I/O loop
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(admission.getMaxConnections() + admission.getMaxQueued()), r -> {
+            Thread t = new Thread(r, "nio-worker");
+            t.setDaemon(true);
+            return t;
+        }, (job, pool) -> ((Job) job).turnedAway().run());
+    }
+
+    // Work for the pool, and what to do instead if the pool has no room for it.
+    private record Job(Runnable work, Runnable turnedAway) implements Runnable {
+        @Override
+        public void run() {
+            work.run();
+        }
+    }
+
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop();
+            Thread t = new Thread(loops[i], "nio-io-" + i);
+            t.setDaemon(i > 0);
+            t.start();
+        }
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        loops[0].register(server, null);
+    }
+
+    public void stop() throws IOException {
+        server.close();
+        for (IoLoop loop : loops) loop.stop();
+        workers.shutdown();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while ((ch = server.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            AdmissionControl.Client client = admission.connect(((InetSocketAddress) ch.getRemoteAddress()).getAddress());
+            if (client == null) {
+                refuse(ch);
+                continue;
+            }
+            IoLoop loop = loops[nextLoop++ % loops.length];
+            loop.register(ch, new Connection(ch, loop, client));
+        }
+    }
+
+    // No room: ClientHandler.REFUSAL fits the new socket's empty send buffer, then the channel closes a little later.
+    private void refuse(SocketChannel ch) {
+        try {
+            ch.write(ByteBuffer.wrap(ClientHandler.REFUSAL));
+            ch.shutdownOutput();
+        } catch (IOException ignored) {
+            // gone already
+        }
+        ClientHandler.lingerThenClose(ch);
+    }
+
+    /** One selector thread; other threads hand it work through a queue and a wakeup. */
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        IoLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SelectableChannel ch, Connection c) {
+            execute(() -> {
+                try {
+                    ch.register(selector, c == null ? SelectionKey.OP_ACCEPT : SelectionKey.OP_READ, c);
+                    if (c != null) c.key = ch.keyFor(selector);
+                } catch (ClosedChannelException e) {
+                    if (c != null) c.close();
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection c = (Connection) key.attachment();
+                        if (key.isReadable()) c.onReadable();
+                        if (key.isValid() && key.isWritable()) c.onWritable();
+                    }
+                } catch (IOException e) {
+                    System.err.println("NIO loop error: " + e.getMessage());
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** Per-connection buffers and state. The read buffer is only touched by the owning I/O thread. */
+    private class Connection {
+        private static final int UNKNOWN = 0, OBJECT = 1, BINARY = 2;
+
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final Condition drained = writeLock.newCondition(); // signalled as the write queue empties
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile long scheduledAt; // when process was last handed to a worker
+        private final ClientHandler dispatcher = engine != null ? new ClientHandler(null, engine, null) : new ClientHandler(null, handler);
+        private final AdmissionControl.Client client;
+        private volatile int protocol = UNKNOWN;
+        private volatile SelectionKey key;
+        private volatile boolean closed;
+        private final AtomicInteger inFlight = new AtomicInteger(); // requests with an id still running
+        private final AtomicInteger waiting = new AtomicInteger(); // requests without one still in requests
+
+        // the I/O thread decodes whole requests, workers run them
+        private final Queue<Request> requests = new ConcurrentLinkedQueue<>();
+
+        // object stream protocol
+        private final FrameOutput frames = new FrameOutput();
+        private ObjectOutputStream out;
+        private ObjectInputStream in; // null until replay() rebuilds it
+        private final InputStream unread = new Unread();
+        private int kept; // decoded bytes at the front of the read buffer, since the stream header or a reset
+        private int keptObjects; // objects in them
+        private boolean keptFromReset; // they start with TC_RESET rather than the stream header
+
+        // binary protocol
+        private boolean magicSeen;
+
+        Connection(SocketChannel channel, IoLoop loop, AdmissionControl.Client client) {
+            this.channel = channel;
+            this.loop = loop;
+            this.client = client;
+            dispatcher.pushTo(event -> {
+                awaitWriteRoom();
+                write(WireProtocol.SEAT_EVENT, event);
+            });
+            // the object stream header goes out before we know the protocol: object stream
+            // clients may wait for it before they send anything, binary clients skip it
+            try {
+                out = new ObjectOutputStream(frames);
+                out.flush();
+            } catch (IOException e) {
+                close(); // can't happen, frames is in memory
+                return;
+            }
+            frames.send();
+        }
+
+        void onReadable() {
+            int n;
+            try {
+                n = channel.read(readBuffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            try {
+                if (protocol == UNKNOWN && readBuffer.remaining() >= 2) {
+                    protocol = WireProtocol.isObjectStream(readBuffer.get(0), readBuffer.get(1)) ? OBJECT : BINARY;
+                }
+                if (protocol == OBJECT) {
+                    readObjects();
+                } else if (protocol == BINARY) {
+                    readFrames();
+                }
+            } catch (RuntimeException | IOException | ClassNotFoundException bad) {
+                System.err.println("Client disconnected: " + bad.getMessage());
+                close();
+                return;
+            }
+            readBuffer.compact();
+        }
+
+        // Decodes every complete frame in the read buffer straight from the direct buffer.
+        private void readFrames() {
+            if (!magicSeen) {
+                if (readBuffer.remaining() < 4) return;
+                if (readBuffer.getInt() != WireProtocol.MAGIC) throw new IllegalStateException("Unknown protocol");
+                magicSeen = true;
+            }
+            boolean any = false;
+            while (WireProtocol.completeFrame(readBuffer) >= 0) {
+                any |= dispatch(WireProtocol.decodeRequest(readBuffer));
+            }
+            if (readBuffer.remaining() >= 4) {
+                int need = 4 + readBuffer.getInt(readBuffer.position());
+                if (need > readBuffer.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocateDirect(need);
+                    bigger.put(readBuffer);
+                    bigger.flip();
+                    readBuffer = bigger;
+                }
+            }
+            if (any) schedule();
+        }
+
+        /**
+         * Decodes every complete object in the read buffer. Object streams
+         * carry no lengths, so each readObject is a try: if the bytes run out
+         * part way, the buffer goes back to where the object started and the
+         * rest is awaited by the next read. A failed readObject may have left
+         * part of that object in the stream's handle table, so the stream is
+         * then rebuilt by replaying every object since the stream header or
+         * the client's last reset(), which is why those bytes stay in the
+         * buffer too. Clients that reset after each request (as every answer
+         * here is sent) keep almost nothing; the buffer never grows past
+         * MAX_FRAME either way.
+         */
+        private void readObjects() throws IOException, ClassNotFoundException {
+            int start = 0; // where the kept bytes begin
+            readBuffer.position(kept);
+            boolean any = false;
+            while (readBuffer.hasRemaining()) {
+                int mark = readBuffer.position();
+                if (readBuffer.get(mark) == ObjectStreamConstants.TC_RESET) {
+                    // nothing before the reset can be referred to again
+                    start = mark;
+                    keptObjects = 0;
+                    keptFromReset = true;
+                }
+                Object obj;
+                try {
+                    if (in == null) in = replay(start);
+                    obj = in.readObject();
+                } catch (EOFException partial) {
+                    in = null;
+                    readBuffer.position(mark);
+                    break;
+                }
+                keptObjects++;
+                if (obj instanceof Request req) any |= dispatch(req);
+            }
+            kept = readBuffer.position() - start;
+            readBuffer.position(start);
+            if (readBuffer.remaining() == readBuffer.capacity()) {
+                if (readBuffer.capacity() >= WireProtocol.MAX_FRAME) throw new IllegalStateException("Object stream request too large");
+                ByteBuffer bigger = ByteBuffer.allocateDirect(readBuffer.capacity() * 2);
+                bigger.put(readBuffer);
+                bigger.flip();
+                readBuffer = bigger;
+            }
+            if (any) schedule();
+        }
+
+        // A new ObjectInputStream over the kept bytes, past the objects already decoded from them.
+        private ObjectInputStream replay(int start) throws IOException, ClassNotFoundException {
+            readBuffer.position(start);
+            ObjectInputStream replayed = new ObjectInputStream(keptFromReset
+                    ? new SequenceInputStream(new ByteArrayInputStream(STREAM_HEADER), unread) : unread);
+            for (int i = 0; i < keptObjects; i++) replayed.readObject();
+            return replayed;
+        }
+
+        // Runs a request with an id now; queues one without for process. True if it was queued.
+        private boolean dispatch(Request req) {
+            dispatcher.trace(req);
+            if (req.getId() != 0) {
+                runConcurrently(req);
+                return false;
+            }
+            requests.add(req);
+            if (waiting.incrementAndGet() == MAX_IN_FLIGHT) updateInterest(false);
+            return true;
+        }
+
+        // A queued request was taken: let the connection read again if it had to stop.
+        private Request nextInLine() {
+            Request req = requests.poll();
+            if (req != null && waiting.getAndDecrement() == MAX_IN_FLIGHT) loop.execute(() -> updateInterest(false));
+            return req;
+        }
+
+        void onWritable() {
+            writeLock.lock();
+            try {
+                ByteBuffer b;
+                while ((b = writeQueue.peek()) != null) {
+                    channel.write(b);
+                    if (b.hasRemaining()) return; // socket full, wait for the next OP_WRITE
+                    writeQueue.poll();
+                    drained.signalAll();
+                }
+                updateInterest(false);
+            } catch (IOException e) {
+                close();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Writes frame now if nothing is queued ahead of it, otherwise (or for
+         * whatever the socket doesn't take) queues a copy for the I/O thread.
+         * The caller may reuse frame once this returns.
+         */
+        void send(ByteBuffer frame) {
+            writeLock.lock();
+            try {
+                if (writeQueue.isEmpty()) {
+                    channel.write(frame);
+                    if (!frame.hasRemaining()) return;
+                }
+                ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+                copy.put(frame).flip();
+                writeQueue.add(copy);
+            } catch (IOException e) {
+                close();
+                return;
+            } finally {
+                writeLock.unlock();
+            }
+            loop.execute(() -> updateInterest(true));
+        }
+
+        // I/O thread only
+        private void updateInterest(boolean write) {
+            SelectionKey k = key;
+            if (k == null || !k.isValid()) return;
+            boolean full = inFlight.get() >= MAX_IN_FLIGHT || waiting.get() >= MAX_IN_FLIGHT;
+            int ops = full ? 0 : SelectionKey.OP_READ;
+            if (write || !writeQueue.isEmpty()) ops |= SelectionKey.OP_WRITE;
+            k.interestOps(ops);
+        }
+
+        /**
+         * Requests with an id don't wait for the ones before them: each goes
+         * to the worker pool on its own and its response is sent whenever it
+         * finishes. Reading pauses while MAX_IN_FLIGHT are outstanding, as it
+         * does while MAX_IN_FLIGHT requests without an id wait their turn.
+         */
+        private void runConcurrently(Request req) {
+            Response busy = client.admit(req);
+            if (busy != null) {
+                write(WireProtocol.opcode(req.getAction()), busy);
+                return;
+            }
+            if (inFlight.incrementAndGet() == MAX_IN_FLIGHT) updateInterest(false);
+            long queued = System.nanoTime();
+            workers.execute(new Job(() -> {
+                metrics.getQueueWait().recordSince(queued);
+                try {
+                    answer(req);
+                } finally {
+                    finished();
+                }
+            }, () -> {
+                write(WireProtocol.opcode(req.getAction()), client.overloaded(req));
+                finished();
+            }));
+        }
+
+        // A request with an id is answered: let the connection read again if it had to stop.
+        private void finished() {
+            client.done();
+            if (inFlight.getAndDecrement() == MAX_IN_FLIGHT) loop.execute(() -> updateInterest(false));
+        }
+
+        // A request without an id: run it, or answer it busy, in its place in line.
+        private void answerInLine(Request req) {
+            Response busy = client.admit(req);
+            if (busy != null) {
+                write(WireProtocol.opcode(req.getAction()), busy);
+                return;
+            }
+            try {
+                answer(req);
+            } finally {
+                client.done();
+            }
+        }
+
+        private void answer(Request req) {
+            long start = System.nanoTime();
+            byte[] cached = dispatcher.cachedAnswer(req, protocol == BINARY ? ResponseCache.BINARY : ResponseCache.OBJECT_STREAM);
+            if (cached == null) {
+                Response res = dispatcher.handleRequest(req);
+                write(WireProtocol.opcode(req.getAction()), res);
+                dispatcher.answered(req);
+                metrics.recordRequest(req.getAction(), start, res.isSuccess());
+                return;
+            }
+            if (protocol == BINARY) {
+                send(WireProtocol.encodeResponse(WireProtocol.GET_RESERVATIONS, req.getId(), cached));
+            } else {
+                writeLock.lock();
+                try {
+                    out.flush(); // see ClientHandler.cachedAnswer: the raw bytes go where writeObject's would
+                    frames.write(cached, 0, cached.length);
+                    out.reset();
+                    out.flush();
+                    frames.send();
+                } catch (IOException e) {
+                    close();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+            metrics.recordRequest(req.getAction(), start, true);
+        }
+
+        // Pushed events wait here, on a SlotEvents thread, while a slow client has PUSH_BACKLOG writes
+        // queued; its subscription's bounded queue then fills up instead of the write queue.
+        private void awaitWriteRoom() {
+            writeLock.lock();
+            try {
+                while (!closed && writeQueue.size() >= PUSH_BACKLOG) {
+                    try {
+                        drained.await(10, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        // Also called from SlotEvents delivery threads for pushed events.
+        private void write(byte opcode, Response res) {
+            if (closed) return;
+            if (protocol == BINARY) {
+                send(WireProtocol.encodeResponse(opcode, res));
+                return;
+            }
+            writeLock.lock(); // keeps each object's bytes together in the stream
+            try {
+                out.writeObject(res);
+                out.reset();
+                out.flush();
+                frames.send();
+            } catch (IOException e) {
+                close();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                scheduledAt = System.nanoTime();
+                workers.execute(new Job(this::process, this::turnAway));
+            }
+        }
+
+        // No worker could take process: answer what it would have run busy instead.
+        private void turnAway() {
+            Request req;
+            while ((req = nextInLine()) != null) write(WireProtocol.opcode(req.getAction()), client.overloaded(req));
+            scheduled.set(false);
+            if (!closed && !requests.isEmpty()) schedule();
+        }
+
+        // Runs on a worker: answer, in order, every request without an id decoded so far.
+        private void process() {
+            metrics.getQueueWait().recordSince(scheduledAt);
+            try {
+                Request req;
+                while (!closed && (req = nextInLine()) != null) answerInLine(req);
+            } finally {
+                scheduled.set(false);
+            }
+            // work that arrived after our last check would otherwise wait for the next read
+            if (!closed && !requests.isEmpty()) schedule();
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            dispatcher.closeSubscriptions();
+            client.close();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        /** Collects bytes written by the ObjectOutputStream and sends them as one frame. */
+        private class FrameOutput extends ByteArrayOutputStream {
+            void send() {
+                if (size() == 0) return;
+                Connection.this.send(ByteBuffer.wrap(buf, 0, count));
+                reset();
+            }
+        }
+
+        /** The read buffer from its position; runs dry at its limit, which readObject reports as EOFException. */
+        private class Unread extends InputStream {
+            @Override
+            public int read() {
+                return readBuffer.hasRemaining() ? readBuffer.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) return 0;
+                if (!readBuffer.hasRemaining()) return -1;
+                int n = Math.min(len, readBuffer.remaining());
+                readBuffer.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return readBuffer.remaining();
+            }
+        }
+    }
+}
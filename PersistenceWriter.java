@@ -0,0 +1,344 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Background thread that owns all writes to the reservation log.
+ *
+ * Request threads only queue an encoded record; the writer takes everything
+ * queued so far and writes it with one write, so a burst of bookings costs
+ * one write (and at most one fsync) instead of one each. Queueing returns a
+ * ticket, and awaitDurable(ticket) then waits as long as the durability
+ * mode says; whenDurable(ticket, done) has the writer thread call done
+ * then instead, for callers that mustn't wait. Callers queue while they hold whatever lock orders their
+ * changes and wait only after letting it go, so changes to one busy slot
+ * can share an fsync instead of taking turns at one each.
+ *
+ * Records are encoded straight into one of two direct buffers: request
+ * threads fill one while the writer thread writes out the other, and then
+ * they swap. Neither side allocates once the buffers have grown to the
+ * largest batch seen.
+ *
+ * A failed write or fsync is never reported as durable: the writer stops,
+ * every record not yet durable fails (awaitDurable throws, whenDurable
+ * passes the error), and append refuses anything new, so no change is
+ * acknowledged that the disk may not have. A restart replays what did
+ * reach the disk.
+ */
+public class PersistenceWriter implements AutoCloseable {
+    private static final int INITIAL_BUFFER = 64 * 1024;
+
+    public enum Durability {
+        /** Wait until the record is fsynced. Records that queue up while a sync runs share the next one. */
+        SYNC,
+        /** Hold each batch open for the group commit window, then fsync; callers still wait for the fsync. */
+        GROUP,
+        /** Return as soon as the record is queued. Written right away, fsynced at most once per group commit window. */
+        ASYNC;
+
+        static Durability parse(String value) {
+            if (value == null) return SYNC;
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("reservation.durability must be sync, group or async, not " + value);
+            }
+        }
+    }
+
+    private FileChannel channel; // replaced by switchTo while quiet
+    private final Durability mode;
+    private final long windowNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queued = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+    private final Condition resumed = lock.newCondition();
+    private ByteBuffer pending = ByteBuffer.allocateDirect(INITIAL_BUFFER); // records queued, in write mode
+    private ByteBuffer spare = ByteBuffer.allocateDirect(INITIAL_BUFFER);
+    private long submittedSeq; // last record queued
+    private volatile long durableSeq; // last record known to be fsynced; only changed under lock
+    private long syncRequestedSeq; // flush() / compaction want everything up to here synced
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(Comparator.comparingLong(Waiter::ticket)); // whenDurable's, by ticket
+    private boolean paused;
+    private volatile boolean closed;
+    private volatile IOException failure; // set once, by the writer thread, when a write or fsync fails
+    private final Thread thread;
+
+    public PersistenceWriter(FileChannel channel, Durability mode, long groupCommitMillis) {
+        this.channel = channel;
+        this.mode = mode;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, groupCommitMillis));
+        thread = new Thread(this::run, "reservation-log-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Durability getMode() {
+        return mode;
+    }
+
+    /** Throws if append would: the writer is closed or a write failed. Lets callers refuse a change before making it. */
+    public void checkWritable() {
+        if (failure != null) throw new IllegalStateException("Persistence writer failed", failure);
+        if (closed) throw new IllegalStateException("Persistence writer closed");
+    }
+
+    /** Queues one record and returns its ticket for awaitDurable. */
+    public long submit(ByteBuffer record) {
+        append(record.remaining()).put(record);
+        return commit();
+    }
+
+    /**
+     * Room for a record of length bytes, to be put at the returned buffer's
+     * position. Takes the writer's lock, so records can't interleave: the
+     * caller must end with commit(), or discard() if it can't finish.
+     */
+    public ByteBuffer append(int length) {
+        lock.lock();
+        while (paused) resumed.awaitUninterruptibly();
+        if (closed || failure != null) {
+            lock.unlock();
+            throw new IllegalStateException(closed ? "Persistence writer closed" : "Persistence writer failed", failure);
+        }
+        if (pending.remaining() < length) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(pending.capacity() * 2, pending.position() + length));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        return pending;
+    }
+
+    /** Queues the record put since append and returns its ticket for awaitDurable, without waiting for the disk. */
+    public long commit() {
+        try {
+            long seq = ++submittedSeq;
+            queued.signal();
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns once the record with this ticket meets the durability level:
+     * at once for ASYNC, once fsynced otherwise. Throws if the write failed.
+     */
+    public void awaitDurable(long ticket) {
+        if (mode == Durability.ASYNC || durableSeq >= ticket) return;
+        lock.lock();
+        try {
+            while (durableSeq < ticket) {
+                if (failure != null) throw new UncheckedIOException("Log write failed", failure);
+                durable.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Calls done once the record with this ticket meets the durability
+     * level, with null, or with the error if its write failed: right here
+     * for ASYNC or if that's already settled, otherwise on the writer
+     * thread after the fsync, so done must be quick.
+     */
+    public void whenDurable(long ticket, Consumer<IOException> done) {
+        IOException error = null;
+        if (mode != Durability.ASYNC && durableSeq < ticket) {
+            lock.lock();
+            try {
+                if (durableSeq < ticket) {
+                    error = failure;
+                    if (error == null) {
+                        waiters.add(new Waiter(ticket, done));
+                        return;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        done.accept(error);
+    }
+
+    /** The ticket of the last record queued, so 0 before the first. */
+    public long lastTicket() {
+        lock.lock();
+        try {
+            return submittedSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drops a record that failed partway: the buffer goes back to position start. */
+    public void discard(int start) {
+        pending.position(start);
+        lock.unlock();
+    }
+
+    /** Waits until everything queued so far is on disk. */
+    public void flush() {
+        lock.lock();
+        try {
+            awaitDrained();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops new submissions, waits for the queue to reach disk and runs task
+     * while the log is quiet (used to switch log files for compaction).
+     */
+    public void whileQuiet(Runnable task) {
+        lock.lock();
+        try {
+            while (paused) resumed.awaitUninterruptibly();
+            paused = true;
+            try {
+                awaitDrained();
+                task.run();
+            } finally {
+                paused = false;
+                resumed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sends later writes to next. Only for a whileQuiet task, when nothing is queued. */
+    public void switchTo(FileChannel next) {
+        channel = next;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (failure == null) awaitDrained();
+        } finally {
+            closed = true;
+            queued.signal();
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // caller holds lock
+    private void awaitDrained() {
+        long target = submittedSeq;
+        if (syncRequestedSeq < target) syncRequestedSeq = target; // ASYNC: don't wait for the periodic sync
+        queued.signal();
+        while (durableSeq < target) {
+            if (failure != null) throw new UncheckedIOException("Log write failed", failure);
+            durable.awaitUninterruptibly();
+        }
+    }
+
+    private void run() {
+        long lastSync = System.nanoTime();
+        long writtenSeq = 0; // only touched by this thread
+        while (true) {
+            ByteBuffer batch;
+            FileChannel out;
+            long batchSeq;
+            boolean sync;
+            lock.lock();
+            try {
+                // sleep until there is something to write, a flush was asked for,
+                // or written-but-unsynced ASYNC data is due for its periodic sync
+                while (pending.position() == 0 && !closed && syncRequestedSeq <= durableSeq) {
+                    if (writtenSeq > durableSeq) {
+                        long wait = windowNanos - (System.nanoTime() - lastSync);
+                        if (wait <= 0) break;
+                        awaitNanos(wait);
+                    } else {
+                        queued.awaitUninterruptibly();
+                    }
+                }
+                if (closed && pending.position() == 0 && writtenSeq == durableSeq) return;
+                if (mode == Durability.GROUP && pending.position() > 0) {
+                    // keep the batch open for the rest of the window so more records can join
+                    long deadline = System.nanoTime() + windowNanos;
+                    long wait;
+                    while (!closed && (wait = deadline - System.nanoTime()) > 0) awaitNanos(wait);
+                }
+                batch = pending;
+                pending = spare;
+                spare = batch;
+                out = channel;
+                batchSeq = submittedSeq;
+                sync = mode != Durability.ASYNC || closed || syncRequestedSeq > durableSeq
+                        || System.nanoTime() - lastSync >= windowNanos;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) out.write(batch);
+                if (sync) {
+                    out.force(false);
+                    lastSync = System.nanoTime();
+                }
+            } catch (IOException e) {
+                // nothing from here on is durable: fail it all rather than acknowledge it
+                e.printStackTrace();
+                error = e;
+            }
+            if (error == null) writtenSeq = batchSeq;
+
+            List<Consumer<IOException>> due = new ArrayList<>();
+            lock.lock();
+            try {
+                batch.clear();
+                if (error != null) failure = error;
+                else if (sync) durableSeq = writtenSeq;
+                durable.signalAll();
+                while (!waiters.isEmpty() && (error != null || waiters.peek().ticket() <= durableSeq)) {
+                    due.add(waiters.poll().done());
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Consumer<IOException> done : due) {
+                try {
+                    done.accept(error);
+                } catch (RuntimeException e) {
+                    e.printStackTrace(); // one caller's callback mustn't stop the writer
+                }
+            }
+            if (error != null) return;
+        }
+    }
+
+    private record Waiter(long ticket, Consumer<IOException> done) {
+    }
+
+    private void awaitNanos(long nanos) {
+        try {
+            queued.awaitNanos(nanos);
+        } catch (InterruptedException ignored) {
+            // the writer is only stopped through close()
+        }
+    }
+}
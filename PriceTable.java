@@ -0,0 +1,205 @@
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Seat prices by zone. Every seat has a zone ID (a char, so up to 65536
+ * zones) and every zone a price, both in primitive arrays, so pricing a
+ * seat is two array reads with no boxing.
+ *
+ * A PriceTable never changes: each with... method returns a new one,
+ * which ReservationHandler publishes through a volatile field, so readers
+ * never lock and a reservation is priced from one consistent table.
+ * Repricing a zone copies only the zone prices, not the seats.
+ *
+ * Slots can override zone prices (peak showtimes, matinees): an override
+ * replaces a zone's price for that date and time, and zones it doesn't
+ * name keep the base price.
+ */
+public final class PriceTable {
+    static final int MAX_ZONES = 1 << 16;
+
+    private final char[] zoneOfSeat;
+    private final double[] zonePrice;
+    private final Map<LocalDateTime, double[]> slotPrices; // zone prices per slot, NaN: the base price; never modified
+
+    private PriceTable(char[] zoneOfSeat, double[] zonePrice, Map<LocalDateTime, double[]> slotPrices) {
+        this.zoneOfSeat = zoneOfSeat;
+        this.zonePrice = zonePrice;
+        this.slotPrices = slotPrices;
+    }
+
+    /** Every seat in zone 0 at price. */
+    public static PriceTable uniform(int seats, double price) {
+        return new PriceTable(new char[seats], new double[]{price}, Map.of());
+    }
+
+    public int getSeats() { return zoneOfSeat.length; }
+    public int getZones() { return zonePrice.length; }
+
+    // Seats past the end of the table are in zone 0.
+    public int zone(int seat) {
+        return seat >= 0 && seat < zoneOfSeat.length ? zoneOfSeat[seat] : 0;
+    }
+
+    public double zonePrice(int zone) {
+        return zonePrice[zone];
+    }
+
+    public double price(int seat) {
+        return zonePrice[zone(seat)];
+    }
+
+    public double price(LocalDate date, LocalTime time, int seat) {
+        double[] slot = slotPrices.isEmpty() ? null : slotPrices.get(LocalDateTime.of(date, time));
+        int zone = zone(seat);
+        if (slot != null && zone < slot.length && !Double.isNaN(slot[zone])) return slot[zone];
+        return zonePrice[zone];
+    }
+
+    public double total(LocalDate date, LocalTime time, int[] seats) {
+        double[] slot = slotPrices.isEmpty() ? null : slotPrices.get(LocalDateTime.of(date, time));
+        double total = 0;
+        for (int s : seats) {
+            int zone = zone(s);
+            total += slot != null && zone < slot.length && !Double.isNaN(slot[zone]) ? slot[zone] : zonePrice[zone];
+        }
+        return total;
+    }
+
+    /** Reprices every seat in zone; a zone past the last gets created. */
+    public PriceTable withZonePrice(int zone, double price) {
+        checkZone(zone);
+        double[] prices = grownTo(zone);
+        prices[zone] = price;
+        return new PriceTable(zoneOfSeat, prices, slotPrices);
+    }
+
+    /** Moves seats into zone. A new zone starts at zone 0's price. */
+    public PriceTable withZone(int[] seats, int zone) {
+        checkZone(zone);
+        for (int s : seats) checkSeat(s);
+        char[] zones = zoneOfSeat.clone();
+        for (int s : seats) zones[s] = (char) zone;
+        return new PriceTable(zones, grownTo(zone), slotPrices);
+    }
+
+    /**
+     * Prices one seat on its own: the seat moves to a zone of its own (a
+     * free one, see freeZone) unless it's already alone in its zone, so
+     * repricing the zone it was in later won't change it.
+     */
+    public PriceTable withSeatPrice(int seat, double price) {
+        checkSeat(seat);
+        int current = zone(seat);
+        int[] seatsPerZone = new int[zonePrice.length];
+        for (char z : zoneOfSeat) seatsPerZone[z]++;
+        if (seatsPerZone[current] == 1) return withZonePrice(current, price);
+        int zone = freeZone(seatsPerZone, 1);
+        return withZone(new int[]{seat}, zone).withZonePrice(zone, price);
+    }
+
+    /**
+     * Prices many seats in one pass: seats[i] gets prices[i]. The seats
+     * given one price share a zone no other seat is in (a free one, see
+     * freeZone), so this takes one zone per distinct price rather than
+     * one per seat, and repricing the zones they were in won't change them.
+     */
+    public PriceTable withSeatPrices(int[] seats, double[] prices) {
+        for (int s : seats) checkSeat(s);
+        boolean[] repriced = new boolean[zoneOfSeat.length];
+        for (int s : seats) repriced[s] = true;
+        int[] seatsPerZone = new int[zonePrice.length]; // counting only the seats that stay put
+        for (int s = 0; s < zoneOfSeat.length; s++) {
+            if (!repriced[s]) seatsPerZone[zoneOfSeat[s]]++;
+        }
+        char[] zones = zoneOfSeat.clone();
+        double[] zonePrices = zonePrice.clone();
+        Map<Double, Integer> zoneOfPrice = new HashMap<>();
+        int free = 1;
+        for (int i = 0; i < seats.length; i++) {
+            Integer zone = zoneOfPrice.get(prices[i]);
+            if (zone == null) {
+                zone = freeZone(seatsPerZone, free);
+                free = zone + 1;
+                checkZone(zone);
+                if (zone >= zonePrices.length) {
+                    int old = zonePrices.length;
+                    zonePrices = Arrays.copyOf(zonePrices, zone + 1);
+                    Arrays.fill(zonePrices, old, zone, zonePrices[0]); // zones skipped over, see grownTo
+                }
+                zonePrices[zone] = prices[i];
+                zoneOfPrice.put(prices[i], zone);
+            }
+            zones[seats[i]] = (char) (int) zone;
+        }
+        return new PriceTable(zones, zonePrices, slotPrices);
+    }
+
+    /**
+     * The same table for an arrangement of seats seats, with zone 0 at
+     * price. Seats past the old end join zone 0; seats in other zones
+     * (priced on their own, or put there by an admin) keep their zones.
+     */
+    public PriceTable withSeatCount(int seats, double price) {
+        if (seats < 0) throw new IllegalArgumentException("Seat count out of range: " + seats);
+        double[] prices = zonePrice.clone();
+        prices[0] = price;
+        return new PriceTable(Arrays.copyOf(zoneOfSeat, seats), prices, slotPrices);
+    }
+
+    /** Overrides zone's price for one slot only. */
+    public PriceTable withSlotPrice(LocalDate date, LocalTime time, int zone, double price) {
+        checkZone(zone);
+        LocalDateTime key = LocalDateTime.of(date, time);
+        double[] slot = slotPrices.get(key);
+        double[] prices = slot == null ? new double[zone + 1] : Arrays.copyOf(slot, Math.max(slot.length, zone + 1));
+        if (slot == null) Arrays.fill(prices, Double.NaN);
+        else if (zone >= slot.length) Arrays.fill(prices, slot.length, prices.length, Double.NaN);
+        prices[zone] = price;
+        Map<LocalDateTime, double[]> next = new HashMap<>(slotPrices);
+        next.put(key, prices);
+        return new PriceTable(zoneOfSeat, zonePrice, Map.copyOf(next));
+    }
+
+    /** Drops a slot's overrides, back to the base prices. */
+    public PriceTable withoutSlotPrices(LocalDate date, LocalTime time) {
+        LocalDateTime key = LocalDateTime.of(date, time);
+        if (!slotPrices.containsKey(key)) return this;
+        Map<LocalDateTime, double[]> next = new HashMap<>(slotPrices);
+        next.remove(key);
+        return new PriceTable(zoneOfSeat, zonePrice, Map.copyOf(next));
+    }
+
+    // The first zone from zone on that no seat is in and no slot override names: seats moved
+    // into a zone an override names would start paying that override.
+    private int freeZone(int[] seatsPerZone, int zone) {
+        while ((zone < seatsPerZone.length && seatsPerZone[zone] > 0) || overridden(zone)) zone++;
+        return zone;
+    }
+
+    private boolean overridden(int zone) {
+        for (double[] slot : slotPrices.values()) {
+            if (zone < slot.length && !Double.isNaN(slot[zone])) return true;
+        }
+        return false;
+    }
+
+    private double[] grownTo(int zone) {
+        if (zone < zonePrice.length) return zonePrice.clone();
+        double[] prices = Arrays.copyOf(zonePrice, zone + 1);
+        Arrays.fill(prices, zonePrice.length, prices.length, zonePrice[0]);
+        return prices;
+    }
+
+    private static void checkZone(int zone) {
+        if (zone < 0 || zone >= MAX_ZONES) throw new IllegalArgumentException("Zone out of range: " + zone);
+    }
+
+    private void checkSeat(int seat) {
+        if (seat < 0 || seat >= zoneOfSeat.length) throw new IllegalArgumentException("Seat out of range: " + seat);
+    }
+}
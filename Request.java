@@ -5,12 +5,19 @@ public class Request implements Serializable {
 
     private String action;
     private Object payload;
+    // 0: answered in order, one at a time; otherwise may run concurrently and be answered out of order
+    private int id;
 
     public Request(String action, Object payload) {
         this.action = action;
         this.payload = payload;
     }
 
+    public Request(String action, Object payload, int id) {
+        this(action, payload);
+        this.id = id;
+    }
+
     public String getAction() {
         return action;
     }
@@ -18,4 +25,8 @@ public class Request implements Serializable {
     public Object getPayload() {
         return payload;
     }
+
+    public int getId() {
+        return id;
+    }
 }
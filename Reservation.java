@@ -23,6 +23,13 @@ public class Reservation implements Serializable {
         this.totalPrice = totalPrice;
     }
 
+    // Keeps seats instead of copying them: the caller hands the array over and must not change it afterwards.
+    static Reservation adopting(User user, LocalDate date, LocalTime time, int[] seats, double totalPrice) {
+        Reservation r = new Reservation(user, date, time, null, totalPrice);
+        if (seats != null) r.seats = seats;
+        return r;
+    }
+
     public User getUser() {
         return user;
     }
@@ -39,6 +46,11 @@ public class Reservation implements Serializable {
         return Arrays.copyOf(seats, seats.length);
     }
 
+    // the stored array, for the server's own read-only use
+    int[] seats() {
+        return seats;
+    }
+
     // seats as List<Integer>
     public List<Integer> getSeatsAsList() {
         List<Integer> list = new ArrayList<>();
@@ -0,0 +1,296 @@
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamConstants;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Client for the binary protocol (see WireProtocol). The named methods are
+ * blocking and return the same Response objects the object stream protocol
+ * does. callAsync pipelines: it tags each request with an id and doesn't
+ * wait, so many calls can be in flight on one connection and the server
+ * may answer them out of order.
+ *
+ * The blocking methods are meant for one thread at a time; callAsync can be
+ * used from any number of threads. Once callAsync or subscribeSlot has been
+ * used, blocking calls go through it too.
+ *
+ * subscribeSlot listeners run on the reader thread and should return quickly.
+ */
+public class ReservationClient implements Closeable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final SocketChannel channel;
+    private ByteBuffer outBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer inBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Map<Integer, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Map<LocalDateTime, Consumer<SeatEvent>> listeners = new ConcurrentHashMap<>();
+    private volatile Thread reader; // started by the first callAsync, then owns inBuf
+
+    public ReservationClient(String host, int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        ByteBuffer hello = ByteBuffer.allocate(4).putInt(WireProtocol.MAGIC);
+        hello.flip();
+        while (hello.hasRemaining()) channel.write(hello);
+        // the server greets every connection with the object stream header; skip it
+        inBuf.limit(4);
+        while (inBuf.hasRemaining()) {
+            if (channel.read(inBuf) < 0) throw new EOFException();
+        }
+        inBuf.flip();
+        if (inBuf.getInt() != WireProtocol.STREAM_HEADER) throw new IOException("Not a reservation server");
+        // now empty, in read mode
+    }
+
+    public Response createAccount(String username, String password) throws IOException {
+        return call(new Request("createAccount", new String[]{username, password}));
+    }
+
+    public Response login(String username, String password) throws IOException {
+        return call(new Request("login", new String[]{username, password}));
+    }
+
+    public Response makeReservation(String username, LocalDate date, LocalTime time, List<Integer> seats) throws IOException {
+        return call(new Request("makeReservation", new Object[]{username, date, time, new ArrayList<>(seats)}));
+    }
+
+    public Response makeReservationsBatch(String username, List<BatchEntry> entries) throws IOException {
+        return call(new Request("makeReservationsBatch", new Object[]{username, new ArrayList<>(entries)}));
+    }
+
+    // payload: the booked Reservation, with the seats the server picked
+    public Response reserveBestAvailable(String username, LocalDate date, LocalTime time, int count, SeatPreferences prefs) throws IOException {
+        return call(new Request("reserveBestAvailable", new Object[]{username, date, time, count, prefs}));
+    }
+
+    // payload: the Long hold id to confirm or release
+    public Response holdSeats(String username, LocalDate date, LocalTime time, List<Integer> seats, int ttlSeconds) throws IOException {
+        return call(new Request("holdSeats", new Object[]{username, date, time, new ArrayList<>(seats), ttlSeconds}));
+    }
+
+    public Response confirmHold(String username, long holdId) throws IOException {
+        return call(new Request("confirmHold", new Object[]{username, holdId}));
+    }
+
+    public Response releaseHold(String username, long holdId) throws IOException {
+        return call(new Request("releaseHold", new Object[]{username, holdId}));
+    }
+
+    public Response getReservations(LocalDate date, LocalTime time) throws IOException {
+        return call(new Request("getReservations", new Object[]{date, time}));
+    }
+
+    /**
+     * username's reservations from the date from on, a page of at least
+     * limit; ask for the next page from the cursor after the last one
+     * returned (see UserIndex.page).
+     */
+    public Response getReservationsForUser(String username, LocalDate from, int limit) throws IOException {
+        return call(new Request("getReservationsForUser", new Object[]{username, from, limit}));
+    }
+
+    public Response getReservationsForUser(String username, LocalDate date, LocalTime time, int skip, int limit) throws IOException {
+        return call(new Request("getReservationsForUser", new Object[]{username, date, limit, time, skip}));
+    }
+
+    /** Only what changed since version (see SlotDelta); pass the returned version next time. */
+    public Response getReservationsSince(LocalDate date, LocalTime time, long version) throws IOException {
+        return call(new Request("getReservationsSince", new Object[]{date, time, version}));
+    }
+
+    /**
+     * Has the server push every later change to the slot to listener. The
+     * response carries the slot's current reservations to start from; on a
+     * RESYNC event, fetch them again with getReservations.
+     */
+    public Response subscribeSlot(LocalDate date, LocalTime time, Consumer<SeatEvent> listener) throws IOException {
+        listeners.put(LocalDateTime.of(date, time), listener);
+        startReader(); // events arrive between responses, so something has to be reading
+        Response res = call(new Request("subscribeSlot", new Object[]{date, time}));
+        if (!res.isSuccess()) listeners.remove(LocalDateTime.of(date, time));
+        return res;
+    }
+
+    public Response unsubscribeSlot(LocalDate date, LocalTime time) throws IOException {
+        Response res = call(new Request("unsubscribeSlot", new Object[]{date, time}));
+        listeners.remove(LocalDateTime.of(date, time));
+        return res;
+    }
+
+    public Response cancelReservation(String username, LocalDate date, LocalTime time, List<Integer> seats) throws IOException {
+        return call(new Request("cancelReservation", new Object[]{username, date, time, new ArrayList<>(seats)}));
+    }
+
+    public Response cancelAll(LocalDate date, LocalTime time) throws IOException {
+        return call(new Request("cancelAll", new Object[]{date, time}));
+    }
+
+    public Response validateAdmin(String key) throws IOException {
+        return call(new Request("validateAdmin", key));
+    }
+
+    public Response setHours(LocalTime open, LocalTime close) throws IOException {
+        return call(new Request("setHours", new Object[]{open, close}));
+    }
+
+    public Response setSeating(int rows, int cols) throws IOException {
+        return call(new Request("setSeating", new Object[]{rows, cols}));
+    }
+
+    public Response setSeatPrice(int seat, double price) throws IOException {
+        return call(new Request("setSeatPrice", new Object[]{seat, price}));
+    }
+
+    // admin only; payload: the server's metrics report as text
+    public Response stats(String adminKey) throws IOException {
+        return call(new Request("stats", adminKey));
+    }
+
+    /** Sends one request and waits for its response. */
+    public Response call(Request req) throws IOException {
+        if (reader != null) return await(callAsync(req));
+        send(req);
+        return readResponse();
+    }
+
+    /** Sends req under a fresh id without waiting; the future completes when its response arrives. */
+    public CompletableFuture<Response> callAsync(Request req) throws IOException {
+        int id;
+        do {
+            id = nextId.incrementAndGet();
+        } while (id == 0); // 0 means "no id"
+        CompletableFuture<Response> f = new CompletableFuture<>();
+        pending.put(id, f);
+        startReader();
+        try {
+            send(new Request(req.getAction(), req.getPayload(), id));
+        } catch (IOException e) {
+            pending.remove(id);
+            throw e;
+        }
+        return f;
+    }
+
+    private void send(Request req) throws IOException {
+        writeLock.lock();
+        try {
+            outBuf.clear();
+            outBuf = WireProtocol.encodeRequest(outBuf, req);
+            outBuf.flip();
+            while (outBuf.hasRemaining()) channel.write(outBuf);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void startReader() {
+        if (reader != null) return;
+        writeLock.lock();
+        try {
+            if (reader != null) return;
+            Thread t = new Thread(this::readResponses, "reservation-client-reader");
+            t.setDaemon(true);
+            t.start();
+            reader = t;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Completes pending calls as their responses arrive, in whatever order that is.
+    private void readResponses() {
+        try {
+            while (true) {
+                Response res = readResponse();
+                if (res.getPayload() instanceof SeatEvent e) {
+                    Consumer<SeatEvent> listener = listeners.get(LocalDateTime.of(e.getDate(), e.getTime()));
+                    try {
+                        if (listener != null) listener.accept(e);
+                    } catch (RuntimeException bad) {
+                        bad.printStackTrace(); // a broken listener mustn't take the connection down
+                    }
+                    continue;
+                }
+                if (res.getId() == 0) {
+                    // only the refusal of a connection the server had no room for comes without an id
+                    for (Integer id : pending.keySet()) {
+                        CompletableFuture<Response> f = pending.remove(id);
+                        if (f != null) f.complete(res);
+                    }
+                    continue;
+                }
+                CompletableFuture<Response> f = pending.remove(res.getId());
+                if (f != null) f.complete(res);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Integer id : pending.keySet()) {
+                CompletableFuture<Response> f = pending.remove(id);
+                if (f != null) f.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * The next response. A connection the server had no room for gets one
+     * busy Response as an object stream instead of a frame; it starts with
+     * TC_OBJECT, a byte no frame starts with (see WireProtocol).
+     */
+    private Response readResponse() throws IOException {
+        if (!inBuf.hasRemaining()) {
+            inBuf.clear();
+            if (channel.read(inBuf) < 0) throw new EOFException();
+            inBuf.flip();
+        }
+        if (inBuf.get(inBuf.position()) != ObjectStreamConstants.TC_OBJECT) {
+            inBuf = WireProtocol.readFrame(channel, inBuf);
+            return WireProtocol.decodeResponse(inBuf);
+        }
+        byte[] rest = new byte[4 + inBuf.remaining()];
+        ByteBuffer.wrap(rest).putInt(WireProtocol.STREAM_HEADER).put(inBuf);
+        InputStream in = new SequenceInputStream(new ByteArrayInputStream(rest), Channels.newInputStream(channel));
+        try {
+            return (Response) new ObjectInputStream(in).readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Unreadable refusal", e);
+        }
+    }
+
+    private static Response await(CompletableFuture<Response> f) throws IOException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -1,54 +1,230 @@
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntToLongFunction;
+import java.util.function.ToDoubleFunction;
 
 public class ReservationDatabase {
     private Map<String, User> users; // username -> User
-    private List<Reservation> reservations;
-    private final String USER_FILE = "users.dat";
-    private final String RESERVATION_FILE = "reservations.dat";
+    private Map<LocalDate, Map<LocalTime, Slot>> slots; // (date, time) -> reservations for that slot
+    private final UserIndex userIndex = new UserIndex(); // username -> that user's reservations, kept by the slots
+    // directory holding the files below; read per database, so benchmarks can give each one a fresh directory
+    // and each shard of a ShardedEngine has its own
+    private final String DATA_DIR;
+    private final String SNAPSHOT_FILE;
+    // pre-snapshot Java serialization files, only read if there is no snapshot yet
+    private final String USER_FILE;
+    private final String RESERVATION_FILE;
+    private final String LOG_FILE;
+    // log records written before the snapshot is rewritten and the log emptied
+    private static final int COMPACT_EVERY = Integer.getInteger("reservation.compactEvery", 1000);
+    // how long a booking waits for the disk: sync (default), group or async
+    private static final String DURABILITY = System.getProperty("reservation.durability", "sync");
+    private static final long GROUP_COMMIT_MS = Long.getLong("reservation.groupCommitMs", 2);
+    // "mmap" keeps seat occupancy in SEAT_STATE_FILE so availability is served right after a restart
+    private static final String SEAT_STATE = System.getProperty("reservation.seatState", "heap");
+    private final String SEAT_STATE_FILE;
+    private static final int SEAT_STATE_SLOTS = Integer.getInteger("reservation.seatState.slots", 4096);
+    private static final int SEAT_STATE_SEATS = Integer.getInteger("reservation.seatState.seats", 1024);
+
+    // lock order for operations that hold several slots at once
+    private static final Comparator<Slot> SLOT_ORDER = Comparator.comparing(Slot::getDate).thenComparing(Slot::getTime);
+
+    private final ReservationLog log;
+    private volatile RuntimeException loadFailure; // why load() failed; awaitReady rethrows it
+    private final Metrics metrics; // slot lock waits and log append times
+    private final boolean waitForDisk; // false for a shard, whose thread mustn't wait on the log
+    // changes are published while their slot is locked, so each slot's subscribers see them in order
+    private final SlotEvents events = new SlotEvents();
+    private SeatStateFile seatState; // null unless SEAT_STATE is "mmap"
+    // Holds live only in memory: a restart drops them, like a hold that expired.
+    private final Map<Long, Hold> holds = new ConcurrentHashMap<>();
+    private final AtomicLong lastHoldId = new AtomicLong();
+    private final TimingWheel holdExpiry = new TimingWheel(100, 512, "hold-expiry"); // 100 ms ticks, 51 s a lap
+    private volatile Executor expireOn = Runnable::run; // runs expired holds' drop; the wheel thread unless set
+    // counted down once the snapshot and log are loaded; changes and user lookups wait for it
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "reservation-log-compactor");
+        t.setDaemon(true);
+        return t;
+    });
 
     public ReservationDatabase() {
-        users = loadUsers();
-        reservations = loadReservations();
+        this(new Metrics());
+    }
+
+    public ReservationDatabase(Metrics metrics) {
+        this(metrics, System.getProperty("reservation.dataDir", "."));
+    }
+
+    public ReservationDatabase(Metrics metrics, String dataDir) {
+        this(metrics, dataDir, true);
+    }
+
+    // waitForDisk false: changes return once logged, and callers wait through whenDurable or awaitDurable instead
+    ReservationDatabase(Metrics metrics, String dataDir, boolean waitForDisk) {
+        // a ShardedEngine's data: its slots are in the shard-i directories, and this would start empty beside them
+        if (new File(dataDir, "shards").exists()) {
+            throw new IllegalStateException(dataDir + " holds sharded data"
+                    + " (set reservation.engine=sharded, or use another reservation.dataDir)");
+        }
+        this.metrics = metrics;
+        this.waitForDisk = waitForDisk;
+        DATA_DIR = dataDir;
+        SNAPSHOT_FILE = new File(DATA_DIR, "reservations.snapshot").getPath();
+        USER_FILE = new File(DATA_DIR, "users.dat").getPath();
+        RESERVATION_FILE = new File(DATA_DIR, "reservations.dat").getPath();
+        LOG_FILE = new File(DATA_DIR, "reservations.log").getPath();
+        SEAT_STATE_FILE = new File(DATA_DIR, "seatstate.map").getPath();
+        users = new ConcurrentHashMap<>();
+        slots = new ConcurrentHashMap<>();
+        // a bad reservation.durability or an unopenable log fails here, not on the first booking
+        try {
+            log = new ReservationLog(LOG_FILE, PersistenceWriter.Durability.parse(DURABILITY), GROUP_COMMIT_MS,
+                    metrics.getPersistence());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't open " + LOG_FILE, e);
+        }
+        if ("mmap".equalsIgnoreCase(SEAT_STATE)) {
+            try {
+                seatState = new SeatStateFile(SEAT_STATE_FILE, SEAT_STATE_SLOTS, SEAT_STATE_SEATS);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (seatState == null) {
+            load();
+            if (loadFailure != null) throw loadFailure;
+            return;
+        }
+        // Slots already in the mapped file answer availability now; the records load behind them.
+        for (Map.Entry<LocalDate, Map<LocalTime, Integer>> day : seatState.getDirectory().entrySet()) {
+            for (LocalTime time : day.getValue().keySet()) slotFor(day.getKey(), time);
+        }
+        Thread warmup = new Thread(this::load, "reservation-warmup");
+        warmup.setDaemon(true);
+        warmup.start();
+    }
+
+    // On failure ready still counts down, and loadFailure makes every later awaitReady throw instead of hang.
+    private void load() {
+        boolean legacy;
+        try {
+            legacy = !new File(SNAPSHOT_FILE).exists()
+                    && (new File(USER_FILE).exists() || new File(RESERVATION_FILE).exists());
+            if (legacy) {
+                users.putAll(loadUsers());
+                for (Reservation r : loadReservations()) slotFor(r.getDate(), r.getTime()).add(r);
+            } else if (new File(SNAPSHOT_FILE).exists()) {
+                loadSnapshot();
+            }
+            log.replay(new Replayer());
+            if (seatState != null) {
+                // the mapped file isn't fsynced, so trust the log over whatever survived a crash
+                for (Map<LocalTime, Slot> day : slots.values()) {
+                    for (Slot slot : day.values()) slot.resyncOccupancy();
+                }
+            }
+        } catch (IOException e) {
+            loadFailure = new UncheckedIOException("Can't replay " + LOG_FILE, e);
+            return;
+        } catch (RuntimeException e) {
+            loadFailure = e;
+            return;
+        } finally {
+            ready.countDown();
+        }
+        if (legacy) compact(); // rewrite old .dat data in the snapshot format once
+    }
+
+    private void awaitReady() {
+        while (ready.getCount() > 0) {
+            try {
+                ready.await();
+            } catch (InterruptedException ignored) {
+                // keep waiting, callers have no way to handle a half-loaded database
+            }
+        }
+        if (loadFailure != null) throw new IllegalStateException("Reservation data failed to load", loadFailure);
+    }
+
+    public boolean isReady() {
+        return ready.getCount() == 0;
     }
 
     // User Management
     public boolean addUser(User user) {
-        if (users.containsKey(user.getUsername())) return false;
-        users.put(user.getUsername(), user);
-        saveUsers();
+        awaitReady();
+        log.checkWritable();
+        if (users.putIfAbsent(user.getUsername(), user) != null) return false;
+        durable(log.createUser(user));
         return true;
     }
 
     public User getUser(String username) {
+        awaitReady();
         return users.get(username);
     }
 
     public boolean removeUser(String username) {
-        if (!users.containsKey(username)) return false;
-        users.remove(username);
-        saveUsers();
-        // Also remove reservations for this user
-        reservations.removeIf(r -> r.getUser().getUsername().equals(username));
-        saveReservations();
+        awaitReady();
+        log.checkWritable();
+        if (users.remove(username) == null) return false;
+        // Also remove reservations for this user; replaying the record does the same
+        removeOwnedBy(username);
+        durable(log.deleteUser(username));
         return true;
     }
 
+    // Removes every reservation username has, visiting only the slots they booked in. Their list
+    // is dropped first, so the slots' removals don't each search and shift it. The list is in date
+    // and time order, so each slot's reservations come together: that slot is locked once and its
+    // subscribers get one FREE event with all of them.
+    private void removeOwnedBy(String username) {
+        List<Reservation> owned = userIndex.drop(username);
+        for (int i = 0, next; i < owned.size(); i = next) {
+            Reservation first = owned.get(i);
+            next = i + 1;
+            while (next < owned.size() && owned.get(next).getDate().equals(first.getDate())
+                    && owned.get(next).getTime().equals(first.getTime())) next++;
+            Slot slot = getSlot(first.getDate(), first.getTime());
+            if (slot == null) continue;
+            List<Reservation> inSlot = owned.subList(i, next);
+            acquire(slot);
+            try {
+                for (Reservation r : inSlot) slot.remove(username, r.seats());
+                if (events.hasSubscribers(first.getDate(), first.getTime())) {
+                    int[] freed = inSlot.stream().flatMapToInt(r -> Arrays.stream(r.seats())).toArray();
+                    events.publish(first.getDate(), first.getTime(), SeatEvent.State.FREE, freed, username);
+                }
+            } finally {
+                slot.unlock();
+            }
+        }
+    }
+
     public boolean validateLogin(String username, String password) {
+        awaitReady();
         User user = users.get(username);
         return user != null && user.getPassword().equals(password);
     }
 
-    private void saveUsers() {
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(USER_FILE))) {
-            out.writeObject(users);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
     @SuppressWarnings("unchecked")
     private Map<String, User> loadUsers() {
         File f = new File(USER_FILE);
@@ -62,34 +238,490 @@ public class ReservationDatabase {
     }
 
     //Reservations
+    // Each change is logged while its slot is still locked, so the log keeps per-slot order;
+    // waiting for the disk comes after the slot is unlocked.
     public boolean addReservation(Reservation r) {
-        reservations.add(r);
-        saveReservations();
+        awaitReady();
+        if (!ReservationLog.fitsOneRecord(r)) return false;
+        Slot slot = slotFor(r.getDate(), r.getTime());
+        long ticket;
+        lock(slot);
+        try {
+            slot.add(r);
+            ticket = log.reserve(r);
+            published(r, SeatEvent.State.RESERVED);
+        } finally {
+            slot.unlock();
+        }
+        durable(ticket);
+        return true;
+    }
+
+    // Atomically adds r if none of its seats are taken in its slot or present in locked.
+    public boolean addReservationIfFree(Reservation r, SeatBitmap locked) {
+        awaitReady();
+        if (!ReservationLog.fitsOneRecord(r)) return false;
+        Slot slot = slotFor(r.getDate(), r.getTime());
+        long ticket;
+        lock(slot);
+        try {
+            if (!slot.addIfFree(r, locked)) return false;
+            ticket = log.reserve(r);
+            published(r, SeatEvent.State.RESERVED);
+        } finally {
+            slot.unlock();
+        }
+        durable(ticket);
+        return true;
+    }
+
+    /**
+     * All-or-nothing addReservationIfFree for reservations in any number of
+     * slots: either every one is free and all are added, or nothing changes.
+     * The slots are locked in (date, time) order so two batches can't
+     * deadlock, and the whole batch is a single log record; a batch too big
+     * for one is refused before anything is locked.
+     */
+    public boolean addReservationsIfFree(List<Reservation> batch, SeatBitmap locked) {
+        awaitReady();
+        if (batch.isEmpty() || !ReservationLog.fitsOneRecord(batch)) return false;
+        Map<Slot, SeatBitmap> taken = new TreeMap<>(SLOT_ORDER); // per slot: locked seats plus earlier entries
+        List<Slot> target = new ArrayList<>(batch.size());
+        for (Reservation r : batch) {
+            Slot slot = slotFor(r.getDate(), r.getTime());
+            target.add(slot);
+            taken.putIfAbsent(slot, locked);
+        }
+        long ticket;
+        List<Slot> held = new ArrayList<>(taken.size());
+        try {
+            for (Slot slot : taken.keySet()) {
+                lock(slot);
+                held.add(slot);
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                Slot slot = target.get(i);
+                int[] seats = batch.get(i).seats();
+                SeatBitmap busy = taken.get(slot);
+                if (!slot.isFree(SeatBitmap.of(seats), busy) || !slot.canHold(seats)) return false;
+                busy = busy.copy();
+                busy.setAll(seats);
+                taken.put(slot, busy);
+            }
+            for (int i = 0; i < batch.size(); i++) target.get(i).add(batch.get(i));
+            ticket = log.reserveAll(batch);
+            for (Reservation r : batch) published(r, SeatEvent.State.RESERVED);
+        } finally {
+            for (int i = held.size() - 1; i >= 0; i--) held.get(i).unlock();
+        }
+        durable(ticket);
         return true;
     }
 
     public boolean removeReservation(Reservation r) {
-        boolean removed = reservations.remove(r);
-        if (removed) saveReservations();
-        return removed;
+        return removeReservation(r.getUser().getUsername(), r.getDate(), r.getTime(), r.seats()) != null;
+    }
+
+    // Cancels username's reservation of exactly these seats; returns the record it removed, or null if there's none.
+    public Reservation removeReservation(String username, LocalDate date, LocalTime time, int[] seats) {
+        awaitReady();
+        Slot slot = getSlot(date, time);
+        if (slot == null) return null;
+        Reservation stored;
+        long ticket;
+        lock(slot);
+        try {
+            stored = slot.remove(username, seats);
+            if (stored == null) return null;
+            ticket = log.cancel(stored);
+            published(stored, SeatEvent.State.FREE);
+        } finally {
+            slot.unlock();
+        }
+        durable(ticket);
+        return stored;
+    }
+
+    public boolean removeAllReservations(LocalDate date, LocalTime time) {
+        awaitReady();
+        Slot slot = getSlot(date, time);
+        if (slot == null) return false;
+        long ticket;
+        lock(slot);
+        try {
+            int[] freed = events.hasSubscribers(date, time) ? occupiedSeats(slot) : null;
+            if (!slot.clear()) return false;
+            ticket = log.clearSlot(date, time);
+            if (freed != null) events.publish(date, time, SeatEvent.State.FREE, freed, null);
+        } finally {
+            slot.unlock();
+        }
+        durable(ticket);
+        return true;
+    }
+
+    /**
+     * Books the seats choose picks, deciding and booking under the slot lock
+     * so no other booking can take them in between. choose gets the slot's
+     * busy seats a word at a time (taken, held or in excluded) and returns
+     * null if nothing fits; price prices what it picked.
+     */
+    public Reservation addChosenReservation(User user, LocalDate date, LocalTime time, SeatBitmap excluded,
+                                            Function<IntToLongFunction, int[]> choose, ToDoubleFunction<int[]> price) {
+        awaitReady();
+        Slot slot = slotFor(date, time);
+        Reservation r;
+        long ticket;
+        lock(slot);
+        try {
+            int[] seats = choose.apply(i -> slot.busyWord(i, excluded));
+            if (seats == null || !slot.canHold(seats)) return null;
+            r = new Reservation(user, date, time, seats, price.applyAsDouble(seats));
+            if (!ReservationLog.fitsOneRecord(r)) return null;
+            slot.add(r);
+            ticket = log.reserve(r);
+            published(r, SeatEvent.State.RESERVED);
+        } finally {
+            slot.unlock();
+        }
+        durable(ticket);
+        return r;
+    }
+
+    /**
+     * Holds the seats for user until ttlMillis pass or the hold is confirmed
+     * or released. Nobody can book or hold a held seat meanwhile. Returns
+     * the hold id, or 0 if a seat is taken, held or present in locked.
+     */
+    public long holdSeats(User user, LocalDate date, LocalTime time, int[] seats, double totalPrice,
+                          SeatBitmap locked, long ttlMillis) {
+        awaitReady();
+        Slot slot = slotFor(date, time);
+        lock(slot);
+        try {
+            Reservation r = new Reservation(user, date, time, seats, totalPrice);
+            if (!ReservationLog.fitsOneRecord(r)) return 0; // confirming it couldn't be logged
+            if (!slot.isFree(SeatBitmap.of(seats), locked) || !slot.canHold(seats)) return 0;
+            slot.hold(seats);
+            Hold h = new Hold(lastHoldId.incrementAndGet(), r);
+            holds.put(h.id, h);
+            h.expiry = holdExpiry.schedule(() -> expireOn.execute(() -> drop(h)), ttlMillis);
+            events.publish(date, time, SeatEvent.State.HELD, seats, user.getUsername());
+            return h.id;
+        } finally {
+            slot.unlock();
+        }
+    }
+
+    // Turns username's hold into a reservation; null if it expired, was released or isn't theirs,
+    // or if an admin locked one of its seats after it was taken.
+    public Reservation confirmHold(String username, long holdId, SeatBitmap locked) {
+        Hold h = holds.get(holdId);
+        if (h == null || !h.owner().equals(username)) return null;
+        Reservation r = h.reservation;
+        Slot slot = slotFor(r.getDate(), r.getTime());
+        long ticket;
+        lock(slot);
+        try {
+            if (!holds.remove(holdId, h)) return null; // expired meanwhile
+            h.expiry.cancel();
+            slot.releaseHold(r.seats());
+            if (!slot.addIfFree(r, locked)) {
+                events.publish(r.getDate(), r.getTime(), SeatEvent.State.FREE, r.seats(), username);
+                return null;
+            }
+            ticket = log.reserve(r);
+            published(r, SeatEvent.State.RESERVED);
+        } finally {
+            slot.unlock();
+        }
+        durable(ticket);
+        return r;
+    }
+
+    public boolean releaseHold(String username, long holdId) {
+        Hold h = holds.get(holdId);
+        return h != null && h.owner().equals(username) && drop(h);
+    }
+
+    // Has expired holds let go on executor instead of the wheel thread, e.g. on a shard's own thread.
+    public void expireHoldsOn(Executor executor) {
+        expireOn = executor;
+    }
+
+    public int getHoldCount() {
+        return holds.size();
+    }
+
+    // Frees the hold's seats unless it was confirmed, released or expired already.
+    private boolean drop(Hold h) {
+        Reservation r = h.reservation;
+        Slot slot = slotFor(r.getDate(), r.getTime());
+        acquire(slot); // nothing to log, so this works even once the log has failed
+        try {
+            if (!holds.remove(h.id, h)) return false;
+            h.expiry.cancel();
+            slot.releaseHold(r.seats());
+            published(r, SeatEvent.State.FREE);
+            return true;
+        } finally {
+            slot.unlock();
+        }
     }
 
+    // Read-only view of the slot's reservations; empty if nothing was ever booked there.
+    // While a mapped seat state is still loading, reservations are rebuilt from seat ownership instead.
     public List<Reservation> getReservationsForSlot(LocalDate date, LocalTime time) {
-        List<Reservation> result = new ArrayList<>();
-        for (Reservation r : reservations) {
-            if (r.getDate().equals(date) && r.getTime().equals(time)) result.add(r);
+        if (!isReady() && seatState != null) return seatState.reservationsFor(date, time);
+        Slot slot = getSlot(date, time);
+        return slot == null ? Collections.emptyList() : slot.getReservations();
+    }
+
+    // 0 while a mapped seat state is still loading (nothing is versioned yet).
+    public long getSlotVersion(LocalDate date, LocalTime time) {
+        if (!isReady() && seatState != null) return 0;
+        Slot slot = getSlot(date, time);
+        return slot == null ? Slot.FIRST_VERSION : slot.getVersion();
+    }
+
+    // What changed in the slot after the version a reader last saw; see Slot.changesSince.
+    public SlotDelta getChangesSince(LocalDate date, LocalTime time, long since) {
+        // provisional mapped-file reservations have no version, so the next read gets the full slot again
+        if (!isReady() && seatState != null) return SlotDelta.full(0, seatState.reservationsFor(date, time));
+        Slot slot = getSlot(date, time);
+        if (slot == null) {
+            // a slot created later starts from FIRST_VERSION, so this stays a valid starting point
+            return since == Slot.FIRST_VERSION ? SlotDelta.unchanged(since) : SlotDelta.full(Slot.FIRST_VERSION, List.of());
+        }
+        return slot.changesSince(since);
+    }
+
+    /**
+     * username's reservations from the date from on, in date and time order,
+     * a page at a time; see UserIndex.page. Costs the same however many
+     * other users and slots there are.
+     */
+    public List<Reservation> getReservationsForUser(String username, LocalDate from, int limit) {
+        awaitReady();
+        return userIndex.page(username, from, limit);
+    }
+
+    // The same from a cursor, for a page that ended partway through a day
+    public List<Reservation> getReservationsForUser(String username, LocalDate date, LocalTime time, int skip, int limit) {
+        awaitReady();
+        return userIndex.page(username, date, time, skip, limit);
+    }
+
+    public SlotEvents getEvents() {
+        return events;
+    }
+
+    private void published(Reservation r, SeatEvent.State state) {
+        events.publish(r.getDate(), r.getTime(), state, r.seats(), r.getUser().getUsername());
+    }
+
+    private static int[] occupiedSeats(Slot slot) {
+        return slot.getReservations().stream().flatMapToInt(r -> Arrays.stream(r.seats())).toArray();
+    }
+
+    public Slot getSlot(LocalDate date, LocalTime time) {
+        Map<LocalTime, Slot> day = slots.get(date);
+        return day == null ? null : day.get(time);
+    }
+
+    private Slot slotFor(LocalDate date, LocalTime time) {
+        Map<LocalTime, Slot> day = slots.computeIfAbsent(date, d -> new ConcurrentHashMap<>());
+        Slot slot = day.get(time);
+        if (slot != null) return slot;
+        // built outside computeIfAbsent: in mmap mode newSlot can wait on the seat state file's lock,
+        // and waiting inside the map's bin monitor would pin a virtual thread's carrier
+        Slot created = newSlot(date, time);
+        slot = day.putIfAbsent(time, created);
+        return slot != null ? slot : created;
+    }
+
+    private Slot newSlot(LocalDate date, LocalTime time) {
+        SeatOccupancy mapped = seatState == null ? null : seatState.occupancy(date, time);
+        // a full seat state file falls back to on-heap occupancy for new slots
+        return new Slot(date, time, mapped == null ? new Slot.HeapOccupancy() : mapped, userIndex);
+    }
+
+    // Persistence
+    // Streams every user and reservation into a new snapshot; only called from compact().
+    // The snapshot is on disk, and in place under its name, before this returns, so the log can go.
+    private void saveSnapshot() throws IOException {
+        Path tmp = Paths.get(SNAPSHOT_FILE + ".tmp");
+        try (SnapshotWriter out = new SnapshotWriter(Files.newOutputStream(tmp))) {
+            for (User u : users.values()) out.writeUser(u);
+            for (Map<LocalTime, Slot> day : slots.values()) {
+                for (Slot slot : day.values()) {
+                    for (Reservation r : slot.getReservations()) {
+                        // the owner may have been deleted while we were writing
+                        if (!out.hasUser(r.getUser().getUsername())) out.writeUser(r.getUser());
+                        out.writeReservation(r);
+                    }
+                }
+            }
+        }
+        try (FileChannel written = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            written.force(true);
+        }
+        Path target = Paths.get(SNAPSHOT_FILE);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        ReservationLog.syncDirectory(target.toAbsolutePath().getParent());
+    }
+
+    private void loadSnapshot() {
+        try (SnapshotReader in = new SnapshotReader(new FileInputStream(SNAPSHOT_FILE))) {
+            in.read(new SnapshotReader.Sink() {
+                public void user(User user) {
+                    users.put(user.getUsername(), user);
+                }
+
+                public void reservation(Reservation r) {
+                    slotFor(r.getDate(), r.getTime()).add(r);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Takes the slot's lock, recording how long that took; an uncontended lock costs no clock reads.
+    // Refuses before the slot changes once the log can't record the change (see PersistenceWriter).
+    private void lock(Slot slot) {
+        log.checkWritable();
+        acquire(slot);
+    }
+
+    private void acquire(Slot slot) {
+        if (slot.tryLock()) {
+            metrics.getLockWait().record(0);
+            return;
+        }
+        long start = System.nanoTime();
+        slot.lock();
+        metrics.getLockWait().recordSince(start);
+    }
+
+    // Waits, with no slot locked, until the change's record is as durable as reservation.durability asks;
+    // changes queued meanwhile, to this slot too, share the same write and fsync.
+    private void durable(long ticket) {
+        if (waitForDisk) log.awaitDurable(ticket);
+        logged(log.getRecordsSinceSnapshot());
+    }
+
+    // Calls done once every change made so far is as durable as reservation.durability asks (with null),
+    // or their write failed (with the error), without waiting here.
+    public void whenDurable(Consumer<IOException> done) {
+        awaitReady();
+        log.whenDurable(log.lastTicket(), done);
+    }
+
+    private void logged(int recordsSinceSnapshot) {
+        if (recordsSinceSnapshot >= COMPACT_EVERY && compacting.compareAndSet(false, true)) {
+            compactor.execute(() -> {
+                try {
+                    compact();
+                } finally {
+                    compacting.set(false);
+                }
+            });
         }
-        return result;
     }
 
-    private void saveReservations() {
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(RESERVATION_FILE))) {
-            out.writeObject(reservations);
+    // Waits until every change made so far is on disk (relevant in async mode).
+    public void flush() {
+        awaitReady();
+        log.flush();
+    }
+
+    // Stops hold expiry and compaction and closes the log once what it holds is written, so
+    // another database can open the same directory. Changes made after this fail; closing again does nothing.
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        try {
+            awaitReady();
+        } catch (IllegalStateException failed) {
+            // nothing loaded, nothing more to write
+        }
+        holdExpiry.close();
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            log.close();
+            if (seatState != null) seatState.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    // Folds the log into a fresh snapshot and empties it.
+    public void compact() {
+        awaitReady();
+        try {
+            log.compact(() -> {
+                try {
+                    saveSnapshot();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Seats held for a user: the reservation confirming it would make, and its expiry. */
+    private static final class Hold {
+        final long id;
+        final Reservation reservation;
+        volatile TimingWheel.Timeout expiry;
+
+        Hold(long id, Reservation reservation) {
+            this.id = id;
+            this.reservation = reservation;
+        }
+
+        String owner() { return reservation.getUser().getUsername(); }
+    }
+
+    // Applies log records on startup. Every step is idempotent since a record may
+    // also be reflected in the snapshot it follows.
+    private class Replayer implements ReservationLog.Replay {
+        public void reserve(String username, LocalDate date, LocalTime time, int[] seats, double totalPrice) {
+            User user = users.get(username);
+            if (user == null) return;
+            Slot slot = slotFor(date, time);
+            if (!slot.contains(username, seats)) slot.add(Reservation.adopting(user, date, time, seats, totalPrice));
+        }
+
+        public void cancel(String username, LocalDate date, LocalTime time, int[] seats) {
+            Slot slot = getSlot(date, time);
+            if (slot != null) slot.remove(username, seats);
+        }
+
+        public void clearSlot(LocalDate date, LocalTime time) {
+            Slot slot = getSlot(date, time);
+            if (slot != null) slot.clear();
+        }
+
+        public void createUser(String username, String password, boolean admin) {
+            User user = new User(username, password);
+            user.setAdmin(admin);
+            users.putIfAbsent(username, user);
+        }
+
+        public void deleteUser(String username) {
+            if (users.remove(username) == null) return;
+            removeOwnedBy(username);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private List<Reservation> loadReservations() {
         File f = new File(RESERVATION_FILE);
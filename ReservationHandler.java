@@ -1,22 +1,47 @@
+import java.io.IOException;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class ReservationHandler implements ReservationManager, AdminControls, UserManager {
     private final ReservationDatabase db;
-    private int TOTAL_SEATS = 50; // seats per time slot
-    private final Map<Integer, Double> seatPrices; // seatIndex -> price
-    private final Set<Integer> lockedSeats; // seats locked by admin
-    private LocalTime openingTime = LocalTime.of(18, 0);
-    private LocalTime closingTime = LocalTime.of(22, 0);
+    private volatile int TOTAL_SEATS = 50; // seats per time slot
+    private volatile int seatCols = 10; // seats per row; seat index = row * seatCols + col
+    private volatile PriceTable prices; // replaced (never modified), like lockedSeats
+    // seats locked by admin; replaced (never modified) so bookings can read it without locking
+    private volatile SeatBitmap lockedSeats;
+    private volatile LocalTime openingTime = LocalTime.of(18, 0);
+    private volatile LocalTime closingTime = LocalTime.of(22, 0);
 
     private final String ADMIN_KEY = "admin123";
+    private static final double DEFAULT_PRICE = 10.0; // $10
+    static final int MAX_HOLD_SECONDS = 900;
+    static final int MAX_PAGE = 1000; // reservations per getReservationsForUser page
+    // memory for pre-encoded getReservations answers; 0 turns the cache off
+    private static final long CACHE_BYTES = Long.getLong("reservation.cache.bytes", 8 << 20);
+    private final ResponseCache responseCache = CACHE_BYTES > 0 ? new ResponseCache(CACHE_BYTES) : null;
+    private final Metrics metrics;
 
     public ReservationHandler() {
-        db = new ReservationDatabase();
-        seatPrices = new HashMap<>();
-        lockedSeats = new HashSet<>();
-        for (int i = 0; i < TOTAL_SEATS; i++) seatPrices.put(i, 10.0); // default $10
+        this(System.getProperty("reservation.dataDir", "."), new Metrics());
+        if (responseCache != null) metrics.addSection("cache", responseCache::toString);
+        metrics.addSection("holds", db::getHoldCount);
+    }
+
+    ReservationHandler(String dataDir, Metrics metrics) {
+        this(dataDir, metrics, true);
+    }
+
+    // One shard of a ShardedEngine: its data lives in dataDir, its timings go to the engine's metrics, and with
+    // waitForDisk false its changes return before their log records are durable (see whenDurable).
+    ReservationHandler(String dataDir, Metrics metrics, boolean waitForDisk) {
+        this.metrics = metrics;
+        db = new ReservationDatabase(metrics, dataDir, waitForDisk);
+        lockedSeats = new SeatBitmap(TOTAL_SEATS);
+        prices = PriceTable.uniform(TOTAL_SEATS, DEFAULT_PRICE);
     }
 
     // User Management
@@ -29,8 +54,11 @@ public class ReservationHandler implements ReservationManager, AdminControls, Us
     }
 
     public boolean deleteAccount(String username, String password) {
-        if (login(username, password)) return db.removeUser(username);
-        return false;
+        if (!login(username, password)) return false;
+        List<Reservation> booked = db.getReservationsForUser(username, LocalDate.MIN, Integer.MAX_VALUE);
+        if (!db.removeUser(username)) return false;
+        for (Reservation r : booked) changed(r.getDate(), r.getTime());
+        return true;
     }
 
     // Admin
@@ -46,97 +74,382 @@ public class ReservationHandler implements ReservationManager, AdminControls, Us
     public LocalTime getOpenTime() { return openingTime; }
     public LocalTime getCloseTime() { return closingTime; }
 
-    public void lockSeats(Set<Integer> seats) { lockedSeats.addAll(seats); }
-    public void unlockSeats(Set<Integer> seats) { lockedSeats.removeAll(seats); }
+    public synchronized void lockSeats(Set<Integer> seats) {
+        SeatBitmap next = lockedSeats.copy();
+        for (int s : seats) next.set(s);
+        replaceLocks(next);
+    }
+
+    public synchronized void unlockSeats(Set<Integer> seats) {
+        SeatBitmap next = lockedSeats.copy();
+        for (int s : seats) next.clear(s);
+        replaceLocks(next);
+    }
 
-    public void setSeatPrice(int seatIndex, double price) {
-        if (seatIndex < 0) return;
-        seatPrices.put(seatIndex, price);
+    // Prices this seat alone; see PriceTable.withSeatPrice. Seats outside the arrangement are ignored.
+    public synchronized void setSeatPrice(int seatIndex, double price) {
+        if (seatIndex < 0 || seatIndex >= TOTAL_SEATS) return;
+        prices = prices.withSeatPrice(seatIndex, price);
     }
 
+    // The base price, without any slot's override
     public double getSeatPrice(int seatIndex) {
-        return seatPrices.getOrDefault(seatIndex, 10.0);
+        return prices.price(seatIndex);
+    }
+
+    public double getSeatPrice(LocalDate date, LocalTime time, int seatIndex) {
+        return prices.price(date, time, seatIndex);
+    }
+
+    // Admin: pricing zones. Zone 0 holds every seat not put elsewhere.
+    public synchronized void setSeatZone(Collection<Integer> seats, int zone) {
+        prices = prices.withZone(seats.stream().mapToInt(Integer::intValue).filter(s -> s >= 0 && s < TOTAL_SEATS).toArray(), zone);
     }
 
-    // Admin: change seating arrangement
-    public void setSeatingArrangement(int rows, int cols, double defaultPrice) {
+    public synchronized void setZonePrice(int zone, double price) {
+        prices = prices.withZonePrice(zone, price);
+    }
+
+    public int getSeatZone(int seatIndex) { return prices.zone(seatIndex); }
+
+    // Admin: a zone's price for one showtime only, e.g. a Saturday evening
+    public synchronized void setSlotZonePrice(LocalDate date, LocalTime time, int zone, double price) {
+        prices = prices.withSlotPrice(date, time, zone, price);
+    }
+
+    public synchronized void clearSlotPrices(LocalDate date, LocalTime time) {
+        prices = prices.withoutSlotPrices(date, time);
+    }
+
+    public PriceTable getPrices() { return prices; }
+
+    // Admin: change seating arrangement. Zone 0, new seats included, goes to defaultPrice; seats in other zones keep theirs.
+    public synchronized void setSeatingArrangement(int rows, int cols, double defaultPrice) {
         int newTotal = rows * cols;
-        Map<Integer, Double> newPrices = new HashMap<>();
-        for (int i = 0; i < newTotal; i++) {
-            newPrices.put(i, seatPrices.getOrDefault(i, defaultPrice));
-        }
-        seatPrices.clear();
-        seatPrices.putAll(newPrices);
-        lockedSeats.removeIf(idx -> idx >= newTotal);
+        prices = prices.withSeatCount(newTotal, defaultPrice);
+        SeatBitmap locked = lockedSeats.copy();
+        locked.clearFrom(newTotal);
+        replaceLocks(locked);
+        seatCols = cols;
         TOTAL_SEATS = newTotal;
     }
 
     public int getTotalSeats() { return TOTAL_SEATS; }
+    public int getSeatCols() { return seatCols; }
 
     // Reservations
     public boolean makeReservation(String username, LocalDate date, LocalTime time, List<Integer> seatList) {
+        return makeReservation(username, date, time, toArray(seatList));
+    }
+
+    /**
+     * The same without boxing: the reservation keeps seats as its own, so
+     * the caller must not change the array afterwards.
+     */
+    public boolean makeReservation(String username, LocalDate date, LocalTime time, int[] seats) {
         User user = db.getUser(username);
         if (user == null) return false;
 
-        for (int s : seatList) {
-            if (!isSeatAvailable(date, time, s)) return false;
+        for (int s : seats) {
+            if (s < 0 || s >= TOTAL_SEATS) return false;
         }
 
-        int[] seats = seatList.stream().mapToInt(Integer::intValue).toArray();
-        double totalPrice = calculateTotalPrice(seatList);
-        Reservation res = new Reservation(user, date, time, seats, totalPrice);
-        return db.addReservation(res);
+        Reservation res = Reservation.adopting(user, date, time, seats, prices.total(date, time, seats));
+        // availability is re-checked under the slot lock, so two clients can't book the same seat
+        boolean ok = db.addReservationIfFree(res, lockedSeats);
+        if (ok) changed(date, time);
+        return ok;
     }
 
-    public boolean cancelReservation(String username, LocalDate date, LocalTime time, List<Integer> seatList) {
+    // Books every entry or none of them; see ReservationDatabase.addReservationsIfFree.
+    public boolean makeReservationsBatch(String username, List<BatchEntry> entries) {
         User user = db.getUser(username);
         if (user == null) return false;
 
-        int[] seats = seatList.stream().mapToInt(Integer::intValue).toArray();
-        Reservation res = new Reservation(user, date, time, seats, calculateTotalPrice(seatList));
-        return db.removeReservation(res);
+        List<Reservation> batch = new ArrayList<>(entries.size());
+        for (BatchEntry e : entries) {
+            for (int s : e.getSeats()) {
+                if (s < 0 || s >= TOTAL_SEATS) return false;
+            }
+            int[] seats = e.getSeats().stream().mapToInt(Integer::intValue).toArray();
+            batch.add(new Reservation(user, e.getDate(), e.getTime(), seats, prices.total(e.getDate(), e.getTime(), seats)));
+        }
+        boolean ok = db.addReservationsIfFree(batch, lockedSeats);
+        if (ok) {
+            for (Reservation r : batch) changed(r.getDate(), r.getTime());
+        }
+        return ok;
+    }
+
+    /**
+     * Books count adjacent seats in one row, picked by the server so clients
+     * don't race each other for exact seat numbers. The search runs inside
+     * the booking's slot lock, so what it finds is what gets booked. Returns
+     * the reservation, or null if no row has room within the preferences.
+     */
+    public Reservation reserveBestAvailable(String username, LocalDate date, LocalTime time, int count, SeatPreferences prefs) {
+        User user = db.getUser(username);
+        if (user == null || count <= 0) return null;
+        if (prefs == null) prefs = SeatPreferences.ANY;
+
+        int cols = seatCols;
+        int rows = TOTAL_SEATS / cols;
+        PriceTable table = prices;
+        SeatBitmap excluded = lockedSeats;
+        if (prefs.getMaxSeatPrice() > 0) {
+            excluded = excluded.copy();
+            for (int i = 0; i < rows * cols; i++) {
+                if (table.price(date, time, i) > prefs.getMaxSeatPrice()) excluded.set(i);
+            }
+        }
+        boolean centre = prefs.isPreferCentre();
+        Reservation r = db.addChosenReservation(user, date, time, excluded,
+                busy -> SeatFinder.find(rows, cols, count, centre, busy),
+                seats -> table.total(date, time, seats));
+        if (r != null) changed(date, time);
+        return r;
+    }
+
+    /**
+     * Holds the seats for username for ttlSeconds (at most MAX_HOLD_SECONDS),
+     * so they can pick and then confirm without losing them to another
+     * booking meanwhile. Returns the id for confirmHold or releaseHold, or 0
+     * if a seat is taken, held or locked. An unconfirmed hold just expires.
+     */
+    public long holdSeats(String username, LocalDate date, LocalTime time, List<Integer> seatList, int ttlSeconds) {
+        return holdSeats(username, date, time, toArray(seatList), ttlSeconds);
+    }
+
+    // The same without boxing; like makeReservation's, the hold keeps seats as its own.
+    public long holdSeats(String username, LocalDate date, LocalTime time, int[] seats, int ttlSeconds) {
+        User user = db.getUser(username);
+        if (user == null || seats.length == 0 || ttlSeconds <= 0) return 0;
+
+        for (int s : seats) {
+            if (s < 0 || s >= TOTAL_SEATS) return 0;
+        }
+
+        long ttlMillis = Math.min(ttlSeconds, MAX_HOLD_SECONDS) * 1000L;
+        return db.holdSeats(user, date, time, seats, prices.total(date, time, seats), lockedSeats, ttlMillis);
+    }
+
+    // Books the held seats at the price quoted when they were held; null if the hold is gone.
+    public Reservation confirmHold(String username, long holdId) {
+        Reservation r = db.confirmHold(username, holdId, lockedSeats);
+        if (r != null) changed(r.getDate(), r.getTime());
+        return r;
+    }
+
+    public boolean releaseHold(String username, long holdId) {
+        return db.releaseHold(username, holdId);
+    }
+
+    public boolean cancelReservation(String username, LocalDate date, LocalTime time, List<Integer> seatList) {
+        return cancelReservation(username, date, time, toArray(seatList));
+    }
+
+    // Cancels the reservation of exactly these seats; the stored record is found by username and seats.
+    public boolean cancelReservation(String username, LocalDate date, LocalTime time, int[] seats) {
+        if (db.getUser(username) == null) return false;
+
+        boolean ok = db.removeReservation(username, date, time, seats) != null;
+        if (ok) changed(date, time);
+        return ok;
+    }
+
+    /**
+     * username's own reservations from the date from on, in date and time
+     * order. A page holds at least limit (at most MAX_PAGE) of them if there
+     * are that many, then runs on to the end of its last day, unless that
+     * day has more than UserIndex.MAX_TAIL left; continue such a page with
+     * the cursor version (see UserIndex.page).
+     */
+    public List<Reservation> getReservationsForUser(String username, LocalDate from, int limit) {
+        return db.getReservationsForUser(username, from, Math.min(limit, MAX_PAGE));
+    }
+
+    public List<Reservation> getReservationsForUser(String username, LocalDate date, LocalTime time, int skip, int limit) {
+        return db.getReservationsForUser(username, date, time, skip, Math.min(limit, MAX_PAGE));
     }
 
     public boolean isSeatAvailable(LocalDate date, LocalTime time, int seatIndex) {
         if (seatIndex < 0 || seatIndex >= TOTAL_SEATS) return false;
-        if (lockedSeats.contains(seatIndex)) return false;
+        if (lockedSeats.get(seatIndex)) return false;
 
-        List<Reservation> reservations = db.getReservationsForSlot(date, time);
-        for (Reservation r : reservations) if (r.containsSeat(seatIndex)) return false;
-        return true;
+        Slot slot = db.getSlot(date, time);
+        return slot == null || (!slot.isOccupied(seatIndex) && !slot.isHeld(seatIndex));
+    }
+
+    public boolean isSeatHeld(LocalDate date, LocalTime time, int seatIndex) {
+        Slot slot = db.getSlot(date, time);
+        return slot != null && slot.isHeld(seatIndex);
+    }
+
+    // Checks a whole seat selection against the slot's occupancy, holds and the locked seats.
+    // Seat range is the caller's job.
+    public boolean areSeatsAvailable(LocalDate date, LocalTime time, SeatBitmap seats) {
+        Slot slot = db.getSlot(date, time);
+        if (slot == null) return !seats.intersects(lockedSeats);
+        return slot.isFree(seats, lockedSeats);
+    }
+
+    /**
+     * Pushes every later change to the slot (bookings, cancellations, holds
+     * and seat locks) to sink on a delivery thread. Close the subscription to stop.
+     */
+    public SlotEvents.Subscription subscribeSlot(LocalDate date, LocalTime time, Consumer<SeatEvent> sink) {
+        return db.getEvents().subscribe(date, time, sink);
+    }
+
+    // held: nothing reaches sink until the subscription's start(); see SlotEvents
+    public SlotEvents.Subscription subscribeSlot(LocalDate date, LocalTime time, Consumer<SeatEvent> sink, boolean held) {
+        return db.getEvents().subscribe(date, time, sink, held);
     }
 
     public List<Reservation> getReservationsForSlot(LocalDate date, LocalTime time) {
         return db.getReservationsForSlot(date, time);
     }
 
+    // For clients that keep a copy of the slot: only what changed since the version they hold.
+    public SlotDelta getReservationChanges(LocalDate date, LocalTime time, long sinceVersion) {
+        return db.getChangesSince(date, time, sinceVersion);
+    }
+
     public double calculateTotalPrice(List<Integer> seats) {
+        PriceTable table = prices;
+        double total = 0;
+        for (int s : seats) total += table.price(s);
+        return total;
+    }
+
+    // What the seats cost at this showtime, with its overrides
+    public double calculateTotalPrice(LocalDate date, LocalTime time, List<Integer> seats) {
+        PriceTable table = prices;
         double total = 0;
-        for (int s : seats) total += getSeatPrice(s);
+        for (int s : seats) total += table.price(date, time, s);
         return total;
     }
 
+    public double calculateTotalPrice(LocalDate date, LocalTime time, int[] seats) {
+        return prices.total(date, time, seats);
+    }
+
     public void cancelAllReservations(LocalDate date, LocalTime time) {
-        List<Reservation> reservations = new ArrayList<>(db.getReservationsForSlot(date, time));
-        for (Reservation r : reservations) db.removeReservation(r);
+        if (db.removeAllReservations(date, time)) changed(date, time);
     }
 
     // Admin cancel individual reservation
     public boolean adminCancelReservation(Reservation r) {
-        return db.removeReservation(r);
+        boolean ok = db.removeReservation(r);
+        if (ok) changed(r.getDate(), r.getTime());
+        return ok;
+    }
+
+    /**
+     * The slot's reservations as encoded by encode, served from the response
+     * cache while the slot is unchanged. format is ResponseCache.BINARY or
+     * OBJECT_STREAM, so each wire format has its own entry.
+     */
+    public byte[] getEncodedReservations(int format, LocalDate date, LocalTime time, Function<List<Reservation>, byte[]> encode) {
+        long version = db.getSlotVersion(date, time);
+        if (responseCache == null || version == 0) return encode.apply(getReservationsForSlot(date, time));
+        return responseCache.get(format, date, time, version, () -> {
+            SlotDelta slot = db.getChangesSince(date, time, -1); // the whole slot and its version, read together
+            return new ResponseCache.Entry(slot.getVersion(), encode.apply(slot.getAdded()));
+        });
     }
 
+    // Request latencies, queue, lock and persistence waits; see Metrics.
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // null when reservation.cache.bytes is 0
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    int getHoldCount() {
+        return db.getHoldCount();
+    }
+
+    void expireHoldsOn(Executor executor) {
+        db.expireHoldsOn(executor);
+    }
+
+    // For a handler that doesn't wait for the disk: done gets null once every change so far is durable,
+    // or the error if writing them failed.
+    void whenDurable(Consumer<IOException> done) {
+        db.whenDurable(done);
+    }
+
+    // Closes the database; see ReservationDatabase.close.
+    public void close() {
+        db.close();
+    }
+
+    // Seat lists as they come off the wire, unboxed once
+    static int[] toArray(List<Integer> seatList) {
+        int[] seats = new int[seatList.size()];
+        for (int i = 0; i < seats.length; i++) seats[i] = seatList.get(i);
+        return seats;
+    }
+
+    // Cached answers for the slot are stale now; they'd never be served again, so free them.
+    private void changed(LocalDate date, LocalTime time) {
+        if (responseCache != null) responseCache.invalidate(date, time);
+    }
+
+    // Base price of every seat in the arrangement
     public Map<Integer, Double> getSeatPrices() {
-        return new HashMap<>(seatPrices);
+        PriceTable table = prices;
+        Map<Integer, Double> all = new HashMap<>();
+        for (int i = 0; i < TOTAL_SEATS; i++) all.put(i, table.price(i));
+        return all;
+    }
+
+    // A whole new price list: seats it leaves out go back to the default price, and every zone and
+    // slot override goes. Seats outside the arrangement are ignored.
+    public synchronized void setSeatPrices(Map<Integer, Double> seatPrices) {
+        prices = withSeatPrices(PriceTable.uniform(TOTAL_SEATS, DEFAULT_PRICE), seatPrices);
     }
 
-    public void setSeatPrices(Map<Integer, Double> prices) {
-        seatPrices.clear();
-        seatPrices.putAll(prices);
+    // Reprices just these seats, in one pass; the rest keep their prices.
+    public synchronized void mergeSeatPrices(Map<Integer, Double> seatPrices) {
+        prices = withSeatPrices(prices, seatPrices);
     }
 
-    public void setSeating(Set<Integer> locked) {
-        lockedSeats.clear();
-        lockedSeats.addAll(locked);
+    // See PriceTable.withSeatPrices. Callers hold this object's lock.
+    private PriceTable withSeatPrices(PriceTable table, Map<Integer, Double> seatPrices) {
+        int[] seats = new int[seatPrices.size()];
+        double[] amounts = new double[seats.length];
+        int n = 0;
+        for (Map.Entry<Integer, Double> e : seatPrices.entrySet()) {
+            int s = e.getKey();
+            if (s < 0 || s >= TOTAL_SEATS) continue;
+            seats[n] = s;
+            amounts[n++] = e.getValue();
+        }
+        return table.withSeatPrices(Arrays.copyOf(seats, n), Arrays.copyOf(amounts, n));
+    }
+
+    public synchronized void setSeating(Set<Integer> locked) {
+        replaceLocks(SeatBitmap.of(locked));
+    }
+
+    // Installs a new locked set and tells slot subscribers which seats changed. Callers hold this object's lock.
+    private void replaceLocks(SeatBitmap next) {
+        SeatBitmap prev = lockedSeats;
+        lockedSeats = next;
+        int n = Math.max(prev.length(), next.length());
+        List<Integer> locked = new ArrayList<>();
+        List<Integer> unlocked = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (next.get(i) && !prev.get(i)) locked.add(i);
+            else if (prev.get(i) && !next.get(i)) unlocked.add(i);
+        }
+        SlotEvents events = db.getEvents();
+        if (!locked.isEmpty()) events.publishAll(SeatEvent.State.LOCKED, locked.stream().mapToInt(Integer::intValue).toArray());
+        if (!unlocked.isEmpty()) events.publishAll(SeatEvent.State.UNLOCKED, unlocked.stream().mapToInt(Integer::intValue).toArray());
     }
 }
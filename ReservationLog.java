@@ -0,0 +1,426 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of every change made to users and reservations since the
+ * last snapshot (reservations.snapshot).
+ *
+ * Each record is framed as [int length][body][int crc32(body)], where body
+ * starts with a one byte record type. A torn or corrupt tail (e.g. a crash
+ * mid-append) fails the length or checksum test; replay stops there and the
+ * file is cut back to the last good record.
+ *
+ * Appends are handed to a PersistenceWriter, which batches them on its own
+ * thread. Each append returns a ticket; awaitDurable(ticket) waits as long
+ * as the durability mode asks, so callers can append under a lock and wait
+ * after releasing it.
+ *
+ * Compaction renames the file to reservations.log.old and carries on in a
+ * fresh one; the old file is deleted once the snapshot covering it is on
+ * disk. Replay reads an old file a crash left behind before the current one.
+ */
+public class ReservationLog implements Closeable {
+    static final byte RESERVE = 1;
+    static final byte CANCEL = 2;
+    static final byte CLEAR_SLOT = 3;
+    static final byte USER_CREATE = 4;
+    static final byte USER_DELETE = 5;
+    static final byte RESERVE_BATCH = 6;
+
+    static final int MAX_RECORD = 1 << 20; // longest body replay accepts, so nothing longer is ever written
+
+    /** Receives records in log order during replay. */
+    public interface Replay {
+        void reserve(String username, LocalDate date, LocalTime time, int[] seats, double totalPrice);
+        void cancel(String username, LocalDate date, LocalTime time, int[] seats);
+        void clearSlot(LocalDate date, LocalTime time);
+        void createUser(String username, String password, boolean admin);
+        void deleteUser(String username);
+    }
+
+    private final Path path;
+    private final Path previous; // the file being folded into a snapshot
+    private FileChannel channel; // replaced on compaction, while the writer is quiet
+    private final PersistenceWriter writer;
+    private final ReentrantLock replayLock = new ReentrantLock();
+    private final AtomicInteger recordsSinceSnapshot = new AtomicInteger();
+    private final LatencyHistogram appendTimes; // how long each change waited for the disk
+    private final CRC32 crc = new CRC32(); // for records encoded under the writer's lock
+
+    public ReservationLog(String file) throws IOException {
+        this(file, PersistenceWriter.Durability.SYNC, 2);
+    }
+
+    public ReservationLog(String file, PersistenceWriter.Durability durability, long groupCommitMillis) throws IOException {
+        this(file, durability, groupCommitMillis, new LatencyHistogram());
+    }
+
+    public ReservationLog(String file, PersistenceWriter.Durability durability, long groupCommitMillis,
+                          LatencyHistogram appendTimes) throws IOException {
+        this.appendTimes = appendTimes;
+        path = Path.of(file);
+        previous = Path.of(file + ".old");
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        writer = new PersistenceWriter(channel, durability, groupCommitMillis);
+    }
+
+    // Replays every intact record and drops a damaged tail so new appends follow the last good one.
+    public int replay(Replay target) throws IOException {
+        writer.flush();
+        replayLock.lock();
+        try {
+            int[] count = new int[1];
+            // left by a compaction that didn't finish: older than anything in the current file
+            if (Files.exists(previous)) replay(previous, target, count);
+            long good = replay(path, target, count);
+            if (good < channel.size()) {
+                System.err.println("Reservation log: dropping " + (channel.size() - good) + " damaged bytes");
+                channel.truncate(good);
+            }
+            recordsSinceSnapshot.set(count[0]);
+            return count[0];
+        } finally {
+            replayLock.unlock();
+        }
+    }
+
+    // Applies file's intact records, counting them in count[0]; returns where the intact part ends.
+    private static long replay(Path file, Replay target, int[] count) throws IOException {
+        long good = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                int len;
+                try {
+                    len = in.readInt();
+                } catch (EOFException end) {
+                    break;
+                }
+                if (len <= 0 || len > MAX_RECORD) break;
+                byte[] body = new byte[len];
+                int crc;
+                try {
+                    in.readFully(body);
+                    crc = in.readInt();
+                } catch (EOFException torn) {
+                    break;
+                }
+                if (crc != checksum(body)) break;
+                try {
+                    apply(body, target);
+                } catch (IOException | RuntimeException bad) {
+                    break; // checksum matched but the body doesn't parse: treat as damage
+                }
+                good += 4 + len + 4;
+                count[0]++;
+            }
+        }
+        return good;
+    }
+
+    // Each record method returns the record's ticket for awaitDurable.
+    public long reserve(Reservation r) {
+        return append(RESERVE, r.getUser().getUsername(), r.getDate(), r.getTime(), r.seats(), r.getTotalPrice());
+    }
+
+    // One record for the whole batch, so replay sees all of it or (torn tail) none of it.
+    public long reserveAll(List<Reservation> batch) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + 48 * batch.size());
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(RESERVE_BATCH);
+            out.writeInt(batch.size());
+            for (Reservation r : batch) {
+                out.writeUTF(r.getUser().getUsername());
+                writeSlot(out, r.getDate(), r.getTime());
+                writeSeats(out, r.seats());
+                out.writeDouble(r.getTotalPrice());
+            }
+            return write(bytes.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0; // nothing to wait for
+        }
+    }
+
+    /** Whether reserve can log r; check before changing anything, since it can't fail then. */
+    static boolean fitsOneRecord(Reservation r) {
+        int nameLength = utfLength(r.getUser().getUsername());
+        return nameLength <= 65535 && 1 + 2 + nameLength + 12 + 4 + 4L * r.seats().length + 8 <= MAX_RECORD;
+    }
+
+    /** Whether reserveAll can log batch as one record; check before changing anything, since it can't fail then. */
+    static boolean fitsOneRecord(List<Reservation> batch) {
+        long length = 1 + 4;
+        for (Reservation r : batch) {
+            int nameLength = utfLength(r.getUser().getUsername());
+            if (nameLength > 65535) return false;
+            length += 2 + nameLength + 12 + 4 + 4L * r.seats().length + 8;
+        }
+        return length <= MAX_RECORD;
+    }
+
+    public long cancel(Reservation r) {
+        return append(CANCEL, r.getUser().getUsername(), r.getDate(), r.getTime(), r.seats(), 0);
+    }
+
+    public long clearSlot(LocalDate date, LocalTime time) {
+        return append(CLEAR_SLOT, null, date, time, null, 0);
+    }
+
+    public long createUser(User u) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(USER_CREATE);
+            out.writeUTF(u.getUsername());
+            out.writeUTF(u.getPassword());
+            out.writeBoolean(u.isAdmin());
+            return write(bytes.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0; // nothing to wait for
+        }
+    }
+
+    public long deleteUser(String username) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(USER_DELETE);
+            out.writeUTF(username);
+            return write(bytes.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0; // nothing to wait for
+        }
+    }
+
+    /**
+     * Writes a snapshot and drops the records it covers. Appends only wait
+     * while the log moves to reservations.log.old and a fresh file takes
+     * its place, not while the snapshot is written; writeSnapshot must have
+     * the snapshot on disk when it returns, and only then is the old file
+     * deleted. A change applied in memory but not yet appended can end up
+     * in both the snapshot and the new log; replay tolerates that because
+     * every record is idempotent.
+     */
+    public void compact(Runnable writeSnapshot) throws IOException {
+        // an old file left by a compaction that failed is still there: fold it into this snapshot
+        // and keep the current file, whose records replay applies on top
+        if (!Files.exists(previous)) {
+            IOException[] failure = new IOException[1];
+            writer.whileQuiet(() -> {
+                try {
+                    Files.move(path, previous, StandardCopyOption.ATOMIC_MOVE);
+                    FileChannel next = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                    syncDirectory(path.toAbsolutePath().getParent()); // records synced to next must not lose their file
+                    writer.switchTo(next);
+                    channel.close();
+                    channel = next;
+                    recordsSinceSnapshot.set(0);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) throw failure[0];
+        }
+        writeSnapshot.run();
+        Files.delete(previous);
+    }
+
+    /** Returns once the record with this ticket is as durable as the log's mode asks; see PersistenceWriter. */
+    public void awaitDurable(long ticket) {
+        long start = System.nanoTime();
+        writer.awaitDurable(ticket);
+        appendTimes.recordSince(start);
+    }
+
+    /** awaitDurable without the wait: calls done once the record is durable, or its write failed; see PersistenceWriter.whenDurable. */
+    public void whenDurable(long ticket, Consumer<IOException> done) {
+        writer.whenDurable(ticket, done);
+    }
+
+    // Throws once appends would: after a failed write, nothing more is logged.
+    public void checkWritable() {
+        writer.checkWritable();
+    }
+
+    // The ticket of the last record appended, to wait for everything so far.
+    public long lastTicket() {
+        return writer.lastTicket();
+    }
+
+    // Makes a rename or new file in dir durable. Not every platform can open a directory; there it's left to the OS.
+    static void syncDirectory(Path dir) {
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    public int getRecordsSinceSnapshot() {
+        return recordsSinceSnapshot.get();
+    }
+
+    public PersistenceWriter.Durability getDurability() {
+        return writer.getMode();
+    }
+
+    // Blocks until every record appended so far is on disk, whatever the durability mode.
+    public void flush() {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+        channel.close();
+    }
+
+    // The hot path: reserve, cancel and clearSlot records are encoded straight into the writer's buffer.
+    private long append(byte type, String username, LocalDate date, LocalTime time, int[] seats, double price) {
+        int nameLength = username == null ? 0 : utfLength(username);
+        if (nameLength > 65535) {
+            new UTFDataFormatException("username too long: " + nameLength + " bytes").printStackTrace();
+            return 0; // nothing to wait for
+        }
+        int length = 1 + (username == null ? 0 : 2 + nameLength) + 12
+                + (seats == null ? 0 : 4 + 4 * seats.length) + (type == RESERVE ? 8 : 0);
+        if (length > MAX_RECORD) {
+            new IOException("record too long: " + length + " bytes").printStackTrace();
+            return 0; // nothing to wait for
+        }
+        ByteBuffer out = writer.append(4 + length + 4);
+        int at = out.position();
+        try {
+            out.putInt(length);
+            out.put(type);
+            if (username != null) putUTF(out, username, nameLength);
+            out.putLong(date.toEpochDay());
+            out.putInt(time.toSecondOfDay());
+            if (seats != null) {
+                out.putInt(seats.length);
+                for (int s : seats) out.putInt(s);
+            }
+            if (type == RESERVE) out.putDouble(price);
+            // checksum the body in place; the writer's lock is held, so crc is ours
+            int end = out.position();
+            out.limit(end).position(at + 4);
+            crc.reset();
+            crc.update(out);
+            out.limit(out.capacity());
+            out.putInt((int) crc.getValue());
+        } catch (RuntimeException e) {
+            writer.discard(at);
+            throw e;
+        }
+        long ticket = writer.commit();
+        recordsSinceSnapshot.incrementAndGet();
+        return ticket;
+    }
+
+    // Bytes writeUTF takes for s, without its two-byte length.
+    private static int utfLength(String s) {
+        int n = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == 0 || c > 0x7f) n += c > 0x7ff ? 2 : 1;
+        }
+        return n;
+    }
+
+    // What DataOutputStream.writeUTF writes (modified UTF-8), so replay can readUTF it.
+    private static void putUTF(ByteBuffer out, String s, int length) {
+        out.putShort((short) length);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != 0 && c <= 0x7f) {
+                out.put((byte) c);
+            } else if (c <= 0x7ff) {
+                out.put((byte) (0xc0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            } else {
+                out.put((byte) (0xe0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    private static void writeSlot(DataOutputStream out, LocalDate date, LocalTime time) throws IOException {
+        out.writeLong(date.toEpochDay());
+        out.writeInt(time.toSecondOfDay());
+    }
+
+    private static void writeSeats(DataOutputStream out, int[] seats) throws IOException {
+        out.writeInt(seats.length);
+        for (int s : seats) out.writeInt(s);
+    }
+
+    private static int[] readSeats(DataInputStream in) throws IOException {
+        int[] seats = new int[in.readInt()];
+        for (int i = 0; i < seats.length; i++) seats[i] = in.readInt();
+        return seats;
+    }
+
+    private long write(byte[] body) throws IOException {
+        if (body.length > MAX_RECORD) throw new IOException("record too long: " + body.length + " bytes");
+        ByteBuffer frame = ByteBuffer.allocate(4 + body.length + 4);
+        frame.putInt(body.length).put(body).putInt(checksum(body)).flip();
+        long ticket = writer.submit(frame);
+        recordsSinceSnapshot.incrementAndGet();
+        return ticket;
+    }
+
+    private static int checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private static void apply(byte[] body, Replay target) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        switch (type) {
+            case RESERVE, CANCEL -> {
+                String username = in.readUTF();
+                LocalDate date = LocalDate.ofEpochDay(in.readLong());
+                LocalTime time = LocalTime.ofSecondOfDay(in.readInt());
+                int[] seats = readSeats(in);
+                if (type == RESERVE) target.reserve(username, date, time, seats, in.readDouble());
+                else target.cancel(username, date, time, seats);
+            }
+            case RESERVE_BATCH -> {
+                // parse every entry before applying any, so a bad body applies none of them
+                int n = in.readInt();
+                List<Runnable> entries = new ArrayList<>(Math.min(n, 1024));
+                for (int i = 0; i < n; i++) {
+                    String username = in.readUTF();
+                    LocalDate date = LocalDate.ofEpochDay(in.readLong());
+                    LocalTime time = LocalTime.ofSecondOfDay(in.readInt());
+                    int[] seats = readSeats(in);
+                    double price = in.readDouble();
+                    entries.add(() -> target.reserve(username, date, time, seats, price));
+                }
+                entries.forEach(Runnable::run);
+            }
+            case CLEAR_SLOT -> target.clearSlot(LocalDate.ofEpochDay(in.readLong()), LocalTime.ofSecondOfDay(in.readInt()));
+            case USER_CREATE -> target.createUser(in.readUTF(), in.readUTF(), in.readBoolean());
+            case USER_DELETE -> target.deleteUser(in.readUTF());
+            default -> throw new IOException("Unknown log record type " + type);
+        }
+    }
+}
@@ -4,6 +4,13 @@ import java.util.List;
 
 public interface ReservationManager {
     boolean makeReservation(String username, LocalDate date, LocalTime time, List<Integer> seats);
+    boolean makeReservationsBatch(String username, List<BatchEntry> entries);
+    Reservation reserveBestAvailable(String username, LocalDate date, LocalTime time, int count, SeatPreferences prefs);
+    long holdSeats(String username, LocalDate date, LocalTime time, List<Integer> seats, int ttlSeconds);
+    Reservation confirmHold(String username, long holdId);
+    boolean releaseHold(String username, long holdId);
     boolean cancelReservation(String username, LocalDate date, LocalTime time, List<Integer> seats);
     boolean adminCancelReservation(Reservation reservation);
+    List<Reservation> getReservationsForUser(String username, LocalDate from, int limit);
+    List<Reservation> getReservationsForUser(String username, LocalDate date, LocalTime time, int skip, int limit);
 }
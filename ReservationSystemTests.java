@@ -1,23 +1,40 @@
 import org.junit.*;
 import static org.junit.Assert.*;
 
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ReservationSystemTests {
 
     private ReservationHandler handler;
     private LocalDate date;
     private LocalTime time;
+    private java.io.File dataDir;
 
+    // Each test gets an empty data directory, so no test sees another's bookings or log.
     @Before
-    public void setup() {
+    public void setup() throws Exception {
+        dataDir = java.nio.file.Files.createTempDirectory("reservations").toFile();
+        System.setProperty("reservation.dataDir", dataDir.getPath());
         handler = new ReservationHandler();
         date = LocalDate.now();
         time = LocalTime.of(18, 0);
     }
 
+    @After
+    public void teardown() throws Exception {
+        handler.close();
+        System.clearProperty("reservation.dataDir");
+        try (java.util.stream.Stream<java.nio.file.Path> files = java.nio.file.Files.walk(dataDir.toPath())) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
     @Test(timeout = 1000)
     public void testCreateAccount() {
         boolean ok = handler.createAccount("bob", "123");
@@ -76,6 +93,316 @@ public class ReservationSystemTests {
         assertTrue(handler.getReservationsForSlot(date, time).isEmpty());
     }
 
+    @Test(timeout = 1000)
+    public void testReservationsAreGroupedBySlot() {
+        handler.createAccount("kim", "pw");
+        LocalTime later = LocalTime.of(21, 0);
+
+        handler.makeReservation("kim", date, later, Arrays.asList(7));
+
+        for (Reservation r : handler.getReservationsForSlot(date, later)) {
+            assertEquals(later, r.getTime());
+        }
+        for (Reservation r : handler.getReservationsForSlot(date, time)) {
+            assertEquals(time, r.getTime());
+        }
+        handler.cancelReservation("kim", date, later, Arrays.asList(7));
+    }
+
+    @Test(timeout = 2000)
+    public void testBatchReservationIsAllOrNothing() {
+        handler.createAccount("lea", "pw");
+        LocalDate day = date.plusDays(30);
+        LocalTime first = LocalTime.of(18, 0);
+        LocalTime second = LocalTime.of(19, 0);
+        handler.cancelAllReservations(day, first);
+        handler.cancelAllReservations(day, second);
+        assertTrue(handler.makeReservation("lea", day, second, Arrays.asList(9)));
+
+        // the second entry hits a taken seat, so the first must not be booked either
+        List<BatchEntry> clash = List.of(new BatchEntry(day, first, Arrays.asList(1, 2)),
+                new BatchEntry(day, second, Arrays.asList(8, 9)));
+        assertFalse(handler.makeReservationsBatch("lea", clash));
+        assertTrue(handler.isSeatAvailable(day, first, 1));
+
+        // two entries for the same slot must not overlap each other
+        assertFalse(handler.makeReservationsBatch("lea", List.of(new BatchEntry(day, first, Arrays.asList(3)),
+                new BatchEntry(day, first, Arrays.asList(3, 4)))));
+
+        // a batch too big for one log record is turned away before anything is booked
+        List<Integer> row = new ArrayList<>();
+        for (int s = 0; s < 50; s++) row.add(s);
+        List<BatchEntry> huge = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) huge.add(new BatchEntry(day.plusDays(1000 + i), first, row));
+        assertFalse(handler.makeReservationsBatch("lea", huge));
+        assertTrue(handler.isSeatAvailable(day.plusDays(1000), first, 0));
+
+        List<BatchEntry> ok = List.of(new BatchEntry(day, first, Arrays.asList(1, 2)),
+                new BatchEntry(day, second, Arrays.asList(7, 8)));
+        assertTrue(handler.makeReservationsBatch("lea", ok));
+        assertFalse(handler.isSeatAvailable(day, first, 2));
+        assertFalse(handler.isSeatAvailable(day, second, 7));
+
+        // one log record, replayed whole
+        handler.close();
+        ReservationHandler restarted = new ReservationHandler();
+        assertFalse(restarted.isSeatAvailable(day, first, 1));
+        assertFalse(restarted.isSeatAvailable(day, second, 8));
+        restarted.cancelAllReservations(day, first);
+        restarted.cancelAllReservations(day, second);
+        restarted.close();
+    }
+
+    @Test(timeout = 3000)
+    public void testSlotSubscriptionPushesChanges() throws Exception {
+        handler.createAccount("ivy", "pw");
+        LocalDate day = date.plusDays(31);
+        handler.cancelAllReservations(day, time);
+        BlockingQueue<SeatEvent> seen = new LinkedBlockingQueue<>();
+        SlotEvents.Subscription sub = handler.subscribeSlot(day, time, seen::add);
+
+        handler.makeReservation("ivy", day, time, Arrays.asList(3, 4));
+        handler.makeReservation("ivy", day, time.plusHours(1), Arrays.asList(3)); // another slot
+        handler.cancelReservation("ivy", day, time, Arrays.asList(3, 4));
+        handler.lockSeats(Set.of(12));
+        handler.unlockSeats(Set.of(12));
+
+        SeatEvent e = seen.poll(1, TimeUnit.SECONDS);
+        assertEquals(SeatEvent.State.RESERVED, e.getState());
+        assertArrayEquals(new int[]{3, 4}, e.getSeats());
+        assertEquals("ivy", e.getOwner());
+        assertEquals(SeatEvent.State.FREE, seen.poll(1, TimeUnit.SECONDS).getState());
+        assertEquals(SeatEvent.State.LOCKED, seen.poll(1, TimeUnit.SECONDS).getState());
+        assertEquals(SeatEvent.State.UNLOCKED, seen.poll(1, TimeUnit.SECONDS).getState());
+        sub.close();
+        handler.makeReservation("ivy", day, time, Arrays.asList(5));
+        assertNull(seen.poll(100, TimeUnit.MILLISECONDS));
+        handler.cancelAllReservations(day, time);
+        handler.cancelAllReservations(day, time.plusHours(1));
+
+        // deleting an account frees its seats in one event per slot
+        handler.createAccount("jude", "pw");
+        handler.makeReservation("jude", day, time, Arrays.asList(7));
+        handler.makeReservation("jude", day, time, Arrays.asList(8, 9));
+        handler.makeReservation("jude", day, time.plusHours(1), Arrays.asList(7));
+        sub = handler.subscribeSlot(day, time, seen::add);
+        assertTrue(handler.deleteAccount("jude", "pw"));
+        SeatEvent freed = seen.poll(1, TimeUnit.SECONDS);
+        assertEquals(SeatEvent.State.FREE, freed.getState());
+        assertArrayEquals(new int[]{7, 8, 9}, freed.getSeats());
+        assertEquals("jude", freed.getOwner());
+        assertNull(seen.poll(100, TimeUnit.MILLISECONDS));
+        assertTrue(handler.isSeatAvailable(day, time, 8));
+        sub.close();
+
+        // over a connection: one subscription per slot, and no event before the subscribe answer is out
+        ClientHandler conn = new ClientHandler(null, handler);
+        BlockingQueue<Response> pushed = new LinkedBlockingQueue<>();
+        conn.pushTo(pushed::add);
+        Request subscribe = new Request("subscribeSlot", new Object[]{day, time});
+        assertTrue(conn.handleRequest(subscribe).isSuccess());
+        assertTrue(conn.handleRequest(new Request("subscribeSlot", new Object[]{day, time})).isSuccess());
+        handler.makeReservation("ivy", day, time, Arrays.asList(6));
+        assertNull(pushed.poll(100, TimeUnit.MILLISECONDS));
+        conn.answered(subscribe);
+        assertEquals(SeatEvent.State.RESERVED, ((SeatEvent) pushed.poll(1, TimeUnit.SECONDS).getPayload()).getState());
+        assertNull(pushed.poll(100, TimeUnit.MILLISECONDS)); // once, not once per subscribe
+        conn.closeSubscriptions();
+        handler.cancelAllReservations(day, time);
+
+        // a stuck subscriber never blocks publish; once it catches up it is told to resync
+        SlotEvents events = new SlotEvents();
+        CountDownLatch stuck = new CountDownLatch(1);
+        BlockingQueue<SeatEvent> slow = new LinkedBlockingQueue<>();
+        events.subscribe(day, time, ev -> {
+            try {
+                stuck.await();
+            } catch (InterruptedException ignored) {
+            }
+            slow.add(ev);
+        });
+        for (int i = 0; i < SlotEvents.QUEUE_CAPACITY * 2; i++) {
+            events.publish(day, time, SeatEvent.State.RESERVED, new int[]{i}, "ivy");
+        }
+        stuck.countDown();
+        boolean resync = false;
+        for (SeatEvent ev; !resync && (ev = slow.poll(1, TimeUnit.SECONDS)) != null; ) {
+            resync = ev.getState() == SeatEvent.State.RESYNC;
+        }
+        assertTrue(resync);
+    }
+
+    @Test(timeout = 2000)
+    public void testSlotVersionsGiveDeltas() {
+        handler.createAccount("ned", "pw");
+        LocalDate day = date.plusDays(32);
+        handler.cancelAllReservations(day, time);
+
+        SlotDelta start = handler.getReservationChanges(day, time, 0);
+        assertEquals(SlotDelta.Kind.FULL, start.getKind());
+        List<Reservation> held = start.applyTo(List.of());
+
+        handler.makeReservation("ned", day, time, Arrays.asList(1));
+        SlotDelta d = handler.getReservationChanges(day, time, start.getVersion());
+        assertEquals(SlotDelta.Kind.DELTA, d.getKind());
+        held = d.applyTo(held);
+        assertEquals(1, held.size());
+        assertEquals(SlotDelta.Kind.UNCHANGED, handler.getReservationChanges(day, time, d.getVersion()).getKind());
+
+        long seen = d.getVersion();
+        handler.makeReservation("ned", day, time, Arrays.asList(2));
+        handler.cancelReservation("ned", day, time, Arrays.asList(1));
+        handler.makeReservation("ned", day, time, Arrays.asList(3));
+        handler.cancelReservation("ned", day, time, Arrays.asList(3)); // added and removed again: not in the delta
+        d = handler.getReservationChanges(day, time, seen);
+        assertEquals(1, d.getAdded().size());
+        assertEquals(1, d.getRemoved().size());
+        held = d.applyTo(held);
+        assertEquals(handler.getReservationsForSlot(day, time), held);
+
+        // the wire protocol carries the delta as it is
+        ByteBuffer buf = WireProtocol.encodeResponse(ByteBuffer.allocate(256), WireProtocol.GET_RESERVATIONS_SINCE,
+                new Response(true, "Success", d));
+        buf.flip();
+        SlotDelta decoded = (SlotDelta) WireProtocol.decodeResponse(buf).getPayload();
+        assertEquals(d.getVersion(), decoded.getVersion());
+        assertEquals(d.getAdded(), decoded.getAdded());
+        assertEquals(d.getRemoved(), decoded.getRemoved());
+
+        // too far behind, or behind a cancel-all: the whole slot
+        seen = handler.getReservationChanges(day, time, 0).getVersion();
+        for (int i = 0; i <= Slot.CHANGE_LOG; i++) {
+            handler.makeReservation("ned", day, time, Arrays.asList(10));
+            handler.cancelReservation("ned", day, time, Arrays.asList(10));
+        }
+        assertEquals(SlotDelta.Kind.FULL, handler.getReservationChanges(day, time, seen).getKind());
+        seen = handler.getReservationChanges(day, time, 0).getVersion();
+        handler.cancelAllReservations(day, time);
+        d = handler.getReservationChanges(day, time, seen);
+        assertEquals(SlotDelta.Kind.FULL, d.getKind());
+        assertTrue(d.getAdded().isEmpty());
+    }
+
+    @Test(timeout = 2000)
+    public void testResponseCacheFollowsSlotChanges() throws Exception {
+        handler.createAccount("ola", "pw");
+        LocalDate day = date.plusDays(33);
+        handler.cancelAllReservations(day, time);
+        ResponseCache cache = handler.getResponseCache();
+        AtomicInteger builds = new AtomicInteger();
+        java.util.function.Function<List<Reservation>, byte[]> encode = list -> {
+            builds.incrementAndGet();
+            return new byte[]{(byte) list.size()};
+        };
+
+        long hits = cache.getHits();
+        assertEquals(0, handler.getEncodedReservations(ResponseCache.BINARY, day, time, encode)[0]);
+        assertEquals(0, handler.getEncodedReservations(ResponseCache.BINARY, day, time, encode)[0]);
+        assertEquals(1, builds.get());
+        assertEquals(hits + 1, cache.getHits());
+        handler.makeReservation("ola", day, time, Arrays.asList(6));
+        assertEquals(1, handler.getEncodedReservations(ResponseCache.BINARY, day, time, encode)[0]);
+        assertEquals(1, handler.getEncodedReservations(ResponseCache.OBJECT_STREAM, day, time, encode)[0]);
+        assertEquals(3, builds.get());
+        handler.cancelAllReservations(day, time);
+
+        // concurrent misses share one rebuild
+        ResponseCache small = new ResponseCache(100);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger slow = new AtomicInteger();
+        Callable<byte[]> read = () -> small.get(ResponseCache.BINARY, day, time, 7, () -> {
+            slow.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+            return new ResponseCache.Entry(7, new byte[40]);
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<byte[]>> reads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) reads.add(pool.submit(read));
+        while (small.getCoalesced() < 3) Thread.sleep(5); // three readers waiting on the first one's rebuild
+        release.countDown();
+        for (Future<byte[]> f : reads) assertEquals(40, f.get().length);
+        pool.shutdown();
+        assertEquals(1, slow.get());
+        assertEquals(4, small.getMisses());
+
+        // bounded by bytes, least recently used out first
+        small.get(ResponseCache.BINARY, day, time.plusHours(1), 1, () -> new ResponseCache.Entry(1, new byte[40]));
+        small.get(ResponseCache.BINARY, day, time, 7, () -> null); // hit, so time+1h is now the oldest
+        small.get(ResponseCache.BINARY, day, time.plusHours(2), 1, () -> new ResponseCache.Entry(1, new byte[40]));
+        assertEquals(1, small.getEvictions());
+        assertTrue(small.getBytes() <= 100);
+        assertEquals(40, small.get(ResponseCache.BINARY, day, time, 7, () -> null).length);
+    }
+
+    @Test(timeout = 4000)
+    public void testSeatHoldsBlockOthersAndExpire() throws Exception {
+        handler.createAccount("pia", "pw");
+        handler.createAccount("quinn", "pw");
+        LocalDate day = date.plusDays(34);
+        handler.cancelAllReservations(day, time);
+
+        long hold = handler.holdSeats("pia", day, time, Arrays.asList(3), 60);
+        assertTrue(hold != 0);
+        assertFalse(handler.isSeatAvailable(day, time, 3));
+        assertFalse(handler.makeReservation("quinn", day, time, Arrays.asList(3)));
+        assertEquals(0, handler.holdSeats("quinn", day, time, Arrays.asList(3, 4), 60));
+        assertNull("only the holder can confirm", handler.confirmHold("quinn", hold));
+        assertNotNull(handler.confirmHold("pia", hold));
+        assertFalse(handler.releaseHold("pia", hold));
+        assertFalse(handler.isSeatAvailable(day, time, 3));
+
+        // unconfirmed holds expire on their own
+        long expiring = handler.holdSeats("quinn", day, time, Arrays.asList(4), 1);
+        assertTrue(expiring != 0);
+        while (!handler.isSeatAvailable(day, time, 4)) Thread.sleep(20);
+        assertNull(handler.confirmHold("quinn", expiring));
+        assertTrue(handler.makeReservation("pia", day, time, Arrays.asList(4)));
+        handler.cancelAllReservations(day, time);
+
+        TimingWheel wheel = new TimingWheel(10, 8, "test-wheel");
+        AtomicInteger ran = new AtomicInteger();
+        List<TimingWheel.Timeout> timeouts = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) timeouts.add(wheel.schedule(ran::incrementAndGet, 50 + i % 200));
+        for (int i = 0; i < 1000; i += 2) timeouts.get(i).cancel();
+        while (wheel.pending() > 0) Thread.sleep(20);
+        assertEquals(500, ran.get());
+        wheel.close();
+    }
+
+    @Test(timeout = 2000)
+    public void testReserveBestAvailableFindsAdjacentSeats() {
+        handler.createAccount("rui", "pw");
+        LocalDate day = date.plusDays(35);
+        handler.cancelAllReservations(day, time);
+
+        // 5 rows of 10: first fit is front row, leftmost
+        assertArrayEquals(new int[]{0, 1, 2}, handler.reserveBestAvailable("rui", day, time, 3, SeatPreferences.ANY).getSeats());
+        handler.makeReservation("rui", day, time, Arrays.asList(5));
+        assertArrayEquals(new int[]{6, 7, 8, 9}, handler.reserveBestAvailable("rui", day, time, 4, null).getSeats());
+        // centre of the middle row, then the nearest row with affordable seats
+        SeatPreferences centre = new SeatPreferences(0, true);
+        assertArrayEquals(new int[]{24, 25}, handler.reserveBestAvailable("rui", day, time, 2, centre).getSeats());
+        for (int s = 20; s < 30; s++) handler.setSeatPrice(s, 50.0);
+        Reservation cheap = handler.reserveBestAvailable("rui", day, time, 2, new SeatPreferences(20, true));
+        assertArrayEquals(new int[]{14, 15}, cheap.getSeats());
+        assertEquals(20.0, cheap.getTotalPrice(), 0.001);
+        assertNull(handler.reserveBestAvailable("rui", day, time, 11, centre));
+        assertFalse(handler.isSeatAvailable(day, time, 15));
+        handler.cancelAllReservations(day, time);
+
+        // runs that cross a word boundary, in rows that start mid-word
+        SeatBitmap busy = new SeatBitmap(300);
+        for (int s = 0; s < 300; s++) busy.set(s);
+        for (int s = 60; s < 71; s++) busy.clear(s);
+        for (int s = 145; s < 155; s++) busy.clear(s);
+        assertArrayEquals(new int[]{60, 61, 62, 63, 64, 65, 66, 67, 68, 69, 70},
+                SeatFinder.find(3, 100, 11, false, busy::word));
+        assertArrayEquals(new int[]{148, 149, 150}, SeatFinder.find(3, 100, 3, true, busy::word));
+        assertNull(SeatFinder.find(3, 100, 12, false, busy::word));
+    }
 
     @Test(timeout = 1000)
     public void testValidateAdmin() {
@@ -108,6 +435,142 @@ public class ReservationSystemTests {
         assertEquals(15.0, handler.getSeatPrice(15), 0.001);
     }
 
+    @Test(timeout = 1000)
+    public void testPriceZonesAndSlotOverrides() {
+        handler.createAccount("zoe", "pw");
+        LocalDate day = date.plusDays(38);
+        LocalTime peak = LocalTime.of(20, 0);
+        handler.cancelAllReservations(day, time);
+        handler.cancelAllReservations(day, peak);
+
+        // front row premium, one seat priced on its own
+        handler.setSeatZone(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), 1);
+        handler.setZonePrice(1, 25.0);
+        handler.setSeatPrice(3, 30.0);
+        assertEquals(25.0, handler.getSeatPrice(0), 0.001);
+        assertEquals(30.0, handler.getSeatPrice(3), 0.001);
+        assertEquals(10.0, handler.getSeatPrice(10), 0.001);
+        handler.setZonePrice(1, 20.0); // the whole zone, but not the seat priced alone
+        assertEquals(20.0, handler.getSeatPrice(9), 0.001);
+        assertEquals(30.0, handler.getSeatPrice(3), 0.001);
+        handler.setSeatPrice(3, 35.0); // alone in its zone now: repriced in place
+        int zones = handler.getPrices().getZones();
+        handler.setSeatPrice(3, 40.0);
+        assertEquals(zones, handler.getPrices().getZones());
+
+        // peak showtime: the premium zone costs more there and only there
+        PriceTable before = handler.getPrices();
+        handler.setSlotZonePrice(day, peak, 1, 45.0);
+        assertEquals(20.0, before.price(day, peak, 0), 0.001); // published snapshots never change
+        assertEquals(45.0, handler.getSeatPrice(day, peak, 0), 0.001);
+        assertEquals(20.0, handler.getSeatPrice(day, time, 0), 0.001);
+        assertEquals(10.0, handler.getSeatPrice(day, peak, 10), 0.001);
+        assertEquals(55.0, handler.calculateTotalPrice(day, peak, Arrays.asList(0, 10)), 0.001);
+
+        assertTrue(handler.makeReservation("zoe", day, peak, Arrays.asList(0, 10)));
+        assertTrue(handler.makeReservation("zoe", day, time, Arrays.asList(0, 10)));
+        assertEquals(55.0, handler.getReservationsForSlot(day, peak).get(0).getTotalPrice(), 0.001);
+        assertEquals(30.0, handler.getReservationsForSlot(day, time).get(0).getTotalPrice(), 0.001);
+        Reservation best = handler.reserveBestAvailable("zoe", day, peak, 2, new SeatPreferences(44, false));
+        assertArrayEquals(new int[]{11, 12}, best.getSeats()); // the front row is over budget at this showtime
+        assertEquals(20.0, best.getTotalPrice(), 0.001);
+
+        handler.clearSlotPrices(day, peak);
+        assertEquals(20.0, handler.getSeatPrice(day, peak, 0), 0.001);
+        handler.setSeatingArrangement(6, 10, 12.0); // zone 0, new seats too, goes to 12; other zones stay
+        assertEquals(20.0, handler.getSeatPrice(0), 0.001);
+        assertEquals(40.0, handler.getSeatPrice(3), 0.001);
+        assertEquals(12.0, handler.getSeatPrice(10), 0.001);
+        assertEquals(12.0, handler.getSeatPrice(55), 0.001);
+        handler.setSeatPrice(60, 99.0); // outside the arrangement: ignored
+        assertEquals(60, handler.getPrices().getSeats());
+
+        // bulk: one zone per distinct price, not per seat
+        zones = handler.getPrices().getZones();
+        Map<Integer, Double> bulk = new HashMap<>();
+        for (int s = 20; s < 60; s++) bulk.put(s, s % 2 == 0 ? 14.0 : 16.0);
+        bulk.put(60, 99.0); // outside the arrangement: ignored
+        handler.mergeSeatPrices(bulk);
+        assertEquals(14.0, handler.getSeatPrice(20), 0.001);
+        assertEquals(16.0, handler.getSeatPrice(59), 0.001);
+        assertEquals(12.0, handler.getSeatPrice(19), 0.001);
+        assertTrue(handler.getPrices().getZones() <= zones + 2);
+
+        // a full price list replaces every price: seats it leaves out go back to $10
+        handler.setSeatPrices(Map.of(0, 30.0, 1, 30.0));
+        assertEquals(30.0, handler.getSeatPrice(1), 0.001);
+        assertEquals(10.0, handler.getSeatPrice(3), 0.001);
+        assertEquals(10.0, handler.getSeatPrice(20), 0.001);
+        assertEquals(2, handler.getPrices().getZones());
+
+        // a zone only a slot override names isn't free: seats priced later mustn't pay that override
+        PriceTable named = PriceTable.uniform(4, 10.0).withSlotPrice(day, peak, 1, 99.0);
+        assertEquals(15.0, named.withSeatPrice(2, 15.0).price(day, peak, 2), 0.001);
+        assertEquals(12.0, named.withSeatPrices(new int[]{0, 1}, new double[]{12.0, 12.0}).price(day, peak, 0), 0.001);
+        assertEquals(10.0, named.withSeatPrices(new int[]{0}, new double[]{12.0}).zonePrice(1), 0.001);
+        handler.cancelAllReservations(day, time);
+        handler.cancelAllReservations(day, peak);
+    }
+
+    @Test(timeout = 5000)
+    public void testReserveAndCancelWithSeatArrays() throws Exception {
+        handler.createAccount("abe", "pw");
+        LocalDate day = date.plusDays(39);
+        handler.cancelAllReservations(day, time);
+
+        assertTrue(handler.makeReservation("abe", day, time, new int[]{3, 4}));
+        assertFalse(handler.makeReservation("abe", day, time, new int[]{4}));
+        assertFalse(handler.makeReservation("abe", day, time, new int[]{-1}));
+        List<Reservation> before = handler.getReservationsForSlot(day, time);
+        long seen = handler.getReservationChanges(day, time, 0).getVersion();
+
+        // enough bookings and cancels to move the slot's records to a bigger array
+        for (int i = 10; i < 40; i++) assertTrue(handler.makeReservation("abe", day, time, new int[]{i}));
+        for (int i = 10; i < 40; i += 2) assertTrue(handler.cancelReservation("abe", day, time, new int[]{i}));
+        assertEquals(1, before.size()); // a list handed out earlier doesn't change
+        assertArrayEquals(new int[]{3, 4}, before.get(0).getSeats());
+        List<Reservation> now = handler.getReservationsForSlot(day, time);
+        assertEquals(16, now.size());
+        assertEquals(new ArrayList<>(now), now.stream().toList()); // get(i) and iteration agree
+        assertEquals(11, now.get(1).getSeats()[0]);
+
+        assertFalse(handler.cancelReservation("abe", day, time, new int[]{4, 3})); // exactly the seats booked
+        assertTrue(handler.cancelReservation("abe", day, time, new int[]{3, 4}));
+        assertFalse(handler.cancelReservation("abe", day, time, new int[]{3, 4}));
+        SlotDelta d = handler.getReservationChanges(day, time, seen);
+        assertEquals(SlotDelta.Kind.DELTA, d.getKind());
+        assertEquals(15, d.getAdded().size());
+        assertEquals(1, d.getRemoved().size());
+        assertEquals(handler.getReservationsForSlot(day, time), d.applyTo(before));
+        handler.cancelAllReservations(day, time);
+
+        // records encoded straight into the log's buffer read back as DataOutputStream wrote them
+        java.io.File dir = java.nio.file.Files.createTempDirectory("log").toFile();
+        java.io.File file = new java.io.File(dir, "r.log");
+        User odd = new User("zo\u00eb\u0000\u20ac", "pw");
+        try (ReservationLog log = new ReservationLog(file.getPath())) {
+            log.reserve(new Reservation(odd, day, time, new int[]{7, 8}, 20.0));
+            log.cancel(new Reservation(odd, day, time, new int[]{7, 8}, 0));
+            List<String> replayed = new ArrayList<>();
+            log.replay(new ReservationLog.Replay() {
+                public void reserve(String u, LocalDate on, LocalTime at, int[] seats, double price) {
+                    replayed.add("reserve " + u + " " + on + " " + at + " " + Arrays.toString(seats) + " " + price);
+                }
+                public void cancel(String u, LocalDate on, LocalTime at, int[] seats) {
+                    replayed.add("cancel " + u + " " + Arrays.toString(seats));
+                }
+                public void clearSlot(LocalDate on, LocalTime at) { }
+                public void createUser(String u, String p, boolean admin) { }
+                public void deleteUser(String u) { }
+            });
+            assertEquals(List.of("reserve " + odd.getUsername() + " " + day + " " + time + " [7, 8] 20.0",
+                    "cancel " + odd.getUsername() + " [7, 8]"), replayed);
+        } finally {
+            file.delete();
+            dir.delete();
+        }
+    }
+
     @Test(timeout = 1000)
     public void testLockAndUnlockSeats() {
         Set<Integer> locked = new HashSet<>(Arrays.asList(1, 2, 3));
@@ -126,6 +589,575 @@ public class ReservationSystemTests {
                 handler.isSeatAvailable(date, time, 1));
     }
 
+    @Test(timeout = 1000)
+    public void testSeatAvailabilityFollowsBookings() {
+        handler.createAccount("lee", "pw");
+        LocalTime slot = LocalTime.of(20, 0);
+        handler.cancelAllReservations(date, slot);
+
+        assertTrue(handler.makeReservation("lee", date, slot, Arrays.asList(10, 11)));
+        assertFalse(handler.isSeatAvailable(date, slot, 10));
+        assertFalse("Overlapping selection must fail",
+                handler.makeReservation("lee", date, slot, Arrays.asList(11, 12)));
+
+        handler.lockSeats(Set.of(12));
+        assertFalse("Locked seat in selection must fail",
+                handler.makeReservation("lee", date, slot, Arrays.asList(12, 13)));
+        handler.unlockSeats(Set.of(12));
+
+        handler.cancelAllReservations(date, slot);
+        assertTrue(handler.isSeatAvailable(date, slot, 10));
+        assertTrue(handler.isSeatAvailable(date, slot, 11));
+    }
+
+    @Test(timeout = 5000)
+    public void testConcurrentBookingsNeverDoubleBook() throws Exception {
+        LocalTime slot = LocalTime.of(19, 0);
+        handler.cancelAllReservations(date, slot);
+        int clients = 8;
+        for (int i = 0; i < clients; i++) handler.createAccount("racer" + i, "pw");
+
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger wins = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            String user = "racer" + i;
+            futures.add(pool.submit(() -> {
+                start.await();
+                if (handler.makeReservation(user, date, slot, Arrays.asList(30, 31))) wins.incrementAndGet();
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> f : futures) f.get();
+        pool.shutdown();
+
+        assertEquals("Exactly one client may get the seats", 1, wins.get());
+        assertEquals(1, handler.getReservationsForSlot(date, slot).size());
+        handler.cancelAllReservations(date, slot);
+    }
+
+    @Test(timeout = 2000)
+    public void testReservationsSurviveRestart() throws Exception {
+        LocalTime slot = LocalTime.of(22, 0);
+        handler.createAccount("max", "pw");
+        handler.cancelAllReservations(date, slot);
+        assertTrue(handler.makeReservation("max", date, slot, Arrays.asList(40, 41)));
+        handler.close();
+
+        // a torn append at the tail of the log must not hide earlier records
+        try (FileOutputStream log = new FileOutputStream(new java.io.File(dataDir, "reservations.log"), true)) {
+            log.write(new byte[] {0, 0, 0, 42, 1, 2, 3});
+        }
+
+        ReservationHandler restarted = new ReservationHandler();
+        assertTrue(restarted.login("max", "pw"));
+        assertFalse(restarted.isSeatAvailable(date, slot, 40));
+        assertTrue(restarted.cancelReservation("max", date, slot, Arrays.asList(40, 41)));
+        restarted.close();
+        ReservationHandler again = new ReservationHandler();
+        assertTrue(again.isSeatAvailable(date, slot, 40));
+        again.close();
+    }
+
+    @Test(timeout = 2000)
+    public void testCompactionKeepsData() {
+        LocalTime slot = LocalTime.of(23, 0);
+        handler.close(); // compaction swaps the log file under any other database open on it
+        ReservationDatabase db = new ReservationDatabase();
+        db.addUser(new User("zoe", "pw"));
+        db.removeAllReservations(date, slot);
+        db.addReservation(new Reservation(db.getUser("zoe"), date, slot, new int[] {5}, 10.0));
+        db.compact();
+        db.close();
+
+        ReservationDatabase reloaded = new ReservationDatabase();
+        assertTrue(reloaded.validateLogin("zoe", "pw"));
+        assertEquals(1, reloaded.getReservationsForSlot(date, slot).size());
+        reloaded.removeAllReservations(date, slot);
+        reloaded.close();
+    }
+
+    @Test(timeout = 2000)
+    public void testAsyncLogFlushesOnDemand() throws Exception {
+        java.io.File file = java.io.File.createTempFile("async", ".log");
+        file.deleteOnExit();
+        User u = new User("ann", "pw");
+        try (ReservationLog log = new ReservationLog(file.getPath(), PersistenceWriter.Durability.ASYNC, 50)) {
+            log.createUser(u);
+            for (int i = 0; i < 20; i++) log.reserve(new Reservation(u, date, time, new int[] {i}, 10.0));
+            log.flush();
+        }
+        int[] reserves = new int[1];
+        try (ReservationLog log = new ReservationLog(file.getPath())) {
+            assertEquals(21, log.replay(new ReservationLog.Replay() {
+                public void reserve(String user, LocalDate d, LocalTime t, int[] seats, double price) { reserves[0]++; }
+                public void cancel(String user, LocalDate d, LocalTime t, int[] seats) { }
+                public void clearSlot(LocalDate d, LocalTime t) { }
+                public void createUser(String user, String password, boolean admin) { }
+                public void deleteUser(String user) { }
+            }));
+        }
+        assertEquals(20, reserves[0]);
+    }
+
+    @Test(timeout = 2000)
+    public void testFailedLogWriteIsNeverDurable() throws Exception {
+        java.io.File file = java.io.File.createTempFile("failing", ".log");
+        file.deleteOnExit();
+        java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file.toPath(), java.nio.file.StandardOpenOption.WRITE);
+        channel.close(); // every write now throws ClosedChannelException
+        PersistenceWriter writer = new PersistenceWriter(channel, PersistenceWriter.Durability.SYNC, 2);
+        long ticket = writer.submit(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        try {
+            writer.awaitDurable(ticket);
+            fail("a failed write was reported durable");
+        } catch (java.io.UncheckedIOException expected) {
+        }
+        java.io.IOException[] seen = new java.io.IOException[1];
+        writer.whenDurable(ticket, e -> seen[0] = e);
+        assertNotNull(seen[0]);
+        try {
+            writer.submit(ByteBuffer.wrap(new byte[] {4}));
+            fail("accepted a record after a failed write");
+        } catch (IllegalStateException expected) {
+        }
+        writer.close();
+    }
+
+    @Test(timeout = 1000)
+    public void testSnapshotRoundTrip() throws Exception {
+        User a = new User("ana", "pw1");
+        User b = new User("ben", "pw2");
+        b.setAdmin(true);
+        Reservation r1 = new Reservation(a, date, LocalTime.of(18, 30), new int[] {1, 200, 3}, 30.0);
+        Reservation r2 = new Reservation(b, date.plusDays(1), time, new int[] {7}, 12.5);
+
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        try (SnapshotWriter out = new SnapshotWriter(bytes)) {
+            out.writeUser(a);
+            out.writeUser(b);
+            out.writeReservation(r1);
+            out.writeReservation(r2);
+        }
+
+        List<User> users = new ArrayList<>();
+        List<Reservation> reservations = new ArrayList<>();
+        try (SnapshotReader in = new SnapshotReader(new java.io.ByteArrayInputStream(bytes.toByteArray()))) {
+            in.read(new SnapshotReader.Sink() {
+                public void user(User user) { users.add(user); }
+                public void reservation(Reservation r) { reservations.add(r); }
+            });
+        }
+        assertEquals(2, users.size());
+        assertTrue(users.get(1).isAdmin());
+        assertEquals(Arrays.asList(r1, r2), reservations);
+        assertEquals(30.0, reservations.get(0).getTotalPrice(), 0.001);
+        assertSame("Reservations share the interned user", users.get(0), reservations.get(0).getUser());
+    }
+
+    @Test(timeout = 1000)
+    public void testWireProtocolRoundTrip() {
+        java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocateDirect(16); // small on purpose, encoders must grow it
+        Request req = new Request("makeReservation", new Object[]{"ana", date, time, new ArrayList<>(List.of(4, 5))});
+        buf = WireProtocol.encodeRequest(buf, req);
+        buf = WireProtocol.encodeRequest(buf, new Request("login", new String[]{"ana", "pw"}, 42));
+        buf.flip();
+
+        assertTrue(WireProtocol.completeFrame(buf) > 0);
+        Request decoded = WireProtocol.decodeRequest(buf);
+        assertEquals("makeReservation", decoded.getAction());
+        Object[] data = (Object[]) decoded.getPayload();
+        assertEquals("ana", data[0]);
+        assertEquals(date, data[1]);
+        assertEquals(time, data[2]);
+        assertArrayEquals(new int[]{4, 5}, (int[]) data[3]);
+        assertEquals(0, decoded.getId());
+        Request pipelined = WireProtocol.decodeRequest(buf);
+        assertEquals("login", pipelined.getAction());
+        assertEquals(42, pipelined.getId());
+        assertEquals(-1, WireProtocol.completeFrame(buf));
+        // a decoded request encodes again as it came (TraceReplay sends recorded ones)
+        java.nio.ByteBuffer again = WireProtocol.encodeRequest(java.nio.ByteBuffer.allocate(64), decoded);
+        again.flip();
+        assertArrayEquals(new int[]{4, 5}, (int[]) ((Object[]) WireProtocol.decodeRequest(again).getPayload())[3]);
+
+        Reservation r = new Reservation(new User("ana", "pw"), date, time, new int[] {4, 5}, 20.0);
+        buf.clear();
+        Response sent = new Response(true, "Success", List.of(r));
+        sent.setId(7);
+        buf = WireProtocol.encodeResponse(buf, WireProtocol.GET_RESERVATIONS, sent);
+        buf.flip();
+        Response res = WireProtocol.decodeResponse(buf);
+        assertTrue(res.isSuccess());
+        assertEquals(7, res.getId());
+        assertEquals("Success", res.getMessage());
+        assertEquals(List.of(r), res.getPayload());
+    }
+
+    @Test(timeout = 5000)
+    public void testReservationsForUserPageByDate() {
+        handler.createAccount("uma", "pw");
+        handler.createAccount("vic", "pw");
+        LocalDate first = date.plusDays(40);
+        LocalTime late = time.plusHours(1);
+        for (int d = 40; d <= 42; d++) {
+            handler.cancelAllReservations(date.plusDays(d), time);
+            handler.cancelAllReservations(date.plusDays(d), late);
+        }
+
+        assertTrue(handler.makeReservation("uma", first, late, Arrays.asList(1)));
+        assertTrue(handler.makeReservation("uma", first, time, Arrays.asList(2)));
+        assertTrue(handler.makeReservation("vic", first, time, Arrays.asList(3)));
+        assertTrue(handler.makeReservation("uma", first.plusDays(1), time, Arrays.asList(4)));
+        for (int seat = 5; seat <= 7; seat++) assertTrue(handler.makeReservation("uma", first.plusDays(2), time, Arrays.asList(seat)));
+
+        // in date and time order, only uma's, and a page never splits a day
+        List<Reservation> page = handler.getReservationsForUser("uma", first, 2);
+        assertEquals(2, page.size());
+        assertEquals(time, page.get(0).getTime());
+        assertEquals(late, page.get(1).getTime());
+        page = handler.getReservationsForUser("uma", page.get(1).getDate().plusDays(1), 2);
+        assertEquals(4, page.size()); // the day after, then all of the next one
+        assertArrayEquals(new int[]{5}, page.get(1).getSeats()); // same slot: in booking order
+        assertTrue(handler.getReservationsForUser("uma", first.plusDays(3), 2).isEmpty());
+        assertEquals(1, handler.getReservationsForUser("vic", first, 10).size());
+
+        // cancels and cancel-all are followed
+        assertTrue(handler.cancelReservation("uma", first.plusDays(2), time, Arrays.asList(6)));
+        assertEquals(2, handler.getReservationsForUser("uma", first.plusDays(2), 10).size());
+        handler.cancelAllReservations(first.plusDays(2), time);
+        assertTrue(handler.getReservationsForUser("uma", first.plusDays(2), 10).isEmpty());
+
+        // over the wire
+        java.nio.ByteBuffer buf = WireProtocol.encodeRequest(java.nio.ByteBuffer.allocate(64),
+                new Request("getReservationsForUser", new Object[]{"uma", first, 2}));
+        buf.flip();
+        Response res = new ClientHandler(null, handler).handleRequest(WireProtocol.decodeRequest(buf));
+        buf = WireProtocol.encodeResponse(java.nio.ByteBuffer.allocate(64), WireProtocol.GET_USER_RESERVATIONS, res);
+        buf.flip();
+        assertEquals(handler.getReservationsForUser("uma", first, 2), WireProtocol.decodeResponse(buf).getPayload());
+
+        // deleting the account takes its bookings with it
+        assertTrue(handler.deleteAccount("uma", "pw"));
+        assertTrue(handler.getReservationsForUser("uma", LocalDate.MIN, 10).isEmpty());
+        assertEquals(1, handler.getReservationsForSlot(first, time).size());
+        assertTrue(handler.getReservationsForSlot(first, late).isEmpty());
+        handler.cancelAllReservations(first, time);
+
+        // a crowded day: the page stops MAX_TAIL past its limit and the cursor picks up there
+        UserIndex index = new UserIndex();
+        User xan = new User("xan", "pw");
+        for (int i = 0; i < UserIndex.MAX_TAIL + 10; i++) index.add(new Reservation(xan, first, time, new int[]{i}, 1.0));
+        index.add(new Reservation(xan, first, late, new int[]{0}, 1.0));
+        page = index.page("xan", first, 5);
+        assertEquals(5 + UserIndex.MAX_TAIL, page.size());
+        page = index.page("xan", first, time, page.size(), 5);
+        assertEquals(6, page.size()); // the rest of the slot, then the rest of the day
+        assertArrayEquals(new int[]{5 + UserIndex.MAX_TAIL}, page.get(0).getSeats());
+        assertEquals(late, page.get(5).getTime());
+        assertEquals(1, index.page("xan", first, late, 0, 5).size());
+        assertEquals(UserIndex.MAX_TAIL + 11, index.drop("xan").size());
+        assertEquals(0, index.count("xan"));
+    }
+
+    @Test(timeout = 10000)
+    @SuppressWarnings("unchecked")
+    public void testShardedEngineRoutesBySlot() throws Exception {
+        java.io.File dir = java.nio.file.Files.createTempDirectory("shards").toFile();
+        ShardedEngine engine = new ShardedEngine(3, dir.getPath());
+        ClientHandler client = new ClientHandler(null, engine, null);
+        LocalDate day = date.plusDays(43);
+        LocalTime other = time.plusHours(1);
+        while (engine.shardOf(day, other) == engine.shardOf(day, time)) other = other.plusMinutes(30);
+
+        // accounts reach every shard
+        assertTrue(client.handleRequest(new Request("createAccount", new String[]{"wes", "pw"})).isSuccess());
+        assertFalse(client.handleRequest(new Request("createAccount", new String[]{"wes", "pw"})).isSuccess());
+        assertTrue(client.handleRequest(new Request("login", new String[]{"wes", "pw"})).isSuccess());
+
+        // a booking lands on its slot's shard only
+        assertTrue(client.handleRequest(new Request("makeReservation", new Object[]{"wes", day, time, List.of(1, 2)})).isSuccess());
+        assertEquals(1, engine.handlerFor(day, time).getReservationsForSlot(day, time).size());
+        assertTrue(engine.handlerFor(day, other).getReservationsForSlot(day, time).isEmpty());
+
+        // a batch runs on its shard, and one over two shards is refused without booking anything
+        Request both = new Request("makeReservationsBatch", new Object[]{"wes",
+                List.of(new BatchEntry(day, other, List.of(5)), new BatchEntry(day, time, List.of(3)))});
+        assertFalse(client.handleRequest(both).isSuccess());
+        assertTrue(engine.handlerFor(day, other).getReservationsForSlot(day, other).isEmpty());
+        assertTrue(engine.handlerFor(day, time).isSeatAvailable(day, time, 3));
+        Request one = new Request("makeReservationsBatch", new Object[]{"wes",
+                List.of(new BatchEntry(day, other, List.of(5)), new BatchEntry(day, other, List.of(4)))});
+        Response res = client.handleRequest(one);
+        assertTrue(res.isSuccess());
+        assertEquals(20.0, (Double) res.getPayload(), 0.001);
+
+        // a hold is confirmed on the shard that made it
+        Response held = client.handleRequest(new Request("holdSeats", new Object[]{"wes", day, other, List.of(6), 60}));
+        assertTrue(held.isSuccess());
+        assertTrue(client.handleRequest(new Request("confirmHold", new Object[]{"wes", held.getPayload()})).isSuccess());
+
+        // an expired hold is let go on its shard's thread, after what was queued there before it
+        assertTrue(client.handleRequest(new Request("holdSeats", new Object[]{"wes", day, other, List.of(7), 1})).isSuccess());
+        Response busy = engine.execute(new Request("getReservations", new Object[]{day, other}), (h, r) -> {
+            try {
+                Thread.sleep(1500);
+            } catch (InterruptedException ignored) {
+            }
+            return new Response(h.getHoldCount() == 1, "", null);
+        });
+        assertTrue(busy.isSuccess());
+        while (engine.handlerFor(day, other).getHoldCount() > 0) Thread.sleep(20);
+        assertTrue(engine.handlerFor(day, other).isSeatAvailable(day, other, 7));
+
+        // the user's bookings from every shard, in date and time order
+        List<Reservation> mine = (List<Reservation>) client.handleRequest(
+                new Request("getReservationsForUser", new Object[]{"wes", day, 10})).getPayload();
+        assertEquals(4, mine.size());
+        assertArrayEquals(new int[]{1, 2}, mine.get(0).getSeats());
+        assertEquals(other, mine.get(3).getTime());
+
+        // admin settings reach every shard
+        assertTrue(client.handleRequest(new Request("setSeatPrice", new Object[]{7, 25.0})).isSuccess());
+        assertEquals(25.0, engine.handlerFor(day, time).getSeatPrice(7), 0.001);
+        assertEquals(25.0, engine.handlerFor(day, other).getSeatPrice(7), 0.001);
+
+        // an Error in a request fails that request only; the shard thread carries on
+        Response failed = engine.execute(new Request("getReservations", new Object[]{day, time}), (h, r) -> {
+            throw new AssertionError("boom");
+        });
+        assertFalse(failed.isSuccess());
+        assertEquals(1, ((List<Reservation>) client.handleRequest(
+                new Request("getReservations", new Object[]{day, time})).getPayload()).size());
+
+        // each shard reloads its own data, and only under the same shard count
+        engine.close();
+        ShardedEngine reopened = new ShardedEngine(3, dir.getPath());
+        assertEquals(1, reopened.handlerFor(day, time).getReservationsForSlot(day, time).size());
+        assertEquals(3, reopened.handlerFor(day, other).getReservationsForSlot(day, other).size());
+        assertTrue(reopened.handlerFor(day, other).login("wes", "pw"));
+        reopened.close();
+        try {
+            new ShardedEngine(2, dir.getPath());
+            fail("opened 3 shards' data as 2");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            new ReservationDatabase(new Metrics(), dir.getPath());
+            fail("opened sharded data with the shared engine");
+        } catch (IllegalStateException expected) {
+        }
+        java.io.File shared = java.nio.file.Files.createTempDirectory("shared").toFile();
+        java.io.File sharedLog = new java.io.File(shared, "reservations.log");
+        assertTrue(sharedLog.createNewFile());
+        try {
+            new ShardedEngine(2, shared.getPath());
+            fail("opened the shared engine's data as shards");
+        } catch (IllegalStateException expected) {
+        }
+        sharedLog.delete();
+        shared.delete();
+
+        for (java.io.File shard : dir.listFiles()) {
+            if (shard.isDirectory()) for (java.io.File f : shard.listFiles()) f.delete();
+            shard.delete();
+        }
+        dir.delete();
+    }
+
+    @Test(timeout = 2000)
+    public void testSeatStateFileSurvivesReopen() throws Exception {
+        java.io.File file = java.io.File.createTempFile("seats", ".map");
+        file.delete();
+        file.deleteOnExit();
+        new java.io.File(file.getPath() + ".owners").deleteOnExit();
+
+        try (SeatStateFile state = new SeatStateFile(file.getPath(), 8, 128)) {
+            SeatOccupancy occ = state.occupancy(date, time);
+            occ.occupy(new int[] {3, 70}, "amy");
+            occ.occupy(new int[] {4}, "bo");
+            occ.release(new int[] {4});
+            assertFalse(occ.canHold(new int[] {128}));
+            state.occupancy(date, time.plusSeconds(30)).occupy(new int[] {5}, "cy"); // same minute, another showtime
+        }
+
+        try (SeatStateFile state = new SeatStateFile(file.getPath(), 8, 128)) {
+            SeatOccupancy occ = state.occupancy(date, time);
+            assertTrue(occ.get(3));
+            assertTrue(occ.get(70));
+            assertFalse(occ.get(4));
+            assertTrue(occ.intersectsAny(SeatBitmap.of(new int[] {70}), new SeatBitmap()));
+
+            List<Reservation> rebuilt = state.reservationsFor(date, time);
+            assertEquals(1, rebuilt.size());
+            assertEquals("amy", rebuilt.get(0).getUser().getUsername());
+            assertArrayEquals(new int[] {3, 70}, rebuilt.get(0).getSeats());
+            assertFalse(occ.get(5));
+            assertTrue(state.occupancy(date, time.plusSeconds(30)).get(5));
+            assertFalse(state.occupancy(date, time.plusSeconds(30)).get(3));
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void testAdmissionControlShedsLoad() throws Exception {
+        java.net.InetAddress local = java.net.InetAddress.getLoopbackAddress();
+        AdmissionControl admission = new AdmissionControl(2, 1, 1, 2);
+
+        AdmissionControl.Client a = admission.connect(local);
+        AdmissionControl.Client b = admission.connect(local);
+        assertNull(admission.connect(local)); // full
+        b.close();
+        b = admission.connect(local);
+        assertNotNull(b);
+
+        // burst of 2 mutating requests, then a wait of about a second; reads aren't limited
+        Request write = new Request("cancelAll", new Object[]{date, time}, 5);
+        assertNull(a.admit(write));
+        a.done();
+        assertNull(b.admit(write)); // same address, same bucket
+        b.done();
+        Response limited = a.admit(write);
+        assertFalse(limited.isSuccess());
+        assertEquals(5, limited.getId());
+        assertTrue(limited.getRetryAfterMillis() > 500);
+
+        // one request in progress server-wide
+        Request read = new Request("getReservations", new Object[]{date, time});
+        assertNull(a.admit(read));
+        Response busy = b.admit(read);
+        assertEquals("Server busy", busy.getMessage());
+        a.done();
+        assertNull(b.admit(read));
+        b.done();
+        assertEquals(1, admission.getRefusedConnections());
+        assertEquals(1, admission.getRateLimited());
+        assertEquals(1, admission.getOverloaded());
+
+        // the wait travels with the binary answer
+        ByteBuffer buf = WireProtocol.encodeResponse(ByteBuffer.allocate(64), WireProtocol.CANCEL_ALL, limited);
+        buf.flip();
+        assertEquals(limited.getRetryAfterMillis(), WireProtocol.decodeResponse(buf).getRetryAfterMillis());
+    }
+
+    @Test(timeout = 2000)
+    public void testMetricsHistogramsAndStatsAction() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int us = 1; us <= 1000; us++) h.record(us * 1000L);
+        assertEquals(1000, h.getCount());
+        assertEquals(1_000_000, h.getMax());
+        assertEquals(500_000, h.getPercentile(0.5), 500_000 * 0.04);
+        assertEquals(990_000, h.getPercentile(0.99), 990_000 * 0.04);
+
+        // recording allocates nothing
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 100_000; i++) h.record(i * 37L);
+        assertTrue(threads.getCurrentThreadAllocatedBytes() - before < 1024);
+
+        // a booking waits for its slot lock and the log
+        Metrics metrics = handler.getMetrics();
+        long locks = metrics.getLockWait().getCount();
+        long appends = metrics.getPersistence().getCount();
+        handler.createAccount("stats_user", "pw");
+        LocalDate day = date.plusDays(36);
+        assertTrue(handler.makeReservation("stats_user", day, time, Arrays.asList(1)));
+        assertTrue(metrics.getLockWait().getCount() > locks);
+        assertTrue(metrics.getPersistence().getCount() > appends);
+        metrics.recordRequest("makeReservation", System.nanoTime(), false);
+        assertEquals(1, metrics.getFailures("makeReservation"));
+
+        // admin only
+        ClientHandler dispatcher = new ClientHandler(null, handler);
+        assertFalse(dispatcher.handleRequest(new Request("stats", "wrong")).isSuccess());
+        Response res = dispatcher.handleRequest(new Request("stats", "admin123"));
+        assertTrue(res.isSuccess());
+        String report = (String) res.getPayload();
+        assertTrue(report.contains("makeReservation"));
+        assertTrue(report.contains("persistence"));
+        assertTrue(report.contains("cache: hits="));
+
+        ByteBuffer buf = WireProtocol.encodeResponse(ByteBuffer.allocate(64), WireProtocol.STATS, res);
+        buf.flip();
+        assertEquals(report, WireProtocol.decodeResponse(buf).getPayload());
+        handler.cancelAllReservations(day, time);
+    }
+
+    @Test(timeout = 10000)
+    public void testTraceRecordsAndReplaysRequests() throws Exception {
+        java.io.File dir = java.nio.file.Files.createTempDirectory("trace").toFile();
+        String file = new java.io.File(dir, "trace.jsonl").getPath();
+        LocalDate day = LocalDate.now().plusDays(37);
+        Request[] sent = {
+                new Request("createAccount", new String[]{"trace_user", "secret"}),
+                new Request("login", new String[]{"trace_user", "secret"}),
+                new Request("makeReservation", new Object[]{"trace_user", day, time, new int[]{1, 2}}, 7), // as decoded from a frame
+                new Request("makeReservationsBatch", new Object[]{"trace_user",
+                        List.of(new BatchEntry(day, time, List.of(3)))}),
+                new Request("reserveBestAvailable", new Object[]{"trace_user", day, time, 2,
+                        new SeatPreferences(12.5, true)}),
+                new Request("getReservationsSince", new Object[]{day, time, 1L << 40}),
+                new Request("stats", "admin123"),
+                new Request("cancelReservation", new Object[]{"quote\"d\\\n", day, time, List.of(4)}),
+        };
+        // small files, so the trace rotates
+        try (TraceRecorder trace = new TraceRecorder(file, 300, 10, 64)) {
+            for (Request r : sent) assertTrue(trace.record(3, r));
+        }
+
+        List<String> lines = new ArrayList<>();
+        for (int i = 10; i >= 1; i--) {
+            java.io.File older = new java.io.File(file + "." + i);
+            if (older.exists()) lines.addAll(java.nio.file.Files.readAllLines(older.toPath()));
+        }
+        assertTrue("should have rotated", new java.io.File(file + ".1").exists());
+        lines.addAll(java.nio.file.Files.readAllLines(java.nio.file.Path.of(file)));
+        assertEquals(sent.length, lines.size());
+
+        long last = 0;
+        for (int i = 0; i < sent.length; i++) {
+            assertFalse("passwords aren't recorded", lines.get(i).contains("secret"));
+            Trace.Entry e = Trace.parse(lines.get(i));
+            assertEquals(3, e.connection());
+            assertTrue(e.micros() >= last);
+            last = e.micros();
+            Request r = e.request();
+            assertEquals(sent[i].getAction(), r.getAction());
+            assertEquals(sent[i].getId(), r.getId());
+            if (i < 2 || i == 6) continue; // masked
+            Object[] expected = sent[i].getPayload() instanceof Object[] a ? a : new Object[]{sent[i].getPayload()};
+            Object[] actual = r.getPayload() instanceof Object[] a ? a : new Object[]{r.getPayload()};
+            assertEquals(expected.length, actual.length);
+            for (int k = 0; k < expected.length; k++) {
+                if (expected[k] instanceof List<?> list && list.get(0) instanceof BatchEntry b) {
+                    BatchEntry got = (BatchEntry) ((List<?>) actual[k]).get(0);
+                    assertEquals(b.getDate(), got.getDate());
+                    assertEquals(b.getTime(), got.getTime());
+                    assertEquals(b.getSeats(), got.getSeats());
+                } else if (expected[k] instanceof SeatPreferences p) {
+                    SeatPreferences got = (SeatPreferences) actual[k];
+                    assertEquals(p.getMaxSeatPrice(), got.getMaxSeatPrice(), 0);
+                    assertEquals(p.isPreferCentre(), got.isPreferCentre());
+                } else if (expected[k] instanceof String[] strings) {
+                    assertArrayEquals(strings, (String[]) actual[k]);
+                } else if (expected[k] instanceof int[] ints) {
+                    assertArrayEquals(ints, (int[]) actual[k]);
+                } else {
+                    assertEquals(expected[k], actual[k]);
+                }
+            }
+        }
+        // the same password gets the same stand-in, so a replayed login still matches its account
+        String[] created = (String[]) Trace.parse(lines.get(0)).request().getPayload();
+        String[] loggedIn = (String[]) Trace.parse(lines.get(1)).request().getPayload();
+        assertEquals(created[1], loggedIn[1]);
+        assertEquals(TraceRecorder.ADMIN_KEY, Trace.parse(lines.get(6)).request().getPayload());
+
+        for (java.io.File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
 
     @Test(timeout = 1000)
     public void testCalculateTotalPrice() {
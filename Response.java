@@ -9,6 +9,8 @@ public class Response implements Serializable {
     private boolean success;
     private String message;
     private Object payload;
+    private int id; // copied from the Request it answers
+    private long retryAfterMillis; // set on "server busy" answers: the request wasn't run, try again after this long
 
     public Response(boolean success, String message, Object payload) {
         this.success = success;
@@ -29,6 +31,15 @@ public class Response implements Serializable {
         return payload;
     }
 
+    public int getId() {
+        return id;
+    }
+
+    // 0 unless the server turned the request away (see AdmissionControl)
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
     // Setters
     public void setSuccess(boolean success) {
         this.success = success;
@@ -42,12 +53,22 @@ public class Response implements Serializable {
         this.payload = payload;
     }
 
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public void setRetryAfterMillis(long retryAfterMillis) {
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
     @Override
     public String toString() {
         return "Response{" +
                 "success=" + success +
                 ", message='" + message + '\'' +
                 ", payload=" + payload +
+                (id != 0 ? ", id=" + id : "") +
+                (retryAfterMillis != 0 ? ", retryAfterMillis=" + retryAfterMillis : "") +
                 '}';
     }
 }
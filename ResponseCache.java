@@ -0,0 +1,182 @@
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Already-encoded getReservations answers, per slot and wire format.
+ *
+ * Each entry is stamped with the slot version it was built from and only
+ * served while the slot is still at that version, so a rebuild racing a
+ * booking can't leave stale bytes behind. ReservationHandler also drops a
+ * slot's entries when it changes the slot, to free the memory early.
+ *
+ * Memory is bounded by total encoded bytes, evicting least recently used
+ * entries first. Concurrent misses for the same slot, format and version
+ * share one rebuild.
+ */
+public class ResponseCache {
+    static final int BINARY = 1;
+    static final int OBJECT_STREAM = 2;
+
+    private final long maxBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true); // access order
+    private long bytes;
+    private final Map<Key, CompletableFuture<Entry>> building = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** A built answer and the slot version it reflects. */
+    public static final class Entry {
+        final long version;
+        final byte[] bytes;
+
+        public Entry(long version, byte[] bytes) {
+            this.version = version;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * The encoded answer for the slot at version, or at a later version if
+     * build had to run and the slot moved on meanwhile. build must read the
+     * slot and encode it, returning the version it read.
+     */
+    public byte[] get(int format, LocalDate date, LocalTime time, long version, Supplier<Entry> build) {
+        Key key = new Key(format, date, time);
+        Entry cached = lookup(key);
+        if (cached != null && cached.version == version) {
+            hits.increment();
+            return cached.bytes;
+        }
+        misses.increment();
+        Key pending = new Key(format, date, time, version);
+        CompletableFuture<Entry> mine = new CompletableFuture<>();
+        CompletableFuture<Entry> running = building.putIfAbsent(pending, mine);
+        if (running != null) {
+            coalesced.increment();
+            return running.join().bytes;
+        }
+        try {
+            Entry built = build.get();
+            store(key, built);
+            mine.complete(built);
+            return built.bytes;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            building.remove(pending);
+        }
+    }
+
+    // Drops every format's entry for the slot.
+    public void invalidate(LocalDate date, LocalTime time) {
+        lock.lock();
+        try {
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Entry> e = it.next();
+                if (e.getKey().date.equals(date) && e.getKey().time.equals(time)) {
+                    bytes -= e.getValue().bytes.length;
+                    it.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getCoalesced() { return coalesced.sum(); } // misses that waited for another thread's rebuild
+    public long getEvictions() { return evictions.sum(); }
+
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits() + " misses=" + getMisses() + " coalesced=" + getCoalesced()
+                + " evictions=" + getEvictions() + " bytes=" + getBytes();
+    }
+
+    private Entry lookup(Key key) {
+        lock.lock();
+        try {
+            return entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void store(Key key, Entry e) {
+        if (e.bytes.length > maxBytes) return;
+        lock.lock();
+        try {
+            Entry old = entries.get(key);
+            if (old != null && old.version > e.version) return; // a newer rebuild got here first
+            if (old != null) bytes -= old.bytes.length;
+            entries.put(key, e);
+            bytes += e.bytes.length;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().bytes.length;
+                eldest.remove();
+                evictions.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Key {
+        final int format;
+        final LocalDate date;
+        final LocalTime time;
+        final long version; // only set for keys of rebuilds in progress
+
+        Key(int format, LocalDate date, LocalTime time) {
+            this(format, date, time, 0);
+        }
+
+        Key(int format, LocalDate date, LocalTime time, long version) {
+            this.format = format;
+            this.date = date;
+            this.time = time;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && k.format == format && k.version == version
+                    && k.date.equals(date) && k.time.equals(time);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(format, date, time, version);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Compact set of seat indices, one bit per seat packed into longs.
+ * Used for per-slot occupancy and for admin-locked seats so a whole
+ * seat selection can be checked with a few word-wide ANDs.
+ */
+public class SeatBitmap {
+    private volatile long[] words;
+
+    public SeatBitmap() {
+        this(64);
+    }
+
+    public SeatBitmap(int seats) {
+        words = new long[Math.max(1, (seats + 63) >>> 6)];
+    }
+
+    public static SeatBitmap of(int[] seats) {
+        SeatBitmap b = new SeatBitmap();
+        for (int s : seats) b.set(s);
+        return b;
+    }
+
+    public static SeatBitmap of(Collection<Integer> seats) {
+        SeatBitmap b = new SeatBitmap();
+        for (int s : seats) b.set(s);
+        return b;
+    }
+
+    public boolean get(int seat) {
+        int w = seat >>> 6;
+        return seat >= 0 && w < words.length && (words[w] & (1L << seat)) != 0;
+    }
+
+    public void set(int seat) {
+        if (seat < 0) return;
+        int w = seat >>> 6;
+        if (w >= words.length) words = Arrays.copyOf(words, Math.max(w + 1, words.length * 2));
+        words[w] |= 1L << seat;
+    }
+
+    public void clear(int seat) {
+        int w = seat >>> 6;
+        if (seat >= 0 && w < words.length) words[w] &= ~(1L << seat);
+    }
+
+    public void setAll(int[] seats) {
+        for (int s : seats) set(s);
+    }
+
+    public void clearAll(int[] seats) {
+        for (int s : seats) clear(s);
+    }
+
+    public void clear() {
+        Arrays.fill(words, 0L);
+    }
+
+    // Clears every seat >= fromSeat (used when the hall shrinks).
+    public void clearFrom(int fromSeat) {
+        if (fromSeat < 0) fromSeat = 0;
+        int w = fromSeat >>> 6;
+        if (w >= words.length) return;
+        words[w] &= (1L << fromSeat) - 1; // keep only the bits below fromSeat
+        for (int i = w + 1; i < words.length; i++) words[i] = 0L;
+    }
+
+    public boolean intersects(SeatBitmap other) {
+        int n = Math.min(words.length, other.words.length);
+        for (int i = 0; i < n; i++) {
+            if ((words[i] & other.words[i]) != 0) return true;
+        }
+        return false;
+    }
+
+    // True if any seat in this set is in a or b: one pass of (this & (a | b)).
+    public boolean intersectsAny(SeatBitmap a, SeatBitmap b) {
+        long[] aw = a.words, bw = b.words;
+        for (int i = 0; i < words.length; i++) {
+            long mask = (i < aw.length ? aw[i] : 0L) | (i < bw.length ? bw[i] : 0L);
+            if ((words[i] & mask) != 0) return true;
+        }
+        return false;
+    }
+
+    // Raw access for stores that keep their own copy of the bits (see SeatStateFile).
+    public int wordCount() {
+        return words.length;
+    }
+
+    public long word(int i) {
+        long[] w = words;
+        return i < w.length ? w[i] : 0L;
+    }
+
+    // Highest seat index + 1, or 0 if empty.
+    public int length() {
+        for (int i = words.length - 1; i >= 0; i--) {
+            if (words[i] != 0) return (i << 6) + 64 - Long.numberOfLeadingZeros(words[i]);
+        }
+        return 0;
+    }
+
+    public int cardinality() {
+        int n = 0;
+        for (long w : words) n += Long.bitCount(w);
+        return n;
+    }
+
+    public SeatBitmap copy() {
+        SeatBitmap b = new SeatBitmap();
+        b.words = words.clone();
+        return b;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < words.length << 6; i++) {
+            if (get(i)) sb.append(sb.length() > 1 ? ", " : "").append(i);
+        }
+        return sb.append('}').toString();
+    }
+}
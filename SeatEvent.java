@@ -0,0 +1,43 @@
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Arrays;
+
+/**
+ * A change to some seats of one slot, pushed to subscribers of that slot
+ * (see SlotEvents). RESYNC carries no seats: events were dropped because
+ * the subscriber fell behind, so it should re-read the whole slot. HELD
+ * seats are taken for now but turn FREE again unless the hold is confirmed.
+ */
+public class SeatEvent implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum State { RESERVED, FREE, LOCKED, UNLOCKED, RESYNC, HELD }
+
+    private LocalDate date;
+    private LocalTime time;
+    private State state;
+    private int[] seats;
+    private String owner; // who reserved, held or released the seats; null for locks, cancel-all and resync
+
+    public SeatEvent(LocalDate date, LocalTime time, State state, int[] seats, String owner) {
+        this.date = date;
+        this.time = time;
+        this.state = state;
+        this.seats = seats == null ? new int[0] : seats;
+        this.owner = owner;
+    }
+
+    public LocalDate getDate() { return date; }
+    public LocalTime getTime() { return time; }
+    public State getState() { return state; }
+    public String getOwner() { return owner; }
+
+    // not copied: events are shared by every subscriber and never modified
+    public int[] getSeats() { return seats; }
+
+    @Override
+    public String toString() {
+        return state + " " + Arrays.toString(seats) + (owner == null ? "" : " by " + owner) + " at " + date + " " + time;
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.function.IntToLongFunction;
+
+/**
+ * Finds count adjacent free seats in one row of a rows x cols hall, where
+ * seat index = row * cols + col. Works a 64-bit word at a time: a row's
+ * free seats become a bitmask, and ANDing the mask with shifted copies of
+ * itself leaves a bit only where a long enough run of free seats starts.
+ * That is cheap enough to run with the slot locked.
+ */
+final class SeatFinder {
+    private SeatFinder() {
+    }
+
+    /**
+     * The chosen seats, or null if no row has count free seats side by
+     * side. busyWord(i) returns seats 64*i .. 64*i+63 that can't be used.
+     * Without preferCentre the first fit wins (lowest row, then leftmost);
+     * with it, the run closest to the middle of the hall.
+     */
+    static int[] find(int rows, int cols, int count, boolean preferCentre, IntToLongFunction busyWord) {
+        if (count <= 0 || count > cols || rows <= 0) return null;
+        long[] free = new long[(cols + 63) >>> 6];
+        int bestRow = -1, bestCol = -1;
+        double bestScore = Double.MAX_VALUE;
+        double midRow = (rows - 1) / 2.0;
+        double midCol = (cols - count) / 2.0; // start column that centres the run
+        for (int row : preferCentre ? centreOut(rows) : inOrder(rows)) {
+            double rowScore = Math.abs(row - midRow);
+            if (rowScore >= bestScore) break; // rows only get further from the middle
+            freeSeats(row * cols, cols, busyWord, free);
+            runStarts(free, count);
+            for (int w = 0; w < free.length; w++) {
+                for (long bits = free[w]; bits != 0; bits &= bits - 1) {
+                    int col = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    if (!preferCentre) return seats(row * cols + col, count);
+                    double score = rowScore + Math.abs(col - midCol);
+                    if (score < bestScore) {
+                        bestScore = score;
+                        bestRow = row;
+                        bestCol = col;
+                    }
+                }
+            }
+        }
+        return bestRow < 0 ? null : seats(bestRow * cols + bestCol, count);
+    }
+
+    // The row's free seats as a bitmask, column 0 in bit 0; bits past the last column are 0.
+    private static void freeSeats(int first, int cols, IntToLongFunction busyWord, long[] out) {
+        int shift = first & 63;
+        for (int w = 0; w < out.length; w++) {
+            int g = (first >>> 6) + w;
+            long busy = busyWord.applyAsLong(g) >>> shift;
+            if (shift != 0) busy |= busyWord.applyAsLong(g + 1) << (64 - shift);
+            out[w] = ~busy;
+        }
+        if ((cols & 63) != 0) out[out.length - 1] &= (1L << cols) - 1;
+    }
+
+    // Leaves bit c set only if columns c .. c+count-1 are all free, doubling the run length each pass.
+    private static void runStarts(long[] bits, int count) {
+        for (int have = 1; have < count; ) {
+            int step = Math.min(have, count - have);
+            andShiftedRight(bits, step);
+            have += step;
+        }
+    }
+
+    // bits &= bits >>> k across words; reads only words at or above the one being written.
+    private static void andShiftedRight(long[] bits, int k) {
+        int q = k >>> 6, r = k & 63;
+        for (int i = 0; i < bits.length; i++) {
+            long lo = i + q < bits.length ? bits[i + q] : 0L;
+            long hi = i + q + 1 < bits.length ? bits[i + q + 1] : 0L;
+            bits[i] &= r == 0 ? lo : (lo >>> r) | (hi << (64 - r));
+        }
+    }
+
+    private static int[] seats(int first, int count) {
+        int[] seats = new int[count];
+        for (int i = 0; i < count; i++) seats[i] = first + i;
+        return seats;
+    }
+
+    private static int[] inOrder(int rows) {
+        int[] order = new int[rows];
+        for (int i = 0; i < rows; i++) order[i] = i;
+        return order;
+    }
+
+    // Middle row(s) first, then alternately one further out on each side.
+    private static int[] centreOut(int rows) {
+        int[] order = new int[rows];
+        int lo = (rows - 1) / 2, hi = rows / 2, n = 0;
+        for (int d = 0; n < rows; d++) {
+            if (lo - d >= 0) order[n++] = lo - d;
+            if (hi + d != lo - d && hi + d < rows) order[n++] = hi + d;
+        }
+        return order;
+    }
+}
@@ -0,0 +1,24 @@
+/**
+ * Where a Slot keeps track of which seats are taken and by whom.
+ * The default lives on the heap (Slot.HeapOccupancy); SeatStateFile
+ * provides one backed by a memory-mapped file.
+ * Changes are made under the owning slot's lock.
+ */
+public interface SeatOccupancy {
+    boolean get(int seat);
+
+    // True if any seat in seats is taken here or present in locked.
+    boolean intersectsAny(SeatBitmap seats, SeatBitmap locked);
+
+    // Bits 64*i .. 64*i+63 of the taken set; seats this store can't represent read as taken.
+    long word(int i);
+
+    // False if some seat lies outside what this store can represent.
+    boolean canHold(int[] seats);
+
+    void occupy(int[] seats, String owner);
+
+    void release(int[] seats);
+
+    void clear();
+}
@@ -0,0 +1,28 @@
+import java.io.Serializable;
+
+/**
+ * What reserveBestAvailable may pick: seats costing at most maxSeatPrice
+ * each (0 for no limit), and whether to prefer the middle of the hall over
+ * the first fit from the front.
+ */
+public class SeatPreferences implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final SeatPreferences ANY = new SeatPreferences(0, false);
+
+    private double maxSeatPrice;
+    private boolean preferCentre;
+
+    public SeatPreferences(double maxSeatPrice, boolean preferCentre) {
+        this.maxSeatPrice = maxSeatPrice;
+        this.preferCentre = preferCentre;
+    }
+
+    public double getMaxSeatPrice() { return maxSeatPrice; }
+    public boolean isPreferCentre() { return preferCentre; }
+
+    @Override
+    public String toString() {
+        return (maxSeatPrice > 0 ? "max $" + maxSeatPrice + " per seat" : "any price") + (preferCentre ? ", centre" : "");
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-slot seat occupancy and ownership kept in a fixed-layout
+ * memory-mapped file, so a restarted server can answer availability
+ * as soon as the file is mapped, without loading reservations first.
+ *
+ * Layout (all offsets fixed by the header):
+ *   header     int magic, int version, int slotCapacity, int seatCapacity, int slotsUsed
+ *   directory  slotCapacity x (int epochDay, int secondOfDay + 1), 0 = unused
+ *   slots      slotCapacity x (seatCapacity / 64 occupancy longs, seatCapacity owner ints)
+ *
+ * Owner ints index a small append-only table of usernames kept next to
+ * the map (file + ".owners"); 0 means no owner. The file is not fsynced:
+ * the reservation log stays the source of truth, and ReservationDatabase
+ * rebuilds each slot's state from it once loading completes.
+ */
+public class SeatStateFile implements Closeable {
+    private static final int MAGIC = 0x53454154; // "SEAT"
+    private static final int VERSION = 2; // 1 kept minute of day, which merged showtimes within a minute
+    private static final int HEADER = 32;
+    private static final int SLOTS_USED = 16;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int slotCapacity;
+    private final int seatCapacity;
+    private final int words;
+    private final long slotBytes;
+    private final long slotsBase;
+
+    private final Map<LocalDate, Map<LocalTime, Integer>> directory = new ConcurrentHashMap<>();
+    private final ReentrantLock allocLock = new ReentrantLock();
+
+    private final List<String> owners = new ArrayList<>(); // id - 1 -> username
+    private final Map<String, Integer> ownerIds = new ConcurrentHashMap<>();
+    private final DataOutputStream ownerLog;
+
+    public SeatStateFile(String file, int slotCapacity, int seatCapacity) throws IOException {
+        int seatsRounded = (Math.max(64, seatCapacity) + 63) & ~63;
+        Path path = Path.of(file);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean fresh = channel.size() == 0;
+        if (!fresh) {
+            // an existing file keeps the geometry it was created with
+            MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            if (head.getInt(0) != MAGIC) throw new IOException("Not a seat state file: " + file);
+            if (head.getInt(4) != VERSION) {
+                // an older layout; the file only mirrors the log, so start it over
+                channel.truncate(0);
+                fresh = true;
+            } else {
+                slotCapacity = head.getInt(8);
+                seatsRounded = head.getInt(12);
+            }
+        }
+        this.slotCapacity = slotCapacity;
+        this.seatCapacity = seatsRounded;
+        this.words = seatsRounded >>> 6;
+        this.slotBytes = words * 8L + seatsRounded * 4L;
+        this.slotsBase = HEADER + slotCapacity * 8L;
+        long size = slotsBase + slotCapacity * slotBytes;
+        if (size > Integer.MAX_VALUE) throw new IOException("Seat state file too large; lower slot or seat capacity");
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        if (fresh) {
+            map.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, slotCapacity).putInt(12, seatsRounded).putInt(SLOTS_USED, 0);
+        }
+        int used = map.getInt(SLOTS_USED);
+        for (int id = 0; id < used; id++) {
+            int day = map.getInt(HEADER + id * 8);
+            int second = map.getInt(HEADER + id * 8 + 4) - 1;
+            directory.computeIfAbsent(LocalDate.ofEpochDay(day), d -> new ConcurrentHashMap<>())
+                    .put(LocalTime.ofSecondOfDay(second), id);
+        }
+
+        Path ownerFile = Path.of(file + ".owners");
+        if (Files.exists(ownerFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(ownerFile)))) {
+                while (true) {
+                    String name;
+                    try {
+                        name = in.readUTF();
+                    } catch (EOFException end) {
+                        break;
+                    }
+                    owners.add(name);
+                    ownerIds.put(name, owners.size());
+                }
+            }
+        }
+        ownerLog = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(ownerFile,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+    }
+
+    public int getSeatCapacity() {
+        return seatCapacity;
+    }
+
+    // Every slot already present in the file, for building Slot objects at startup.
+    public Map<LocalDate, Map<LocalTime, Integer>> getDirectory() {
+        return directory;
+    }
+
+    /** Occupancy for a slot, allocating it in the file if needed; null once the file is full. */
+    public SeatOccupancy occupancy(LocalDate date, LocalTime time) {
+        Integer id = slotId(date, time);
+        return id == null ? null : new MappedOccupancy(id);
+    }
+
+    // Provisional reservations rebuilt from seat ownership (one per owner, price unknown).
+    public List<Reservation> reservationsFor(LocalDate date, LocalTime time) {
+        Map<LocalTime, Integer> day = directory.get(date);
+        Integer id = day == null ? null : day.get(time);
+        if (id == null) return Collections.emptyList();
+        long base = slotsBase + id * slotBytes;
+        Map<Integer, List<Integer>> byOwner = new LinkedHashMap<>();
+        for (int w = 0; w < words; w++) {
+            long bits = map.getLong((int) (base + w * 8L));
+            while (bits != 0) {
+                int seat = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int owner = map.getInt((int) (base + words * 8L + seat * 4L));
+                byOwner.computeIfAbsent(owner, o -> new ArrayList<>()).add(seat);
+            }
+        }
+        List<Reservation> result = new ArrayList<>();
+        for (Map.Entry<Integer, List<Integer>> e : byOwner.entrySet()) {
+            String name = ownerName(e.getKey());
+            int[] seats = e.getValue().stream().mapToInt(Integer::intValue).toArray();
+            result.add(new Reservation(new User(name, ""), date, time, seats, 0));
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        map.force();
+        ownerLog.close();
+        channel.close();
+    }
+
+    private Integer slotId(LocalDate date, LocalTime time) {
+        Map<LocalTime, Integer> day = directory.computeIfAbsent(date, d -> new ConcurrentHashMap<>());
+        Integer id = day.get(time);
+        if (id != null) return id;
+        allocLock.lock();
+        try {
+            id = day.get(time);
+            if (id != null) return id;
+            int used = map.getInt(SLOTS_USED);
+            if (used >= slotCapacity) return null;
+            map.putInt(HEADER + used * 8, (int) date.toEpochDay());
+            map.putInt(HEADER + used * 8 + 4, time.toSecondOfDay() + 1); // what the log keys slots on
+            map.putInt(SLOTS_USED, used + 1);
+            day.put(time, used);
+            return used;
+        } finally {
+            allocLock.unlock();
+        }
+    }
+
+    private int ownerId(String username) {
+        Integer id = ownerIds.get(username);
+        if (id != null) return id;
+        allocLock.lock();
+        try {
+            id = ownerIds.get(username);
+            if (id != null) return id;
+            ownerLog.writeUTF(username);
+            ownerLog.flush();
+            owners.add(username);
+            ownerIds.put(username, owners.size());
+            return owners.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            allocLock.unlock();
+        }
+    }
+
+    private String ownerName(int id) {
+        allocLock.lock();
+        try {
+            return id > 0 && id <= owners.size() ? owners.get(id - 1) : "unknown";
+        } finally {
+            allocLock.unlock();
+        }
+    }
+
+    /** One slot's region of the mapped file. Uses absolute get/put only, so views can be shared across threads. */
+    private class MappedOccupancy implements SeatOccupancy {
+        private final int base;
+        private final int ownerBase;
+
+        MappedOccupancy(int slotId) {
+            base = (int) (slotsBase + slotId * slotBytes);
+            ownerBase = base + words * 8;
+        }
+
+        public boolean get(int seat) {
+            if (seat < 0 || seat >= seatCapacity) return false;
+            return (map.getLong(base + (seat >>> 6) * 8) & (1L << seat)) != 0;
+        }
+
+        public boolean intersectsAny(SeatBitmap seats, SeatBitmap locked) {
+            int n = seats.wordCount();
+            for (int i = 0; i < n; i++) {
+                long want = seats.word(i);
+                if (want == 0) continue;
+                long taken = locked.word(i) | (i < words ? map.getLong(base + i * 8) : 0L);
+                if ((want & taken) != 0) return true;
+            }
+            return false;
+        }
+
+        public boolean canHold(int[] seats) {
+            for (int s : seats) if (s < 0 || s >= seatCapacity) return false;
+            return true;
+        }
+
+        public long word(int i) {
+            return i < words ? map.getLong(base + i * 8) : -1L; // capacity is a whole number of words
+        }
+
+        public void occupy(int[] seats, String owner) {
+            int id = ownerId(owner);
+            for (int s : seats) {
+                if (s < 0 || s >= seatCapacity) continue;
+                int at = base + (s >>> 6) * 8;
+                map.putLong(at, map.getLong(at) | (1L << s));
+                map.putInt(ownerBase + s * 4, id);
+            }
+        }
+
+        public void release(int[] seats) {
+            for (int s : seats) {
+                if (s < 0 || s >= seatCapacity) continue;
+                int at = base + (s >>> 6) * 8;
+                map.putLong(at, map.getLong(at) & ~(1L << s));
+                map.putInt(ownerBase + s * 4, 0);
+            }
+        }
+
+        public void clear() {
+            for (int i = 0; i < words; i++) map.putLong(base + i * 8, 0L);
+            for (int s = 0; s < seatCapacity; s++) map.putInt(ownerBase + s * 4, 0);
+        }
+    }
+}
@@ -14,6 +14,9 @@ public class SeatingChartGUI extends JFrame {
     private LocalTime selectedTime;
     private JPanel seatPanel;
     private JTextArea infoArea;
+    private SlotEvents.Subscription subscription; // changes to the selected slot
+    private static final int HOLD_SECONDS = 120; // how long a clicked seat stays ours while the user decides
+    private static final int BOOKINGS_PAGE = 20; // reservations per "My Bookings" page
 
     // default seating layout
     private int rows = 5;
@@ -41,6 +44,10 @@ public class SeatingChartGUI extends JFrame {
         topPanel.add(loginBtn);
         topPanel.add(createBtn);
         topPanel.add(adminBtn);
+        JButton bestBtn = new JButton("Best Seats");
+        topPanel.add(bestBtn);
+        JButton myBookingsBtn = new JButton("My Bookings");
+        topPanel.add(myBookingsBtn);
 
         // Admin action buttons (only visible after admin login)
         JButton setHoursBtn = new JButton("Set Hours");
@@ -90,6 +97,8 @@ public class SeatingChartGUI extends JFrame {
         // Button actions
         loginBtn.addActionListener(e -> userLogin());
         createBtn.addActionListener(e -> createAccount());
+        bestBtn.addActionListener(e -> reserveBestSeats());
+        myBookingsBtn.addActionListener(e -> showMyBookings());
         adminBtn.addActionListener(e -> {
             adminLogin();
             boolean visible = isAdmin;
@@ -171,6 +180,7 @@ public class SeatingChartGUI extends JFrame {
         dateSelector.addActionListener(e -> updateDateTime());
         timeSelector.addActionListener(e -> updateDateTime());
 
+        watchSlot();
         refreshGrid();
         setVisible(true);
     }
@@ -201,9 +211,39 @@ public class SeatingChartGUI extends JFrame {
     private void updateDateTime() {
         selectedDate = LocalDate.parse((String) dateSelector.getSelectedItem());
         selectedTime = LocalTime.parse((String) timeSelector.getSelectedItem());
+        watchSlot();
         refreshGrid();
     }
 
+    // Follows the selected slot, so bookings made elsewhere show up without re-reading the whole slot.
+    private void watchSlot() {
+        if (subscription != null) subscription.close();
+        subscription = handler.subscribeSlot(selectedDate, selectedTime,
+                e -> SwingUtilities.invokeLater(() -> applySeatEvent(e)));
+    }
+
+    private void applySeatEvent(SeatEvent e) {
+        if (!e.getDate().equals(selectedDate) || !e.getTime().equals(selectedTime)) return; // slot since left
+        if (e.getState() == SeatEvent.State.RESYNC) {
+            refreshGrid();
+            return;
+        }
+        for (int i : e.getSeats()) {
+            if (i < 0 || i >= seatButtons.length) continue;
+            JButton b = seatButtons[i];
+            if (e.getState() == SeatEvent.State.RESERVED) {
+                b.setBackground(Color.RED);
+                if (isAdmin) b.setText(e.getOwner() + " ($" + handler.getSeatPrice(selectedDate, selectedTime, i) + ")");
+                else b.setText("$" + handler.getSeatPrice(selectedDate, selectedTime, i));
+            } else if (e.getState() == SeatEvent.State.HELD) {
+                b.setBackground(Color.ORANGE);
+            } else if (e.getState() == SeatEvent.State.FREE) {
+                b.setBackground(Color.GREEN);
+                b.setText("$" + handler.getSeatPrice(selectedDate, selectedTime, i));
+            }
+        }
+    }
+
     private void userLogin() {
         JTextField usernameField = new JTextField();
         JPasswordField passwordField = new JPasswordField();
@@ -277,29 +317,117 @@ public class SeatingChartGUI extends JFrame {
                 return;
             }
 
-            Reservation bookedRes = findReservationBySeat(seatIndex);
-            if (bookedRes != null) {
-                JOptionPane.showMessageDialog(this, "Seat already reserved!");
+            Reservation mine = findOwnReservation(seatIndex);
+            if (mine != null) {
+                int confirm = JOptionPane.showConfirmDialog(this,
+                        "You have seats " + mine.getSeatsAsList() + " here. Cancel this reservation?",
+                        "Your Reservation", JOptionPane.YES_NO_OPTION);
+                if (confirm == JOptionPane.YES_OPTION) {
+                    if (handler.cancelReservation(currentUser, selectedDate, selectedTime, mine.getSeatsAsList())) {
+                        JOptionPane.showMessageDialog(this, "Reservation canceled!");
+                        refreshGrid();
+                    } else {
+                        JOptionPane.showMessageDialog(this, "Unable to cancel.");
+                    }
+                }
+                return;
+            }
+
+            // hold the seat while the user decides, so nobody books it from under them
+            List<Integer> seats = Collections.singletonList(seatIndex);
+            long holdId = handler.holdSeats(currentUser, selectedDate, selectedTime, seats, HOLD_SECONDS);
+            if (holdId == 0) {
+                JOptionPane.showMessageDialog(this, "Seat is held or reserved by someone else!");
+                refreshGrid();
                 return;
             }
 
             int confirm = JOptionPane.showConfirmDialog(this,
-                    "Reserve seat " + seatIndex + " for $" + handler.getSeatPrice(seatIndex) + "?",
+                    "Reserve seat " + seatIndex + " for $" + handler.getSeatPrice(selectedDate, selectedTime, seatIndex) + "?",
                     "Confirm Seat", JOptionPane.YES_NO_OPTION);
 
             if (confirm == JOptionPane.YES_OPTION) {
-                List<Integer> seats = Collections.singletonList(seatIndex);
-                boolean ok = handler.makeReservation(currentUser, selectedDate, selectedTime, seats);
-                if (ok) {
+                if (handler.confirmHold(currentUser, holdId) != null) {
                     JOptionPane.showMessageDialog(this, "Reservation confirmed!");
                     refreshGrid();
                 } else {
-                    JOptionPane.showMessageDialog(this, "Failed to reserve seat!");
+                    JOptionPane.showMessageDialog(this, "Hold expired, seat not reserved!");
                 }
+            } else {
+                handler.releaseHold(currentUser, holdId);
             }
         }
     }
 
+    // Lets the server pick N seats together instead of the user hunting for them.
+    private void reserveBestSeats() {
+        if (currentUser == null || isAdmin) {
+            JOptionPane.showMessageDialog(this, "Please log in first.");
+            return;
+        }
+        JTextField countField = new JTextField("2");
+        JTextField maxPriceField = new JTextField();
+        JCheckBox centreBox = new JCheckBox("Prefer centre", true);
+        Object[] fields = {"Seats together:", countField, "Max price per seat (optional):", maxPriceField, centreBox};
+        int opt = JOptionPane.showConfirmDialog(this, fields, "Best Available Seats", JOptionPane.OK_CANCEL_OPTION);
+        if (opt != JOptionPane.OK_OPTION) return;
+        try {
+            int count = Integer.parseInt(countField.getText().trim());
+            String max = maxPriceField.getText().trim();
+            SeatPreferences prefs = new SeatPreferences(max.isEmpty() ? 0 : Double.parseDouble(max), centreBox.isSelected());
+            Reservation r = handler.reserveBestAvailable(currentUser, selectedDate, selectedTime, count, prefs);
+            if (r != null) {
+                JOptionPane.showMessageDialog(this, "Reserved seats " + r.getSeatsAsList() + " for $" + r.getTotalPrice());
+                refreshGrid();
+            } else {
+                JOptionPane.showMessageDialog(this, "No " + count + " seats together are available.");
+            }
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "Invalid input.");
+        }
+    }
+
+    // Pages through the user's bookings from today on, one dialog per page.
+    private void showMyBookings() {
+        if (currentUser == null || isAdmin) {
+            JOptionPane.showMessageDialog(this, "Please log in first.");
+            return;
+        }
+        LocalDate from = LocalDate.now();
+        LocalTime fromTime = LocalTime.MIN;
+        int skip = 0;
+        while (true) {
+            List<Reservation> page = handler.getReservationsForUser(currentUser, from, fromTime, skip, BOOKINGS_PAGE);
+            if (page.isEmpty()) {
+                JOptionPane.showMessageDialog(this, skip == 0 && from.equals(LocalDate.now()) ? "You have no upcoming bookings." : "No more bookings.");
+                return;
+            }
+            StringBuilder text = new StringBuilder();
+            for (Reservation r : page) {
+                text.append(r.getDate()).append(' ').append(r.getTime()).append("  seats ").append(r.getSeatsAsList())
+                        .append("  $").append(r.getTotalPrice()).append('\n');
+            }
+            // next page: from the last one's slot, past the ones of it already shown
+            Reservation last = page.get(page.size() - 1);
+            if (!last.getDate().equals(from) || !last.getTime().equals(fromTime)) skip = 0;
+            from = last.getDate();
+            fromTime = last.getTime();
+            for (Reservation r : page) if (r.getDate().equals(from) && r.getTime().equals(fromTime)) skip++;
+            int opt = JOptionPane.showOptionDialog(this, text.toString(), "My Bookings", JOptionPane.DEFAULT_OPTION,
+                    JOptionPane.PLAIN_MESSAGE, null, new Object[]{"Next page", "Close"}, "Close");
+            if (opt != 0) return;
+        }
+    }
+
+    // The user's own reservation holding the seat in the selected slot, from their bookings that day only.
+    private Reservation findOwnReservation(int seatIndex) {
+        for (Reservation r : handler.getReservationsForUser(currentUser, selectedDate, 1)) {
+            if (!r.getDate().equals(selectedDate)) break;
+            if (r.getTime().equals(selectedTime) && r.containsSeat(seatIndex)) return r;
+        }
+        return null;
+    }
+
     private Reservation findReservationBySeat(int seatIndex) {
         List<Reservation> reservations = handler.getReservationsForSlot(selectedDate, selectedTime);
         for (Reservation r : reservations) {
@@ -323,11 +451,14 @@ public class SeatingChartGUI extends JFrame {
             JButton b = seatButtons[i];
             if (reservedSeats.contains(i)) {
                 b.setBackground(Color.RED);
-                if (isAdmin) b.setText(seatOwners.get(i) + " ($" + handler.getSeatPrice(i) + ")");
-                else b.setText("$" + handler.getSeatPrice(i));
+                if (isAdmin) b.setText(seatOwners.get(i) + " ($" + handler.getSeatPrice(selectedDate, selectedTime, i) + ")");
+                else b.setText("$" + handler.getSeatPrice(selectedDate, selectedTime, i));
+            } else if (handler.isSeatHeld(selectedDate, selectedTime, i)) {
+                b.setBackground(Color.ORANGE);
+                b.setText("$" + handler.getSeatPrice(selectedDate, selectedTime, i));
             } else {
                 b.setBackground(Color.GREEN);
-                b.setText("$" + handler.getSeatPrice(i));
+                b.setText("$" + handler.getSeatPrice(selectedDate, selectedTime, i));
             }
         }
     }
@@ -1,29 +1,89 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.*;
 
 public class Server {
     private static final int PORT = 4242;
-    private final ReservationHandler handler;
+    // "threads" (default): one ClientHandler thread per connection; "virtual": the same on virtual
+    // threads (Java 21+); "nio": selector event loops
+    private static final String MODE = System.getProperty("reservation.server", "threads");
+    private static final int IO_THREADS = Integer.getInteger("reservation.nio.ioThreads", 2);
+    private static final int WORKERS = Integer.getInteger("reservation.nio.workers",
+            Runtime.getRuntime().availableProcessors() * 2);
+    // "shared" (default): one handler for every slot; "sharded": slots split over reservation.shards
+    // single-threaded shards (see ShardedEngine)
+    private static final String ENGINE = System.getProperty("reservation.engine", "shared");
+    // metrics.report() is written here every STATS_INTERVAL seconds; 0 turns it off
+    private static final String STATS_FILE = System.getProperty("reservation.stats.file", "stats.txt");
+    private static final long STATS_INTERVAL = Long.getLong("reservation.stats.intervalSec", 60);
+    private final ReservationHandler handler; // null with the sharded engine
+    private final ShardedEngine engine; // null with the shared one
+    private final Metrics metrics;
+    private final AdmissionControl admission = new AdmissionControl();
     private ServerSocket serverSocket;
     private ExecutorService clientPool;
 
     public Server() {
-        handler = new ReservationHandler();
+        if ("sharded".equalsIgnoreCase(ENGINE)) {
+            handler = null;
+            engine = new ShardedEngine();
+            metrics = engine.getMetrics();
+        } else {
+            handler = new ReservationHandler();
+            engine = null;
+            metrics = handler.getMetrics();
+        }
+        metrics.addSection("admission", admission::toString);
+        if (ClientHandler.getTrace() != null) metrics.addSection("trace", ClientHandler.getTrace()::toString);
     }
 
     public void start() throws IOException {
-        serverSocket = new ServerSocket(PORT);
-        clientPool = Executors.newCachedThreadPool(); // allows multiple clients
+        metrics.dumpEvery(STATS_FILE, STATS_INTERVAL);
+        String shards = engine != null ? ", " + engine.getShardCount() + " shards" : "";
+        if ("nio".equalsIgnoreCase(MODE)) {
+            (engine != null ? new NioServer(PORT, engine, IO_THREADS, WORKERS, admission)
+                    : new NioServer(PORT, handler, IO_THREADS, WORKERS, admission)).start();
+            System.out.println("Server started on port " + PORT + " (nio, " + IO_THREADS + " I/O threads, "
+                    + WORKERS + " workers" + shards + ")");
+            return;
+        }
+        // channel-backed, so binary clients can be served straight from direct buffers
+        serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(PORT)).socket();
+        clientPool = newClientPool(); // allows multiple clients
 
-        System.out.println("Server started on port " + PORT);
+        System.out.println("Server started on port " + PORT + ("virtual".equalsIgnoreCase(MODE) ? " (virtual threads" + shards + ")"
+                : engine != null ? " (" + engine.getShardCount() + " shards)" : ""));
 
         while (true) {
             Socket clientSocket = serverSocket.accept();
-            clientPool.submit(new ClientHandler(clientSocket, handler));
+            AdmissionControl.Client client = admission.connect(clientSocket.getInetAddress());
+            if (client == null) {
+                ClientHandler.refuse(clientSocket); // doesn't wait for the client
+                continue;
+            }
+            clientPool.submit(engine != null ? new ClientHandler(clientSocket, engine, client)
+                    : new ClientHandler(clientSocket, handler, client));
         }
     }
 
+    // Looked up reflectively so the project still builds on Java 17.
+    // Either way there is one thread per admitted connection, so admission's maxConnections bounds the threads.
+    private static ExecutorService newClientPool() {
+        if ("virtual".equalsIgnoreCase(MODE)) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads need Java 21 or later, using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
     public static void main(String[] args) throws IOException {
         new Server().start();
     }
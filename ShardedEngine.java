@@ -0,0 +1,328 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Engine mode that splits the slots across single-threaded shards
+ * (-Dreservation.engine=sharded), so bookings for different showtimes never
+ * meet on a shared map, lock or log. A slot belongs to the shard its
+ * (date, time) hashes to. Each shard has its own ReservationHandler, with
+ * its own database, log and response cache in dataDir/shard-i, and one
+ * thread that runs the shard's requests in the order they were queued.
+ * Only that thread changes the shard, expired holds included.
+ * Request threads hand a request over through the shard's lock-free queue
+ * and wait for the answer. The shard thread only appends its changes to
+ * the log; the log's writer hands the answer over once they are as
+ * durable as reservation.durability asks, so one shard's fsync never
+ * holds up the requests queued behind it.
+ *
+ * What one slot can't answer alone goes through the coordinator, one such
+ * operation at a time:
+ *
+ *   accounts, admin settings   run on every shard, so each knows every user and has the same prices
+ *   a user's bookings          every shard's page, merged
+ *   holds                      the id says which shard holds the seats
+ *
+ * A batch is refused when its showtimes are on different shards: each
+ * shard logs its own part, so a crash between those writes could keep one
+ * part and lose another, and the batch would not be all or nothing. The
+ * slot to shard mapping depends on the shard count, so a data directory
+ * only opens with the count it was written with, and never with the
+ * shared engine's layout.
+ */
+public class ShardedEngine {
+    private static final int SHARDS = Integer.getInteger("reservation.shards", Runtime.getRuntime().availableProcessors());
+    private static final Comparator<Reservation> BY_SLOT = Comparator.comparing(Reservation::getDate).thenComparing(Reservation::getTime);
+
+    private final Shard[] shards;
+    private final Metrics metrics = new Metrics(); // shared by the shards' handlers
+    private final ReentrantLock coordinator = new ReentrantLock();
+
+    public ShardedEngine() {
+        this(SHARDS, System.getProperty("reservation.dataDir", "."));
+    }
+
+    public ShardedEngine(int count, String dataDir) {
+        checkLayout(dataDir, count);
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            File dir = new File(dataDir, "shard-" + i);
+            dir.mkdirs();
+            shards[i] = new Shard(i, new ReservationHandler(dir.getPath(), metrics, false));
+            shards[i].handler.expireHoldsOn(shards[i]::execute);
+        }
+        metrics.addSection("shards", this::describe);
+    }
+
+    // Remembers the shard count in dataDir/shards and refuses to open the data with any other,
+    // or data the shared engine wrote there.
+    private static void checkLayout(String dataDir, int count) {
+        if (count < 1) throw new IllegalArgumentException("Need at least one shard, not " + count);
+        Path layout = Path.of(dataDir, "shards");
+        try {
+            if (Files.exists(layout)) {
+                int written = Integer.parseInt(Files.readString(layout).trim());
+                if (written != count) {
+                    throw new IllegalStateException(dataDir + " holds " + written + " shards, not " + count
+                            + " (set reservation.shards to match)");
+                }
+            } else {
+                if (Files.exists(Path.of(dataDir, "reservations.snapshot")) || Files.exists(Path.of(dataDir, "reservations.log"))) {
+                    throw new IllegalStateException(dataDir + " holds the shared engine's data, not shards"
+                            + " (unset reservation.engine, or use another reservation.dataDir)");
+                }
+                Files.createDirectories(layout.getParent());
+                Files.writeString(layout, count + "\n");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't check the shard layout in " + dataDir, e);
+        }
+    }
+
+    // Closes each shard's handler on its own thread, after what is queued ahead of it, and ends the threads.
+    public void close() {
+        for (Shard shard : shards) shard.close();
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The handler of the shard that owns the slot. Only the shard's own
+     * thread changes anything through it; reads that are safe from any
+     * thread (the response cache, a slot's reservations) may use it directly.
+     */
+    ReservationHandler handlerFor(LocalDate date, LocalTime time) {
+        return shardFor(date, time).handler;
+    }
+
+    int shardOf(LocalDate date, LocalTime time) {
+        // mixed, so one day's showtimes spread over the shards instead of landing next to each other
+        int h = (date.hashCode() * 31 + time.hashCode()) * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
+
+    private Shard shardFor(LocalDate date, LocalTime time) {
+        return shards[shardOf(date, time)];
+    }
+
+    /**
+     * Answers req on the shard that owns it, or through the coordinator.
+     * run does the work against one shard's handler (see ClientHandler) and
+     * is called on that shard's thread.
+     */
+    @SuppressWarnings("unchecked")
+    Response execute(Request req, BiFunction<ReservationHandler, Request, Response> run) {
+        try {
+            Object payload = req.getPayload();
+            switch (req.getAction()) {
+                case "makeReservation", "reserveBestAvailable", "cancelReservation" -> {
+                    Object[] data = (Object[]) payload;
+                    return shardFor((LocalDate) data[1], (LocalTime) data[2]).call(h -> run.apply(h, req));
+                }
+                case "getReservations", "getReservationsSince", "subscribeSlot", "unsubscribeSlot", "cancelAll" -> {
+                    Object[] data = (Object[]) payload;
+                    return shardFor((LocalDate) data[0], (LocalTime) data[1]).call(h -> run.apply(h, req));
+                }
+                case "holdSeats" -> {
+                    Object[] data = (Object[]) payload;
+                    Shard shard = shardFor((LocalDate) data[1], (LocalTime) data[2]);
+                    Response res = shard.call(h -> run.apply(h, req));
+                    if (res.isSuccess()) res.setPayload((Long) res.getPayload() * shards.length + shard.index);
+                    return res;
+                }
+                case "confirmHold", "releaseHold" -> {
+                    Object[] data = (Object[]) payload;
+                    long holdId = (Long) data[1];
+                    Shard shard = shards[(int) Math.floorMod(holdId, (long) shards.length)];
+                    Request local = new Request(req.getAction(), new Object[]{data[0], Math.floorDiv(holdId, (long) shards.length)}, req.getId());
+                    return shard.call(h -> run.apply(h, local));
+                }
+                case "login" -> {
+                    String[] data = (String[]) payload;
+                    return shards[Math.floorMod(data[0].hashCode(), shards.length)].call(h -> run.apply(h, req));
+                }
+                case "createAccount", "setHours", "setSeating", "setSeatPrice" -> {
+                    return everywhere(h -> run.apply(h, req));
+                }
+                case "makeReservationsBatch" -> {
+                    Object[] data = (Object[]) payload;
+                    return batch(req, (List<BatchEntry>) data[1], run);
+                }
+                case "getReservationsForUser" -> {
+                    Object[] data = (Object[]) payload;
+                    return userPage(req, (Integer) data[2], run);
+                }
+                default -> {
+                    // validateAdmin, stats and unknown actions don't touch any slot
+                    return shards[0].call(h -> run.apply(h, req));
+                }
+            }
+        } catch (Exception e) {
+            return new Response(false, "Error: " + e.getMessage(), null);
+        }
+    }
+
+    // Runs task on every shard. One coordinated operation at a time, so every shard sees them in the same order.
+    private Response everywhere(Function<ReservationHandler, Response> task) {
+        coordinator.lock();
+        try {
+            List<CompletableFuture<Response>> answers = new ArrayList<>(shards.length);
+            for (Shard shard : shards) answers.add(shard.submit(task));
+            Response first = null;
+            for (CompletableFuture<Response> answer : answers) {
+                Response res = answer.join();
+                if (first == null) first = res;
+            }
+            return first;
+        } finally {
+            coordinator.unlock();
+        }
+    }
+
+    // Runs on the one shard that owns every entry. Across shards it couldn't be all or nothing once logged.
+    private Response batch(Request req, List<BatchEntry> entries, BiFunction<ReservationHandler, Request, Response> run) {
+        Shard only = entries.isEmpty() ? shards[0] : shardFor(entries.get(0).getDate(), entries.get(0).getTime());
+        for (BatchEntry e : entries) {
+            if (shardFor(e.getDate(), e.getTime()) != only) {
+                return new Response(false, "A batch can't span showtimes on different shards; book them separately", null);
+            }
+        }
+        return only.call(h -> run.apply(h, req));
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        while (latch.getCount() > 0) {
+            try {
+                latch.await();
+            } catch (InterruptedException ignored) {
+                // close returns only once the shard's handler is closed
+            }
+        }
+    }
+
+    // Every shard's page of the user's bookings, merged and cut the way UserIndex.page cuts one.
+    @SuppressWarnings("unchecked")
+    private Response userPage(Request req, int limit, BiFunction<ReservationHandler, Request, Response> run) {
+        List<CompletableFuture<Response>> answers = new ArrayList<>(shards.length);
+        for (Shard shard : shards) answers.add(shard.submit(h -> run.apply(h, req)));
+        List<Reservation> all = new ArrayList<>();
+        for (CompletableFuture<Response> answer : answers) {
+            Response res = answer.join();
+            if (!res.isSuccess()) return res;
+            all.addAll((List<Reservation>) res.getPayload());
+        }
+        // stable, so a slot's bookings (all from one shard) stay in booking order
+        all.sort(BY_SLOT);
+        // each shard's page runs to the end of a day at or past this one, so the day is complete; a shard
+        // that stopped short at MAX_TAIL sent limit + MAX_TAIL up to its cut, so the same cap here stays within it
+        int end = Math.max(0, Math.min(all.size(), Math.min(limit, ReservationHandler.MAX_PAGE)));
+        int cap = (int) Math.min(all.size(), (long) end + UserIndex.MAX_TAIL);
+        while (end > 0 && end < cap && all.get(end).getDate().equals(all.get(end - 1).getDate())) end++;
+        return new Response(true, "Success", new ArrayList<>(all.subList(0, end)));
+    }
+
+    private String describe() {
+        StringBuilder sb = new StringBuilder().append(shards.length).append(", queued");
+        for (Shard shard : shards) sb.append(' ').append(shard.queue.size());
+        sb.append(", holds");
+        for (Shard shard : shards) sb.append(' ').append(shard.handler.getHoldCount());
+        return sb.toString();
+    }
+
+    /** A handler and the one thread that runs its requests, fed through a lock-free queue. */
+    private static final class Shard implements Runnable {
+        final int index;
+        final ReservationHandler handler;
+        private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private volatile boolean idle; // parked or about to park, so a new task has to wake the thread
+        private boolean closed; // only touched by this thread
+
+        Shard(int index, ReservationHandler handler) {
+            this.index = index;
+            this.handler = handler;
+            thread = new Thread(this, "reservation-shard-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Response call(Function<ReservationHandler, Response> task) {
+            return submit(task).join();
+        }
+
+        // Completes once task's changes are durable, from the log's writer thread; this thread goes straight on.
+        <T> CompletableFuture<T> submit(Function<ReservationHandler, T> task) {
+            CompletableFuture<T> answer = new CompletableFuture<>();
+            execute(() -> {
+                T result;
+                try {
+                    result = task.apply(handler);
+                } catch (Throwable e) {
+                    answer.completeExceptionally(e);
+                    return;
+                }
+                handler.whenDurable(error -> {
+                    if (error == null) answer.complete(result);
+                    else answer.completeExceptionally(new UncheckedIOException("Log write failed", error));
+                });
+            });
+            return answer;
+        }
+
+        void execute(Runnable task) {
+            queue.offer(task);
+            if (idle) LockSupport.unpark(thread);
+        }
+
+        void close() {
+            CountDownLatch done = new CountDownLatch(1);
+            execute(() -> {
+                closed = true;
+                try {
+                    handler.close();
+                } finally {
+                    done.countDown();
+                }
+            });
+            awaitUninterruptibly(done);
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                Runnable task = queue.poll();
+                if (task != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable e) {
+                        e.printStackTrace(); // the shard's requests still need this thread
+                    }
+                    continue;
+                }
+                // idle is set before the last look at the queue, so a task offered meanwhile either
+                // shows up here or sees idle and unparks us
+                idle = true;
+                if (queue.isEmpty()) LockSupport.park(this);
+                idle = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,426 @@
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * All reservations booked for a single (date, time) slot.
+ * Every change to a slot happens under its own lock, so bookings for
+ * different slots never wait on each other. Readers don't lock: each
+ * change publishes an immutable Version, which is also the list of the
+ * slot's reservations at that point, and the occupancy is only trusted for
+ * a final decision while the lock is held.
+ *
+ * A change allocates nothing but its Version. Reservations sit in an
+ * append-only array shared by every version: a booking fills the next free
+ * element, and a cancel stamps its element with the version that removed
+ * it instead of copying the array. A version sees the elements below its
+ * size that weren't removed by then. When the array fills, the live
+ * reservations move to a new one, twice their number, so the copying
+ * averages out to a few bytes per change.
+ *
+ * Each Version links to the one before, so a reader that remembers a
+ * number can ask for just the difference (see changesSince). Only the last
+ * CHANGE_LOG links are kept.
+ */
+public class Slot {
+    static final int CHANGE_LOG = 64;
+    // first version number of every slot in this run; later than any number handed out by an earlier run
+    static final long FIRST_VERSION = System.currentTimeMillis() * 1000;
+
+    private final LocalDate date;
+    private final LocalTime time;
+    private volatile Version current = Version.empty(FIRST_VERSION);
+    private final SeatOccupancy occupied; // seats taken by reservations
+    private final UserIndex users; // told about every reservation added or removed; may be null
+    // seats under a temporary hold (see ReservationDatabase.holdSeats); replaced, never modified
+    private volatile SeatBitmap held = new SeatBitmap();
+    private final ReentrantLock lock = new ReentrantLock();
+    // Only used under the lock: the element holding each seat's reservation, plus one (0: none), so a
+    // cancel finds its record without a scan; and the last CHANGE_LOG versions, to cut the chain behind them.
+    private int[] entryOfSeat = new int[64];
+    private final Version[] recent = new Version[CHANGE_LOG];
+
+    public Slot(LocalDate date, LocalTime time) {
+        this(date, time, new HeapOccupancy());
+    }
+
+    public Slot(LocalDate date, LocalTime time, SeatOccupancy occupancy) {
+        this(date, time, occupancy, null);
+    }
+
+    public Slot(LocalDate date, LocalTime time, SeatOccupancy occupancy, UserIndex users) {
+        this.date = date;
+        this.time = time;
+        this.occupied = occupancy;
+        this.users = users;
+    }
+
+    public LocalDate getDate() { return date; }
+    public LocalTime getTime() { return time; }
+
+    // immutable, no copy
+    public List<Reservation> getReservations() { return current; }
+
+    public boolean isEmpty() { return current.isEmpty(); }
+
+    public long getVersion() { return current.number; }
+
+    /**
+     * What changed after version since: UNCHANGED, the reservations added
+     * and removed, or the whole slot if since is older than the change log
+     * (or than the last clear) or wasn't handed out by this slot.
+     */
+    public SlotDelta changesSince(long since) {
+        Version v = current;
+        if (since == v.number) return SlotDelta.unchanged(v.number);
+        if (since < v.oldestDelta || since > v.number) return SlotDelta.full(v.number, v);
+        List<Version> changes = new ArrayList<>();
+        for (Version c = v; c.number > since; c = c.previous) {
+            // a newer change cut the chain here already
+            if (c.previous == null) return SlotDelta.full(v.number, v);
+            changes.add(c);
+        }
+        List<Reservation> added = new ArrayList<>();
+        List<Reservation> removed = new ArrayList<>();
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            Version c = changes.get(i);
+            if (c.added) added.add(c.changed);
+            else if (!added.remove(c.changed)) removed.add(c.changed); // added and removed again: neither
+        }
+        return SlotDelta.delta(v.number, added, removed);
+    }
+
+    public boolean isOccupied(int seat) { return occupied.get(seat); }
+
+    public boolean isHeld(int seat) { return held.get(seat); }
+
+    // True if none of the seats are reserved or held here, or present in locked.
+    public boolean isFree(SeatBitmap seats, SeatBitmap locked) {
+        return !occupied.intersectsAny(seats, locked) && !seats.intersects(held);
+    }
+
+    // The same for a few seats, checked one by one without building a bitmap.
+    public boolean isFree(int[] seats, SeatBitmap locked) {
+        SeatBitmap h = held;
+        for (int s : seats) {
+            if (occupied.get(s) || h.get(s) || locked.get(s)) return false;
+        }
+        return true;
+    }
+
+    void lock() { lock.lock(); }
+    boolean tryLock() { return lock.tryLock(); }
+    void unlock() { lock.unlock(); }
+
+    // Seats 64*i .. 64*i+63 that are taken, held or in excluded, for word-at-a-time searches. Caller holds the lock.
+    long busyWord(int i, SeatBitmap excluded) {
+        return occupied.word(i) | held.word(i) | excluded.word(i);
+    }
+
+    // Whether the occupancy has room for these seat numbers (a mapped one is fixed-size).
+    boolean canHold(int[] seats) { return occupied.canHold(seats); }
+
+    // Check-and-reserve as one step.
+    boolean addIfFree(Reservation r, SeatBitmap locked) {
+        lock.lock();
+        try {
+            if (!isFree(r.seats(), locked) || !canHold(r.seats())) return false;
+            add(r);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Marks free seats as held; caller holds the lock and has checked isFree.
+    void hold(int[] seats) {
+        SeatBitmap next = held.copy();
+        next.setAll(seats);
+        held = next;
+    }
+
+    // Caller holds the lock.
+    void releaseHold(int[] seats) {
+        SeatBitmap next = held.copy();
+        next.clearAll(seats);
+        held = next;
+    }
+
+    void add(Reservation r) {
+        lock.lock();
+        try {
+            Version v = current;
+            Entries e = v.entries;
+            int size = v.size;
+            if (size == e.items.length) {
+                e = compact(v);
+                size = v.live;
+            }
+            e.items[size] = r;
+            e.removedAt[size] = Integer.MAX_VALUE;
+            for (int s : r.seats()) {
+                if (s < 0) continue;
+                if (s >= entryOfSeat.length) entryOfSeat = Arrays.copyOf(entryOfSeat, Math.max(s + 1, entryOfSeat.length * 2));
+                entryOfSeat[s] = size + 1;
+            }
+            publish(new Version(v, true, r, e, size + 1, v.live + 1));
+            occupied.occupy(r.seats(), r.getUser().getUsername());
+            if (users != null) users.add(r);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean remove(Reservation r) {
+        return remove(r.getUser().getUsername(), r.seats()) != null;
+    }
+
+    /** Cancels username's reservation of exactly these seats; returns the stored record, or null if there's none. */
+    Reservation remove(String username, int[] seats) {
+        lock.lock();
+        try {
+            Version v = current;
+            int i = find(v, username, seats);
+            if (i < 0) return null;
+            Reservation stored = v.entries.items[i];
+            removeAt(v, i);
+            return stored;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether username has exactly these seats booked here; log replay asks
+     * before every reserve record. Answered from the seat index: a record
+     * that isn't there has a free seat, so only a record that shares seats
+     * with other bookings is looked for in the whole slot.
+     */
+    boolean contains(String username, int[] seats) {
+        lock.lock();
+        try {
+            Version v = current;
+            for (int s : seats) {
+                if (s < 0 || s >= entryOfSeat.length) continue;
+                int i = entryOfSeat[s] - 1;
+                if (i >= 0 && i < v.size && v.visible(i) && matches(v.entries.items[i], username, seats)) return true;
+            }
+            for (int s : seats) {
+                if (s >= 0 && !occupied.get(s)) return false;
+            }
+            return find(v, username, seats) >= 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Rebuilds the occupancy from the reservation records, dropping any seat no record accounts for.
+    void resyncOccupancy() {
+        lock.lock();
+        try {
+            occupied.clear();
+            for (Reservation r : current) occupied.occupy(r.seats(), r.getUser().getUsername());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean clear() {
+        lock.lock();
+        try {
+            if (current.isEmpty()) return false;
+            if (users != null) {
+                for (Reservation r : current) users.remove(r);
+            }
+            // not logged change by change: readers from before the clear get the (empty) slot instead
+            current = Version.empty(current.number + 1);
+            Arrays.fill(entryOfSeat, 0);
+            Arrays.fill(recent, null);
+            occupied.clear();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Element of username's live reservation of exactly these seats, or -1. Caller holds the lock.
+    private int find(Version v, String username, int[] seats) {
+        if (seats.length > 0 && seats[0] >= 0 && seats[0] < entryOfSeat.length) {
+            int i = entryOfSeat[seats[0]] - 1;
+            if (i >= 0 && i < v.size && v.visible(i) && matches(v.entries.items[i], username, seats)) return i;
+        }
+        // a reservation added without the free check may share seats with another one
+        for (int i = 0; i < v.size; i++) {
+            if (v.visible(i) && matches(v.entries.items[i], username, seats)) return i;
+        }
+        return -1;
+    }
+
+    private static boolean matches(Reservation r, String username, int[] seats) {
+        return r.getUser().getUsername().equals(username) && Arrays.equals(r.seats(), seats);
+    }
+
+    // Caller holds the lock; v is current and element i is live in it.
+    private void removeAt(Version v, int i) {
+        Entries e = v.entries;
+        Reservation stored = e.items[i];
+        // stamped before the version is published; earlier versions still see the element
+        e.removedAt[i] = (int) (v.number + 1 - e.base);
+        for (int s : stored.seats()) {
+            if (s >= 0 && s < entryOfSeat.length && entryOfSeat[s] == i + 1) entryOfSeat[s] = 0;
+        }
+        publish(new Version(v, false, stored, e, v.size, v.live - 1));
+        occupied.release(stored.seats());
+        if (users != null) users.remove(stored);
+    }
+
+    // Moves the live reservations to a new array with room to grow; versions already out keep the old one.
+    private Entries compact(Version v) {
+        Entries next = new Entries(Math.max(16, v.live * 2), v.number);
+        int n = 0;
+        for (int i = 0; i < v.size; i++) {
+            if (!v.visible(i)) continue;
+            Reservation r = v.entries.items[i];
+            next.items[n] = r;
+            next.removedAt[n] = Integer.MAX_VALUE;
+            n++;
+            for (int s : r.seats()) {
+                if (s >= 0 && s < entryOfSeat.length) entryOfSeat[s] = n;
+            }
+        }
+        return next;
+    }
+
+    // Installs the next version; caller holds the lock. Cuts the chain CHANGE_LOG versions back.
+    private void publish(Version next) {
+        int at = (int) Math.floorMod(next.number, (long) CHANGE_LOG);
+        Version old = recent[at];
+        if (old != null) old.previous = null;
+        recent[at] = next;
+        current = next;
+    }
+
+    /** The reservation array versions share; see the class comment. */
+    private static final class Entries {
+        final Reservation[] items;
+        final int[] removedAt; // version that removed each element, less base; MAX_VALUE while it's live
+        final long base;
+
+        Entries(int capacity, long base) {
+            items = new Reservation[capacity];
+            removedAt = new int[capacity];
+            this.base = base;
+        }
+    }
+
+    /**
+     * One state of the slot, and the change that made it. Never modified
+     * (but for previous, which is cut once it's out of the change log);
+     * a change installs a new one.
+     */
+    private static final class Version extends AbstractList<Reservation> implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final long number;
+        final boolean added;         // the change: added or removed changed
+        final Reservation changed;   // null for the first version and after a clear
+        volatile Version previous;
+        final long oldestDelta;      // oldest version changesSince can answer with a delta
+        final Entries entries;
+        final int size;              // elements of entries this version covers
+        final int live;              // of which not removed
+        private volatile Reservation[] dense; // built on the first get(i) when elements were removed
+
+        private Version(long number, long oldestDelta, Entries entries) {
+            this.number = number;
+            this.added = false;
+            this.changed = null;
+            this.oldestDelta = oldestDelta;
+            this.entries = entries;
+            this.size = 0;
+            this.live = 0;
+        }
+
+        Version(Version previous, boolean added, Reservation changed, Entries entries, int size, int live) {
+            this.number = previous.number + 1;
+            this.added = added;
+            this.changed = changed;
+            this.previous = previous;
+            this.oldestDelta = Math.max(previous.oldestDelta, number - CHANGE_LOG);
+            this.entries = entries;
+            this.size = size;
+            this.live = live;
+        }
+
+        static Version empty(long number) {
+            return new Version(number, number, new Entries(16, number));
+        }
+
+        boolean visible(int i) {
+            return entries.removedAt[i] > number - entries.base;
+        }
+
+        @Override
+        public int size() { return live; }
+
+        @Override
+        public Reservation get(int index) {
+            if (index < 0 || index >= live) throw new IndexOutOfBoundsException(index);
+            if (live == size) return entries.items[index];
+            Reservation[] d = dense;
+            if (d == null) {
+                d = new Reservation[live];
+                int n = 0;
+                for (Reservation r : this) d[n++] = r;
+                dense = d;
+            }
+            return d[index];
+        }
+
+        @Override
+        public Iterator<Reservation> iterator() {
+            return new Iterator<>() {
+                private int next = skip(0);
+
+                private int skip(int i) {
+                    while (i < size && !visible(i)) i++;
+                    return i;
+                }
+
+                public boolean hasNext() { return next < size; }
+
+                public Reservation next() {
+                    if (next >= size) throw new NoSuchElementException();
+                    Reservation r = entries.items[next];
+                    next = skip(next + 1);
+                    return r;
+                }
+            };
+        }
+
+        // sent as a plain list
+        private Object writeReplace() {
+            return new ArrayList<>(this);
+        }
+    }
+
+    /** Occupancy kept in an on-heap SeatBitmap. */
+    static class HeapOccupancy implements SeatOccupancy {
+        private final SeatBitmap bits = new SeatBitmap();
+
+        public boolean get(int seat) { return bits.get(seat); }
+        public boolean intersectsAny(SeatBitmap seats, SeatBitmap locked) { return seats.intersectsAny(bits, locked); }
+        public boolean canHold(int[] seats) { return true; }
+        public long word(int i) { return bits.word(i); }
+        public void occupy(int[] seats, String owner) { bits.setAll(seats); }
+        public void release(int[] seats) { bits.clearAll(seats); }
+        public void clear() { bits.clear(); }
+    }
+}
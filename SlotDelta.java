@@ -0,0 +1,59 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Answer to a getReservations that names the last version the client saw
+ * (see Slot.changesSince): nothing changed, the reservations added and
+ * removed since then, or the whole slot when a delta isn't possible.
+ * Either way getVersion() is what to send next time.
+ */
+public class SlotDelta implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Kind { UNCHANGED, DELTA, FULL }
+
+    private Kind kind;
+    private long version;
+    private List<Reservation> added;   // FULL: every reservation in the slot
+    private List<Reservation> removed;
+
+    public SlotDelta(Kind kind, long version, List<Reservation> added, List<Reservation> removed) {
+        this.kind = kind;
+        this.version = version;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    static SlotDelta unchanged(long version) {
+        return new SlotDelta(Kind.UNCHANGED, version, List.of(), List.of());
+    }
+
+    static SlotDelta delta(long version, List<Reservation> added, List<Reservation> removed) {
+        return new SlotDelta(Kind.DELTA, version, added, removed);
+    }
+
+    static SlotDelta full(long version, List<Reservation> reservations) {
+        return new SlotDelta(Kind.FULL, version, reservations, List.of());
+    }
+
+    public Kind getKind() { return kind; }
+    public long getVersion() { return version; }
+    public List<Reservation> getAdded() { return added; }
+    public List<Reservation> getRemoved() { return removed; }
+
+    /** The slot at getVersion(), given the reservations the client held at the version it asked from. */
+    public List<Reservation> applyTo(List<Reservation> held) {
+        if (kind == Kind.UNCHANGED) return held;
+        if (kind == Kind.FULL) return added;
+        List<Reservation> next = new ArrayList<>(held);
+        for (Reservation r : removed) next.remove(r);
+        next.addAll(added);
+        return next;
+    }
+
+    @Override
+    public String toString() {
+        return kind + "@" + version + (kind == Kind.DELTA ? " +" + added.size() + " -" + removed.size() : kind == Kind.FULL ? " " + added.size() : "");
+    }
+}
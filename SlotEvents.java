@@ -0,0 +1,147 @@
+import java.io.Closeable;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Fans seat changes out to the subscribers of each slot.
+ *
+ * publish runs on the thread that made the change, often with the slot
+ * locked, so it never blocks: each subscription has a bounded queue and a
+ * delivery pool drains it into the subscriber's sink. A subscriber more
+ * than QUEUE_CAPACITY events behind loses its queued events and gets a
+ * single RESYNC instead.
+ *
+ * A held subscription queues its events until start(), so a server can
+ * send the slot's current state before the first change it pushes.
+ */
+public class SlotEvents {
+    static final int QUEUE_CAPACITY = Integer.getInteger("reservation.events.queue", 256);
+    static final int DELIVERY_THREADS = Integer.getInteger("reservation.events.threads",
+            Math.max(8, Runtime.getRuntime().availableProcessors() * 2));
+
+    // sinks may block on a slow client's socket; that only holds up this pool, and a subscription
+    // that waits its turn here falls behind into its bounded queue
+    private static final ThreadPoolExecutor DELIVERY = new ThreadPoolExecutor(DELIVERY_THREADS, DELIVERY_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "slot-events");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        DELIVERY.allowCoreThreadTimeOut(true);
+    }
+
+    private final Map<LocalDate, Map<LocalTime, Set<Subscription>>> subscribers = new ConcurrentHashMap<>();
+
+    /** Starts delivering the slot's events to sink, one at a time and in order, until the subscription is closed. */
+    public Subscription subscribe(LocalDate date, LocalTime time, Consumer<SeatEvent> sink) {
+        return subscribe(date, time, sink, false);
+    }
+
+    // held: events queue up from now on but reach sink only after start()
+    public Subscription subscribe(LocalDate date, LocalTime time, Consumer<SeatEvent> sink, boolean held) {
+        Subscription s = new Subscription(date, time, sink, !held);
+        subscribers.computeIfAbsent(date, d -> new ConcurrentHashMap<>())
+                .computeIfAbsent(time, t -> ConcurrentHashMap.newKeySet())
+                .add(s);
+        return s;
+    }
+
+    public boolean hasSubscribers(LocalDate date, LocalTime time) {
+        Map<LocalTime, Set<Subscription>> day = subscribers.get(date);
+        Set<Subscription> subs = day == null ? null : day.get(time);
+        return subs != null && !subs.isEmpty();
+    }
+
+    // Queues the change for the slot's subscribers; cheap when there are none.
+    public void publish(LocalDate date, LocalTime time, SeatEvent.State state, int[] seats, String owner) {
+        Map<LocalTime, Set<Subscription>> day = subscribers.get(date);
+        Set<Subscription> subs = day == null ? null : day.get(time);
+        if (subs == null || subs.isEmpty()) return;
+        // seats may be a reservation's own array; events get a copy
+        SeatEvent e = new SeatEvent(date, time, state, seats.clone(), owner);
+        for (Subscription s : subs) s.offer(e);
+    }
+
+    // Seat locks apply to every slot, so every subscriber hears about them.
+    public void publishAll(SeatEvent.State state, int[] seats) {
+        for (Map<LocalTime, Set<Subscription>> day : subscribers.values()) {
+            for (Set<Subscription> subs : day.values()) {
+                for (Subscription s : subs) s.offer(new SeatEvent(s.date, s.time, state, seats, null));
+            }
+        }
+    }
+
+    public class Subscription implements Closeable {
+        private final LocalDate date;
+        private final LocalTime time;
+        private final Consumer<SeatEvent> sink;
+        private final ArrayBlockingQueue<SeatEvent> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean overflowed = new AtomicBoolean();
+        private volatile boolean started;
+        private volatile boolean closed;
+
+        private Subscription(LocalDate date, LocalTime time, Consumer<SeatEvent> sink, boolean started) {
+            this.date = date;
+            this.time = time;
+            this.sink = sink;
+            this.started = started;
+        }
+
+        public LocalDate getDate() { return date; }
+        public LocalTime getTime() { return time; }
+
+        private void offer(SeatEvent e) {
+            if (closed) return;
+            if (!queue.offer(e)) overflowed.set(true);
+            if (started && scheduled.compareAndSet(false, true)) DELIVERY.execute(this::drain);
+        }
+
+        /** Lets a held subscription deliver, beginning with what it queued meanwhile. */
+        public void start() {
+            started = true;
+            if (!closed && (!queue.isEmpty() || overflowed.get()) && scheduled.compareAndSet(false, true)) {
+                DELIVERY.execute(this::drain);
+            }
+        }
+
+        // At most one drain per subscription runs at a time, which keeps its events in order.
+        private void drain() {
+            do {
+                try {
+                    if (overflowed.getAndSet(false)) {
+                        queue.clear();
+                        if (!closed) sink.accept(new SeatEvent(date, time, SeatEvent.State.RESYNC, null, null));
+                    }
+                    SeatEvent e;
+                    while (!closed && (e = queue.poll()) != null) sink.accept(e);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    close();
+                }
+                scheduled.set(false);
+                // an event offered after the last poll but before the reset above still needs a drain
+            } while (!closed && (!queue.isEmpty() || overflowed.get()) && scheduled.compareAndSet(false, true));
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            queue.clear();
+            Map<LocalTime, Set<Subscription>> day = subscribers.get(date);
+            Set<Subscription> subs = day == null ? null : day.get(time);
+            if (subs != null) subs.remove(this);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.*;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams a snapshot written by SnapshotWriter, handing each user and
+ * reservation to a Sink as soon as it is decoded.
+ * Unknown record types from newer writers are skipped by their length.
+ */
+public class SnapshotReader implements Closeable {
+
+    public interface Sink {
+        void user(User user);
+        void reservation(Reservation reservation);
+    }
+
+    private final DataInputStream in;
+    private final List<User> users = new ArrayList<>(); // interned ID -> User
+    private int reservations;
+
+    public SnapshotReader(InputStream source) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(source, 1 << 16));
+        if (in.readInt() != SnapshotWriter.MAGIC) throw new IOException("Not a reservation snapshot");
+        short version = in.readShort();
+        if (version > SnapshotWriter.VERSION) throw new IOException("Unsupported snapshot version " + version);
+    }
+
+    // True if the file starts with the snapshot magic number (as opposed to the old serialized .dat files).
+    public static boolean isSnapshot(File f) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            return in.readInt() == SnapshotWriter.MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void read(Sink sink) throws IOException {
+        while (true) {
+            byte type = in.readByte();
+            int length = in.readInt();
+            switch (type) {
+                case SnapshotWriter.END -> {
+                    int userCount = in.readInt();
+                    int reservationCount = in.readInt();
+                    if (userCount != users.size() || reservationCount != reservations) {
+                        throw new IOException("Snapshot record counts don't match");
+                    }
+                    return;
+                }
+                case SnapshotWriter.USER -> {
+                    int id = readVarInt(in);
+                    User u = new User(in.readUTF(), in.readUTF());
+                    u.setAdmin(in.readBoolean());
+                    if (id != users.size()) throw new IOException("Snapshot user IDs out of order");
+                    users.add(u);
+                    sink.user(u);
+                }
+                case SnapshotWriter.RESERVATION -> {
+                    User u = users.get(readVarInt(in));
+                    LocalDate date = LocalDate.ofEpochDay(in.readInt());
+                    LocalTime time = LocalTime.of(0, 0).plusMinutes(in.readShort());
+                    int[] seats = new int[readVarInt(in)];
+                    for (int i = 0; i < seats.length; i++) seats[i] = readVarInt(in);
+                    sink.reservation(new Reservation(u, date, time, seats, in.readDouble()));
+                    reservations++;
+                }
+                default -> in.skipNBytes(length);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the compact binary snapshot of users and reservations.
+ *
+ * Layout: int MAGIC, short VERSION, then records of
+ * [byte type][int payload length][payload], ending with an END record.
+ * Every user is written once and gets a small interned ID; reservations
+ * refer to that ID instead of carrying their own copy of the User. Dates
+ * are epoch days, times are minute of the day and seat arrays are
+ * length-prefixed varints. Records are written as they are handed in, so
+ * nothing has to be collected into a list first.
+ */
+public class SnapshotWriter implements Closeable {
+    static final int MAGIC = 0x52535650; // "RSVP"
+    static final short VERSION = 1;
+
+    static final byte USER = 1;
+    static final byte RESERVATION = 2;
+    static final byte END = 0;
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> userIds = new HashMap<>();
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+    private final DataOutputStream payload = new DataOutputStream(record);
+    private int reservations;
+
+    public SnapshotWriter(OutputStream target) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(target, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+    }
+
+    public void writeUser(User u) throws IOException {
+        if (userIds.containsKey(u.getUsername())) return;
+        int id = userIds.size();
+        userIds.put(u.getUsername(), id);
+        record.reset();
+        writeVarInt(payload, id);
+        payload.writeUTF(u.getUsername());
+        payload.writeUTF(u.getPassword());
+        payload.writeBoolean(u.isAdmin());
+        flushRecord(USER);
+    }
+
+    // The reservation's user must already have been written.
+    public void writeReservation(Reservation r) throws IOException {
+        Integer id = userIds.get(r.getUser().getUsername());
+        if (id == null) throw new IOException("Reservation for unwritten user " + r.getUser().getUsername());
+        record.reset();
+        writeVarInt(payload, id);
+        payload.writeInt((int) r.getDate().toEpochDay());
+        payload.writeShort(r.getTime().getHour() * 60 + r.getTime().getMinute());
+        int[] seats = r.getSeats();
+        writeVarInt(payload, seats.length);
+        for (int s : seats) writeVarInt(payload, s);
+        payload.writeDouble(r.getTotalPrice());
+        flushRecord(RESERVATION);
+        reservations++;
+    }
+
+    public boolean hasUser(String username) {
+        return userIds.containsKey(username);
+    }
+
+    @Override
+    public void close() throws IOException {
+        record.reset();
+        payload.writeInt(userIds.size());
+        payload.writeInt(reservations);
+        flushRecord(END);
+        out.close();
+    }
+
+    private void flushRecord(byte type) throws IOException {
+        out.writeByte(type);
+        out.writeInt(record.size());
+        record.writeTo(out);
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+}
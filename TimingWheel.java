@@ -0,0 +1,122 @@
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel. Each timeout sits in one of a fixed number of
+ * buckets chosen by the tick it is due in, and one thread visits one
+ * bucket per tick, running what is due and keeping what is a lap or more
+ * away. Scheduling and cancelling are O(1) and there is no timer or scan
+ * per timeout, so hundreds of thousands pending cost little more than
+ * their own objects.
+ *
+ * New timeouts go through a lock-free queue that the wheel thread drains
+ * each tick, so only that thread touches the buckets. Timeouts fire up to
+ * one tick late; tasks run on the wheel thread and should be short.
+ */
+public class TimingWheel implements Closeable {
+    private final long tickNanos;
+    private final int mask;
+    private final List<List<Timeout>> buckets;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final long start = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean stopped;
+    private long tick; // wheel thread only
+
+    public TimingWheel(long tickMillis, int wheelSize, String name) {
+        if (Integer.bitCount(wheelSize) != 1) throw new IllegalArgumentException("wheel size must be a power of two");
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        mask = wheelSize - 1;
+        buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) buckets.add(new ArrayList<>());
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /** Runs task on the wheel thread once delayMillis have passed, unless the returned Timeout is cancelled first. */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout t = new Timeout(task, System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        pending.incrementAndGet();
+        added.add(t);
+        return t;
+    }
+
+    // Scheduled and neither run nor cancelled yet (cancelled ones count until the wheel reaches them).
+    public int pending() {
+        return pending.get();
+    }
+
+    @Override
+    public void close() {
+        stopped = true;
+        LockSupport.unpark(worker);
+    }
+
+    private void run() {
+        while (!stopped) {
+            long wait;
+            while (!stopped && (wait = start + (tick + 1) * tickNanos - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+            transferAdded();
+            expire(buckets.get((int) (tick & mask)));
+            tick++;
+        }
+    }
+
+    // A timeout is due in the first tick that ends at or after its deadline.
+    private void transferAdded() {
+        Timeout t;
+        while ((t = added.poll()) != null) {
+            if (t.cancelled) {
+                pending.decrementAndGet();
+                continue;
+            }
+            t.dueTick = Math.max(tick, t.deadline / tickNanos);
+            buckets.get((int) (t.dueTick & mask)).add(t);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            Timeout t = bucket.get(i);
+            if (t.cancelled) {
+                pending.decrementAndGet();
+            } else if (t.dueTick <= tick) {
+                pending.decrementAndGet();
+                try {
+                    t.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            } else {
+                bucket.set(kept++, t); // due on a later lap
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline; // nanos since the wheel started
+        private long dueTick;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // The task won't run if it hasn't started yet; the wheel drops the timeout when it gets to it.
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The JSONL trace format written by TraceRecorder and read by TraceReplay.
+ * One request per line:
+ *
+ *   {"t":1760812345123456,"conn":3,"id":0,"action":"makeReservation",
+ *    "payload":["alice",{"date":"2026-10-19"},{"time":"19:00"},{"list":[4,5]}]}
+ *
+ * t is microseconds since the epoch, conn numbers the client connection and
+ * id is the request's correlation id. Payloads keep their Java types so a
+ * replayed Request is the one recorded: plain JSON for String, Integer,
+ * Double (always written with a '.' or exponent), Boolean and Object[]; a
+ * one-key object for the rest: long, date, time, strings (String[]), list,
+ * prefs (SeatPreferences) and entry (BatchEntry). Anything else is written
+ * as {"unknown": toString()} and can't be replayed.
+ */
+public final class Trace {
+    private Trace() {
+    }
+
+    /** One parsed line. request is null if its payload can't be rebuilt. */
+    public record Entry(long micros, int connection, Request request) {
+    }
+
+    static String toJson(long micros, int connection, Request req) {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("{\"t\":").append(micros).append(",\"conn\":").append(connection).append(",\"id\":").append(req.getId())
+                .append(",\"action\":");
+        string(sb, req.getAction());
+        sb.append(",\"payload\":");
+        value(sb, req.getPayload());
+        return sb.append('}').toString();
+    }
+
+    static Entry parse(String line) {
+        Object parsed = new Parser(line).parse();
+        if (!(parsed instanceof Map<?, ?> m)) throw new IllegalArgumentException("Not a trace record: " + line);
+        long micros = ((Number) m.get("t")).longValue();
+        int connection = ((Number) m.get("conn")).intValue();
+        int id = ((Number) m.get("id")).intValue();
+        Object payload;
+        try {
+            payload = rebuild(m.get("payload"));
+        } catch (IllegalArgumentException unknown) {
+            return new Entry(micros, connection, null);
+        }
+        return new Entry(micros, connection, new Request((String) m.get("action"), payload, id));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void value(StringBuilder sb, Object v) {
+        if (v == null) {
+            sb.append("null");
+        } else if (v instanceof String s) {
+            string(sb, s);
+        } else if (v instanceof Integer || v instanceof Boolean) {
+            sb.append(v);
+        } else if (v instanceof Double d) {
+            sb.append(d.isNaN() || d.isInfinite() ? "null" : d.toString());
+        } else if (v instanceof Long l) {
+            sb.append("{\"long\":").append(l).append('}');
+        } else if (v instanceof LocalDate d) {
+            tagged(sb, "date", d.toString());
+        } else if (v instanceof LocalTime t) {
+            tagged(sb, "time", t.toString());
+        } else if (v instanceof String[] strings) {
+            sb.append("{\"strings\":");
+            array(sb, strings);
+            sb.append('}');
+        } else if (v instanceof int[] ints) {
+            sb.append("{\"ints\":[");
+            for (int i = 0; i < ints.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(ints[i]);
+            }
+            sb.append("]}");
+        } else if (v instanceof Object[] array) {
+            array(sb, array);
+        } else if (v instanceof List<?> list) {
+            sb.append("{\"list\":");
+            array(sb, list.toArray());
+            sb.append('}');
+        } else if (v instanceof SeatPreferences p) {
+            sb.append("{\"prefs\":[").append(p.getMaxSeatPrice()).append(',').append(p.isPreferCentre()).append("]}");
+        } else if (v instanceof BatchEntry e) {
+            sb.append("{\"entry\":");
+            array(sb, new Object[]{e.getDate(), e.getTime(), e.getSeats()});
+            sb.append('}');
+        } else {
+            tagged(sb, "unknown", v.toString());
+        }
+    }
+
+    private static void array(StringBuilder sb, Object[] values) {
+        sb.append('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) sb.append(',');
+            value(sb, values[i]);
+        }
+        sb.append(']');
+    }
+
+    private static void tagged(StringBuilder sb, String tag, String value) {
+        sb.append("{\"").append(tag).append("\":");
+        string(sb, value);
+        sb.append('}');
+    }
+
+    private static void string(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    // Parsed JSON back to the payload types value() wrote.
+    private static Object rebuild(Object json) {
+        if (json instanceof List<?> array) {
+            Object[] out = new Object[array.size()];
+            for (int i = 0; i < out.length; i++) out[i] = rebuild(array.get(i));
+            return out;
+        }
+        if (!(json instanceof Map<?, ?> m)) return json; // String, Integer, Double, Boolean or null
+        if (m.size() != 1) throw new IllegalArgumentException("Unknown payload " + m);
+        Map.Entry<?, ?> tag = m.entrySet().iterator().next();
+        Object v = tag.getValue();
+        return switch ((String) tag.getKey()) {
+            case "long" -> ((Number) v).longValue();
+            case "date" -> LocalDate.parse((String) v);
+            case "time" -> LocalTime.parse((String) v);
+            case "strings" -> ((List<?>) v).toArray(new String[0]);
+            case "ints" -> ((List<?>) v).stream().mapToInt(o -> (Integer) o).toArray();
+            case "list" -> {
+                List<Object> list = new ArrayList<>();
+                for (Object o : (List<?>) v) list.add(rebuild(o));
+                yield list;
+            }
+            case "prefs" -> new SeatPreferences(((Number) ((List<?>) v).get(0)).doubleValue(), (Boolean) ((List<?>) v).get(1));
+            case "entry" -> {
+                Object[] e = (Object[]) rebuild(v);
+                @SuppressWarnings("unchecked")
+                List<Integer> seats = (List<Integer>) e[2];
+                yield new BatchEntry((LocalDate) e[0], (LocalTime) e[1], seats);
+            }
+            default -> throw new IllegalArgumentException("Can't replay " + m);
+        };
+    }
+
+    // Just enough JSON for trace lines: objects become LinkedHashMaps, arrays ArrayLists,
+    // numbers Integer, Long or Double (a '.' or exponent makes it a Double).
+    private static final class Parser {
+        private final String s;
+        private int pos;
+
+        Parser(String s) {
+            this.s = s;
+        }
+
+        Object parse() {
+            Object v = value();
+            skipSpace();
+            if (pos != s.length()) throw error("Trailing characters");
+            return v;
+        }
+
+        private Object value() {
+            skipSpace();
+            if (pos >= s.length()) throw error("Unexpected end");
+            char c = s.charAt(pos);
+            switch (c) {
+                case '{' -> {
+                    pos++;
+                    Map<String, Object> m = new LinkedHashMap<>();
+                    skipSpace();
+                    if (peek('}')) return m;
+                    do {
+                        skipSpace();
+                        String key = string();
+                        skipSpace();
+                        expect(':');
+                        m.put(key, value());
+                        skipSpace();
+                    } while (peek(','));
+                    expect('}');
+                    return m;
+                }
+                case '[' -> {
+                    pos++;
+                    List<Object> list = new ArrayList<>();
+                    skipSpace();
+                    if (peek(']')) return list;
+                    do {
+                        list.add(value());
+                        skipSpace();
+                    } while (peek(','));
+                    expect(']');
+                    return list;
+                }
+                case '"' -> {
+                    return string();
+                }
+                default -> {
+                    if (s.startsWith("null", pos)) {
+                        pos += 4;
+                        return null;
+                    }
+                    if (s.startsWith("true", pos)) {
+                        pos += 4;
+                        return true;
+                    }
+                    if (s.startsWith("false", pos)) {
+                        pos += 5;
+                        return false;
+                    }
+                    return number();
+                }
+            }
+        }
+
+        private Object number() {
+            int start = pos;
+            while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) pos++;
+            String n = s.substring(start, pos);
+            if (n.isEmpty()) throw error("Unexpected character");
+            if (n.indexOf('.') >= 0 || n.indexOf('e') >= 0 || n.indexOf('E') >= 0) return Double.parseDouble(n);
+            long l = Long.parseLong(n);
+            return l == (int) l ? (Object) (int) l : (Object) l;
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (pos >= s.length()) throw error("Unterminated string");
+                char c = s.charAt(pos++);
+                if (c == '"') return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char e = s.charAt(pos++);
+                switch (e) {
+                    case 'n' -> sb.append('\n');
+                    case 'r' -> sb.append('\r');
+                    case 't' -> sb.append('\t');
+                    case 'b' -> sb.append('\b');
+                    case 'f' -> sb.append('\f');
+                    case 'u' -> {
+                        sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                        pos += 4;
+                    }
+                    default -> sb.append(e); // \" \\ \/
+                }
+            }
+        }
+
+        private void skipSpace() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+        }
+
+        private boolean peek(char c) {
+            if (pos < s.length() && s.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!peek(c)) throw error("Expected '" + c + "'");
+        }
+
+        private IllegalArgumentException error(String what) {
+            return new IllegalArgumentException(what + " at " + pos + " in " + s);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records incoming requests to a JSONL trace (see Trace) for TraceReplay.
+ * record() only stamps the request and offers it to a bounded queue; a
+ * background thread turns queued requests into lines and writes them
+ * through a buffer. When the queue is full the request is dropped and
+ * counted, so a slow disk never slows the server down.
+ *
+ * The file rotates once it passes maxBytes: trace.jsonl becomes
+ * trace.jsonl.1, .1 becomes .2 and so on, keeping the last `keep` files.
+ *
+ * Account passwords are not written. Each becomes a stand-in digested with
+ * a salt that lives only as long as this recorder, so a replayed login
+ * still matches its createAccount but the password can't be read back.
+ * Admin keys are written as "(admin key)"; the replay supplies its own.
+ */
+public class TraceRecorder implements Closeable {
+    static final String ADMIN_KEY = "(admin key)";
+
+    private record Pending(long micros, int connection, Request request) {
+    }
+
+    private final File file;
+    private final long maxBytes;
+    private final int keep;
+    private final BlockingQueue<Pending> queue;
+    private final Thread writerThread;
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final byte[] salt = new byte[16];
+    private final long epochMicros = System.currentTimeMillis() * 1000;
+    private final long startNanos = System.nanoTime();
+    private Writer writer;
+    private long written; // bytes in the current file
+    private volatile boolean closed;
+
+    public TraceRecorder(String file, long maxBytes, int keep, int queueSize) throws IOException {
+        this.file = new File(file);
+        this.maxBytes = maxBytes;
+        this.keep = Math.max(1, keep);
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        new SecureRandom().nextBytes(salt);
+        open();
+        writerThread = new Thread(this::drain, "trace-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * The recorder the server runs with: -Dreservation.trace=trace.jsonl turns
+     * recording on (it's off by default), with reservation.trace.maxMB (64)
+     * per file, reservation.trace.files (5) kept and reservation.trace.queue
+     * (65536) requests waiting to be written. Null if off or the file can't
+     * be opened.
+     */
+    static TraceRecorder fromProperties() {
+        String file = System.getProperty("reservation.trace", "");
+        if (file.isEmpty()) return null;
+        try {
+            TraceRecorder trace = new TraceRecorder(file, Long.getLong("reservation.trace.maxMB", 64) << 20,
+                    Integer.getInteger("reservation.trace.files", 5), Integer.getInteger("reservation.trace.queue", 65536));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    trace.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "trace-close"));
+            return trace;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /** Queues req for the trace; false if it had to be dropped. */
+    public boolean record(int connection, Request req) {
+        long micros = epochMicros + (System.nanoTime() - startNanos) / 1000;
+        if (closed || !queue.offer(new Pending(micros, connection, req))) {
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public long getRecorded() { return recorded.sum(); }
+    public long getDropped() { return dropped.sum(); }
+
+    /** Writes what's queued, then stops the writer thread. */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        writerThread.interrupt();
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "recorded=" + recorded.sum() + " dropped=" + dropped.sum() + " file=" + file;
+    }
+
+    private void drain() {
+        List<Pending> batch = new ArrayList<>(1024);
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Pending first = null;
+                try {
+                    first = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // closing: write the rest and stop
+                }
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch, 1023);
+                for (Pending p : batch) write(Trace.toJson(p.micros(), p.connection(), masked(p.request())));
+                recorded.add(batch.size());
+                batch.clear();
+                if (queue.isEmpty()) writer.flush(); // otherwise the buffer fills and flushes itself
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            closed = true;
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void write(String line) throws IOException {
+        if (written >= maxBytes) rotate();
+        writer.write(line);
+        writer.write('\n');
+        written += line.length() + 1; // close enough: trace lines are almost all ASCII
+    }
+
+    private void open() throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 64 * 1024);
+        written = file.length();
+    }
+
+    private void rotate() throws IOException {
+        writer.close();
+        new File(file.getPath() + "." + keep).delete();
+        for (int i = keep - 1; i >= 1; i--) {
+            File older = new File(file.getPath() + "." + i);
+            if (older.exists()) older.renameTo(new File(file.getPath() + "." + (i + 1)));
+        }
+        file.renameTo(new File(file.getPath() + ".1"));
+        open();
+    }
+
+    private Request masked(Request req) {
+        switch (req.getAction()) {
+            case "createAccount", "login" -> {
+                if (req.getPayload() instanceof String[] data && data.length == 2) {
+                    return new Request(req.getAction(), new String[]{data[0], standIn(data[1])}, req.getId());
+                }
+            }
+            case "validateAdmin", "stats" -> {
+                return new Request(req.getAction(), ADMIN_KEY, req.getId());
+            }
+            default -> {
+            }
+        }
+        return req;
+    }
+
+    private String standIn(String password) {
+        if (password == null) return null;
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(salt);
+            byte[] digest = sha.digest(password.getBytes(StandardCharsets.UTF_8));
+            return "pw-" + HexFormat.of().formatHex(digest, 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+    }
+}
@@ -0,0 +1,222 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays traces recorded with -Dreservation.trace (see TraceRecorder)
+ * against a server, speaking the binary protocol. Give the trace files as
+ * arguments, oldest first (trace.jsonl.2 trace.jsonl.1 trace.jsonl), or
+ * none for trace.jsonl. Configured with system properties:
+ *
+ *   replay.host / replay.port   server (localhost:4242)
+ *   replay.speed                1 replays at the recorded pace, 10 ten times faster,
+ *                               max as fast as the server answers (1)
+ *   replay.adminKey             sent where the trace has "(admin key)" (admin123)
+ *
+ * Each recorded connection gets a connection of its own, and its requests
+ * are sent in their recorded order: one at a time, except that pipelined
+ * ones (recorded with an id) don't wait for their answers. Latency is timed
+ * from when a request was due, as in LoadGenerator's open mode, so a slow
+ * answer counts against every request queued behind it (at max speed, from
+ * when it was sent).
+ *
+ * Replay into a fresh server, started in an empty directory or with its own
+ * -Dreservation.dataDir, so the accounts and bookings the trace builds up
+ * start from nothing, as they did when it was recorded. A trace that starts
+ * partway through a server's life can't be replayed exactly: requests that
+ * depend on earlier state show up as failed answers.
+ */
+public class TraceReplay {
+    private static final String HOST = System.getProperty("replay.host", "localhost");
+    private static final int PORT = Integer.getInteger("replay.port", 4242);
+    private static final String SPEED = System.getProperty("replay.speed", "1");
+    private static final String ADMIN_KEY = System.getProperty("replay.adminKey", "admin123");
+    private static final int QUEUE = 1024; // requests read ahead per connection
+
+    private static final Request END = new Request("", null);
+
+    private final double speed; // 0: max
+    private final Map<Integer, Sender> senders = new HashMap<>();
+    private final Map<String, LatencyHistogram> latency = new TreeMap<>();
+    private final LatencyHistogram service = new LatencyHistogram();
+    private final LongAdder ok = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private long skipped; // lines that couldn't be parsed or rebuilt
+    private long requests;
+
+    public TraceReplay(double speed) {
+        this.speed = speed;
+        for (int op = 1; op < WireProtocol.opcodes(); op++) latency.put(WireProtocol.action((byte) op), new LatencyHistogram());
+    }
+
+    // One recorded connection: a client and a thread sending its requests in order.
+    private final class Sender extends Thread {
+        private record Due(long nanos, Request request) {
+        }
+
+        private final BlockingQueue<Due> queue = new ArrayBlockingQueue<>(QUEUE);
+        private final Set<CompletableFuture<?>> pipelined = ConcurrentHashMap.newKeySet(); // not answered yet
+        private ReservationClient client;
+
+        Sender(int connection) {
+            super("replay-" + connection);
+        }
+
+        void send(long due, Request req) throws InterruptedException {
+            queue.put(new Due(due, req));
+        }
+
+        @Override
+        public void run() {
+            try {
+                Due d;
+                while ((d = queue.take()).request() != END) {
+                    long wait = d.nanos() - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                    replay(d);
+                }
+                for (CompletableFuture<?> f : pipelined) f.handle((res, e) -> null).join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        // Pipelined requests (recorded with an id) go out without waiting, as they did when recorded.
+        private void replay(Due d) {
+            Request req = d.request();
+            long sent = System.nanoTime();
+            long due = speed == 0 ? sent : Math.min(d.nanos(), sent); // at max speed nothing is ever late
+            try {
+                if (client == null) client = new ReservationClient(HOST, PORT);
+                if (req.getId() != 0) {
+                    CompletableFuture<Response> f = client.callAsync(req);
+                    pipelined.add(f);
+                    f.whenComplete((res, e) -> {
+                        if (e != null) errors.increment();
+                        else answered(req, res, due, sent);
+                        pipelined.remove(f);
+                    });
+                    return;
+                }
+                answered(req, send(req), due, sent);
+            } catch (IOException e) {
+                errors.increment();
+                close();
+            }
+        }
+
+        // Subscriptions go through the client's own methods so pushed events reach its reader thread.
+        private Response send(Request req) throws IOException {
+            if (req.getPayload() instanceof Object[] slot && slot.length == 2
+                    && slot[0] instanceof LocalDate date && slot[1] instanceof LocalTime time) {
+                if (req.getAction().equals("subscribeSlot")) return client.subscribeSlot(date, time, event -> { });
+                if (req.getAction().equals("unsubscribeSlot")) return client.unsubscribeSlot(date, time);
+            }
+            return client.call(req);
+        }
+
+        private void close() {
+            if (client == null) return;
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+            client = null;
+        }
+    }
+
+    private void answered(Request req, Response res, long due, long sent) {
+        long end = System.nanoTime();
+        if (res.getRetryAfterMillis() > 0) busy.increment();
+        else if (res.isSuccess()) ok.increment();
+        else failed.increment();
+        service.record(end - sent);
+        LatencyHistogram h = latency.get(req.getAction());
+        if (h != null) h.record(end - due);
+    }
+
+    public void run(List<Path> files) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long firstMicros = -1;
+        long lastMicros = 0;
+        for (Path file : files) {
+            try (BufferedReader lines = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    if (line.isBlank()) continue;
+                    Trace.Entry e;
+                    try {
+                        e = Trace.parse(line);
+                    } catch (RuntimeException bad) {
+                        skipped++;
+                        continue;
+                    }
+                    Request req = e.request();
+                    if (req == null || WireProtocol.opcode(req.getAction()) == 0) {
+                        skipped++; // not something the binary protocol can send
+                        continue;
+                    }
+                    if (TraceRecorder.ADMIN_KEY.equals(req.getPayload())) {
+                        req = new Request(req.getAction(), ADMIN_KEY, req.getId());
+                    }
+                    if (firstMicros < 0) firstMicros = e.micros();
+                    lastMicros = Math.max(lastMicros, e.micros());
+                    long due = speed == 0 ? start : start + (long) ((e.micros() - firstMicros) * 1000 / speed);
+                    Sender sender = senders.get(e.connection());
+                    if (sender == null) {
+                        sender = new Sender(e.connection());
+                        senders.put(e.connection(), sender);
+                        sender.start();
+                    }
+                    sender.send(due, req);
+                    requests++;
+                }
+            }
+        }
+        for (Sender s : senders.values()) s.send(0, END);
+        for (Sender s : senders.values()) s.join();
+        report(firstMicros < 0 ? 0 : lastMicros - firstMicros, System.nanoTime() - start);
+    }
+
+    private void report(long tracedMicros, long tookNanos) {
+        System.out.printf(Locale.ROOT, "replayed %d requests on %d connections (%d skipped) at %s speed%n",
+                requests, senders.size(), skipped, speed == 0 ? "max" : speed + "x");
+        System.out.printf(Locale.ROOT, "recorded over %.1f s, replayed in %.1f s: %.1f req/s%n",
+                tracedMicros / 1e6, tookNanos / 1e9, requests / Math.max(tookNanos / 1e9, 1e-9));
+        System.out.printf(Locale.ROOT, "%d ok, %d failed answers, %d busy, %d errors%n", ok.sum(), failed.sum(), busy.sum(), errors.sum());
+        System.out.println(speed == 0 ? "latency:" : "latency (from when each request was due):");
+        for (Map.Entry<String, LatencyHistogram> e : latency.entrySet()) {
+            if (e.getValue().getCount() > 0) System.out.printf(Locale.ROOT, "  %-24s %s%n", e.getKey(), e.getValue());
+        }
+        System.out.printf(Locale.ROOT, "service time (from send): %s%n", service);
+        if (busy.sum() > 0) System.out.println("the server shed load; start it with -Dreservation.rateLimit=0 to replay everything");
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<Path> files = new ArrayList<>();
+        for (String a : args) files.add(Path.of(a));
+        if (files.isEmpty()) files.add(Path.of("trace.jsonl"));
+        new TraceReplay("max".equalsIgnoreCase(SPEED) ? 0 : Double.parseDouble(SPEED)).run(files);
+    }
+}
@@ -0,0 +1,161 @@
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Every user's reservations, ordered by date and time, so a user's own
+ * bookings are found without looking at anyone else's. Slots keep it up to
+ * date as they change (see Slot), while holding their own lock; a user's
+ * list has a lock of its own since one user may book in several slots at
+ * once. That lock is a ReentrantLock, not a monitor, since slots update
+ * the index on the booking path and virtual threads mustn't pin there.
+ *
+ * A change costs a binary search and a shift within that one user's
+ * array, so it is proportional to the user's bookings, not everybody's.
+ */
+public class UserIndex {
+    static final int MAX_TAIL = 1000; // reservations a page may run past its limit to finish its last day
+
+    private final ConcurrentHashMap<String, Bookings> byUser = new ConcurrentHashMap<>();
+
+    void add(Reservation r) {
+        // inserted inside compute, so drop can't take the list away between finding it and inserting
+        byUser.compute(r.getUser().getUsername(), (u, b) -> {
+            if (b == null) b = new Bookings();
+            b.lock.lock();
+            try {
+                b.insert(r);
+            } finally {
+                b.lock.unlock();
+            }
+            return b;
+        });
+    }
+
+    // r must be the stored record (the one passed to add), not just an equal one
+    void remove(Reservation r) {
+        Bookings b = byUser.get(r.getUser().getUsername());
+        if (b == null) return;
+        b.lock.lock();
+        try {
+            b.delete(r);
+        } finally {
+            b.lock.unlock();
+        }
+    }
+
+    // Drops a deleted user's list and returns what was in it; anything booked for them later starts a new one.
+    List<Reservation> drop(String username) {
+        Bookings b = byUser.remove(username);
+        if (b == null) return List.of();
+        b.lock.lock();
+        try {
+            return new ArrayList<>(Arrays.asList(b.items).subList(0, b.size));
+        } finally {
+            b.lock.unlock();
+        }
+    }
+
+    public int count(String username) {
+        Bookings b = byUser.get(username);
+        if (b == null) return 0;
+        b.lock.lock();
+        try {
+            return b.size;
+        } finally {
+            b.lock.unlock();
+        }
+    }
+
+    /** All of username's reservations, in date and time order. */
+    public List<Reservation> all(String username) {
+        return page(username, LocalDate.MIN, Integer.MAX_VALUE);
+    }
+
+    /** The page from the start of the date from on; see the cursor version. */
+    public List<Reservation> page(String username, LocalDate from, int limit) {
+        return page(username, from, LocalTime.MIN, 0, limit);
+    }
+
+    /**
+     * username's reservations from the cursor (date, time, skip) on, in
+     * date and time order: those at exactly date and time but the first
+     * skip of them (in booking order), then everything later. A page holds
+     * at least limit of them if there are that many, and then the rest of
+     * the last day, but at most MAX_TAIL more. The next page starts at the
+     * last reservation's date and time, skipping as many there as this and
+     * earlier pages returned; if the page ended on a whole day, the day
+     * after works as well.
+     */
+    public List<Reservation> page(String username, LocalDate date, LocalTime time, int skip, int limit) {
+        Bookings b = byUser.get(username);
+        if (b == null || limit <= 0) return List.of();
+        b.lock.lock();
+        try {
+            int start = (int) Math.min(b.after(date, time), (long) b.first(date, time) + Math.max(skip, 0));
+            int end = (int) Math.min(b.size, (long) start + limit);
+            int cap = (int) Math.min(b.size, (long) end + MAX_TAIL);
+            while (end > start && end < cap && b.items[end].getDate().equals(b.items[end - 1].getDate())) end++;
+            return new ArrayList<>(Arrays.asList(b.items).subList(start, end));
+        } finally {
+            b.lock.unlock();
+        }
+    }
+
+    /** One user's reservations, sorted by (date, time), then in the order they were booked. */
+    private static final class Bookings {
+        final ReentrantLock lock = new ReentrantLock();
+        Reservation[] items = new Reservation[4];
+        int size;
+
+        void insert(Reservation r) {
+            // after any at the same date and time, so a slot's bookings stay in booking order
+            int at = after(r.getDate(), r.getTime());
+            if (size == items.length) items = Arrays.copyOf(items, size * 2);
+            System.arraycopy(items, at, items, at + 1, size - at);
+            items[at] = r;
+            size++;
+        }
+
+        void delete(Reservation r) {
+            // newest first: a cancel is most often of a recent booking
+            for (int i = after(r.getDate(), r.getTime()) - 1; i >= 0 && compare(items[i], r.getDate(), r.getTime()) == 0; i--) {
+                if (items[i] != r) continue;
+                System.arraycopy(items, i + 1, items, i, size - i - 1);
+                items[--size] = null;
+                return;
+            }
+        }
+
+        // index of the first reservation at or after (date, time)
+        private int first(LocalDate date, LocalTime time) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(items[mid], date, time) < 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        // index of the first reservation after (date, time)
+        private int after(LocalDate date, LocalTime time) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(items[mid], date, time) <= 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        private static int compare(Reservation r, LocalDate date, LocalTime time) {
+            int c = r.getDate().compareTo(date);
+            return c != 0 ? c : r.getTime().compareTo(time);
+        }
+    }
+}
@@ -0,0 +1,584 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary alternative to the Java object stream protocol.
+ *
+ * A binary client opens with the 4 byte MAGIC, then sends frames of
+ * [int length][body], where length counts the body only. Servers tell the
+ * two protocols apart by the first two bytes: an object stream always
+ * starts with 0xACED. Servers send the 4 byte object stream header
+ * (STREAM_HEADER) as soon as they accept, before they know the protocol,
+ * since object stream clients may wait for it before sending anything;
+ * binary clients skip it.
+ *
+ *   request body   byte opcode, [int id], fields
+ *   response body  byte opcode, [int id], byte success, string message, byte hasPayload, payload,
+ *                  [long retry after millis]
+ *
+ * The id is only present when the opcode's high bit (HAS_ID) is set. A
+ * request with an id may run concurrently with others on the connection
+ * and its response, carrying the same id, may come back out of order.
+ * The retry hint is only present on "server busy" answers; decoders skip
+ * to the end of the frame, so older clients simply don't see it. A
+ * connection the server has no room for gets, after the stream header,
+ * one busy Response serialized as an object stream whatever protocol it
+ * speaks, and is then closed. Clients tell it from a frame by its first
+ * byte, TC_OBJECT (0x73): frames are at most MAX_FRAME long, so theirs is 0.
+ *
+ * Fields: string = unsigned short length + UTF-8, date = int epoch day,
+ * time = int second of day, seats = int count + int per seat, price = double.
+ * getReservations and subscribeSlot answer with an int count, then the
+ * slot's date and time once (if count > 0), then user, seats and price per
+ * reservation. After subscribeSlot the server also sends SEAT_EVENT frames,
+ * with id 0, at any time: byte state, date, time, seats, byte hasOwner, owner.
+ * getReservationsSince (date, time, long version) answers with byte kind,
+ * long version, then the added and the removed reservations as above.
+ * holdSeats (username, date, time, seats, int ttl seconds) answers with the
+ * long hold id that confirmHold and releaseHold (username, long id) take.
+ * reserveBestAvailable (username, date, time, int count, double max seat
+ * price, byte prefer centre) answers with the booked reservation, encoded
+ * as a one-element reservation list. stats (string admin key) answers with
+ * the server's metrics report as a string. getReservationsForUser (username,
+ * date from, int limit, and optionally a cursor's time and int skip) answers
+ * with an int count, then (if count > 0) the user once, then date, time,
+ * seats and price per reservation.
+ *
+ * Frames decode to and from the same Request/Response objects the object
+ * protocol uses, so ClientHandler.handleRequest serves both.
+ */
+public final class WireProtocol {
+    static final int MAGIC = 0x52535642; // "RSVB"
+    static final int STREAM_HEADER = ObjectStreamConstants.STREAM_MAGIC << 16 | ObjectStreamConstants.STREAM_VERSION;
+    static final int MAX_FRAME = 1 << 20;
+    static final int HAS_ID = 0x80;
+
+    static final byte CREATE_ACCOUNT = 1;
+    static final byte LOGIN = 2;
+    static final byte MAKE_RESERVATION = 3;
+    static final byte GET_RESERVATIONS = 4;
+    static final byte CANCEL_RESERVATION = 5;
+    static final byte CANCEL_ALL = 6;
+    static final byte VALIDATE_ADMIN = 7;
+    static final byte SET_HOURS = 8;
+    static final byte SET_SEATING = 9;
+    static final byte SET_SEAT_PRICE = 10;
+    static final byte MAKE_RESERVATIONS_BATCH = 11;
+    static final byte SUBSCRIBE_SLOT = 12;
+    static final byte UNSUBSCRIBE_SLOT = 13;
+    static final byte SEAT_EVENT = 14; // server to client only
+    static final byte GET_RESERVATIONS_SINCE = 15;
+    static final byte HOLD_SEATS = 16;
+    static final byte CONFIRM_HOLD = 17;
+    static final byte RELEASE_HOLD = 18;
+    static final byte RESERVE_BEST_AVAILABLE = 19;
+    static final byte STATS = 20;
+    static final byte GET_USER_RESERVATIONS = 21;
+
+    // opcode -> action name used by handleRequest
+    private static final String[] ACTIONS = {
+            null, "createAccount", "login", "makeReservation", "getReservations", "cancelReservation",
+            "cancelAll", "validateAdmin", "setHours", "setSeating", "setSeatPrice", "makeReservationsBatch",
+            "subscribeSlot", "unsubscribeSlot", "seatEvent", "getReservationsSince", "holdSeats", "confirmHold",
+            "releaseHold", "reserveBestAvailable", "stats", "getReservationsForUser"
+    };
+
+    // per-thread response buffer, so concurrent requests on one connection don't share one
+    private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(16 * 1024));
+
+    private WireProtocol() {
+    }
+
+    // 0 for an action the binary protocol doesn't carry
+    static byte opcode(String action) {
+        for (int i = 1; i < ACTIONS.length; i++) {
+            if (ACTIONS[i].equals(action)) return (byte) i;
+        }
+        return 0;
+    }
+
+    // opcodes run 0 (none) .. opcodes() - 1
+    static int opcodes() {
+        return ACTIONS.length;
+    }
+
+    static String action(byte opcode) {
+        return opcode > 0 && opcode < ACTIONS.length ? ACTIONS[opcode] : "opcode " + opcode;
+    }
+
+    /** True if a connection starting with these two bytes speaks the Java object stream protocol. */
+    static boolean isObjectStream(int b0, int b1) {
+        return (b0 & 0xFF) == 0xAC && (b1 & 0xFF) == 0xED;
+    }
+
+    /**
+     * Length of the frame at the buffer's position if all of it has arrived,
+     * else -1. Throws if the length prefix is out of range.
+     */
+    static int completeFrame(ByteBuffer in) {
+        if (in.remaining() < 4) return -1;
+        int len = in.getInt(in.position());
+        if (len <= 0 || len > MAX_FRAME) throw new IllegalStateException("Bad frame length " + len);
+        return in.remaining() >= 4 + len ? len : -1;
+    }
+
+    /**
+     * Blocking read of the next frame. buf is in read mode and may already
+     * hold part of it; returns the buffer to keep using (a larger one if the
+     * frame didn't fit), positioned at a complete frame.
+     */
+    static ByteBuffer readFrame(ReadableByteChannel ch, ByteBuffer buf) throws IOException {
+        while (completeFrame(buf) < 0) {
+            int need = buf.remaining() >= 4 ? 4 + buf.getInt(buf.position()) : 4;
+            if (need > buf.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocateDirect(need);
+                bigger.put(buf);
+                buf = bigger;
+            } else {
+                buf.compact();
+            }
+            if (ch.read(buf) < 0) throw new EOFException();
+            buf.flip();
+        }
+        return buf;
+    }
+
+    // Requests (client encodes, server decodes)
+
+    /** Encodes req as one frame at out's position, growing the buffer if needed; returns the buffer used. */
+    static ByteBuffer encodeRequest(ByteBuffer out, Request req) {
+        while (true) {
+            int start = out.position();
+            try {
+                out.putInt(0);
+                writeRequestBody(out, req);
+                out.putInt(start, out.position() - start - 4);
+                return out;
+            } catch (BufferOverflowException full) {
+                out.position(start);
+                out = grow(out);
+            }
+        }
+    }
+
+    /** Decodes the complete frame at in's position (see completeFrame) and moves past it. */
+    static Request decodeRequest(ByteBuffer in) {
+        int len = in.getInt();
+        int end = in.position() + len;
+        byte raw = in.get();
+        byte op = (byte) (raw & ~HAS_ID);
+        int id = (raw & HAS_ID) != 0 ? in.getInt() : 0;
+        Object payload = switch (op) {
+            case CREATE_ACCOUNT, LOGIN -> new String[]{getString(in), getString(in)};
+            case MAKE_RESERVATION, CANCEL_RESERVATION -> new Object[]{getString(in), getDate(in), getTime(in), getSeats(in)};
+            case GET_RESERVATIONS, CANCEL_ALL, SUBSCRIBE_SLOT, UNSUBSCRIBE_SLOT -> new Object[]{getDate(in), getTime(in)};
+            case VALIDATE_ADMIN, STATS -> getString(in);
+            case SET_HOURS -> new Object[]{getTime(in), getTime(in)};
+            case SET_SEATING -> new Object[]{in.getInt(), in.getInt()};
+            case SET_SEAT_PRICE -> new Object[]{in.getInt(), in.getDouble()};
+            case GET_RESERVATIONS_SINCE -> new Object[]{getDate(in), getTime(in), in.getLong()};
+            case HOLD_SEATS -> new Object[]{getString(in), getDate(in), getTime(in), getSeats(in), in.getInt()};
+            case CONFIRM_HOLD, RELEASE_HOLD -> new Object[]{getString(in), in.getLong()};
+            case GET_USER_RESERVATIONS -> {
+                String username = getString(in);
+                LocalDate from = getDate(in);
+                int limit = in.getInt();
+                yield in.position() < end ? new Object[]{username, from, limit, getTime(in), in.getInt()}
+                        : new Object[]{username, from, limit};
+            }
+            case RESERVE_BEST_AVAILABLE -> new Object[]{getString(in), getDate(in), getTime(in), in.getInt(),
+                    new SeatPreferences(in.getDouble(), in.get() != 0)};
+            case MAKE_RESERVATIONS_BATCH -> {
+                String username = getString(in);
+                int n = in.getInt();
+                List<BatchEntry> entries = new ArrayList<>(Math.min(n, 1024));
+                for (int i = 0; i < n; i++) entries.add(new BatchEntry(getDate(in), getTime(in), getSeatList(in)));
+                yield new Object[]{username, entries};
+            }
+            default -> null;
+        };
+        in.position(end); // skips fields a newer client may have appended
+        return new Request(action(op), payload, id);
+    }
+
+    // Responses (server encodes, client decodes)
+
+    static ByteBuffer encodeResponse(ByteBuffer out, byte op, Response res) {
+        while (true) {
+            int start = out.position();
+            try {
+                out.putInt(0);
+                putOpcode(out, op, res.getId());
+                out.put((byte) (res.isSuccess() ? 1 : 0));
+                putString(out, res.getMessage());
+                writeResponsePayload(out, op, res.getPayload());
+                if (res.getRetryAfterMillis() != 0) out.putLong(res.getRetryAfterMillis());
+                out.putInt(start, out.position() - start - 4);
+                return out;
+            } catch (BufferOverflowException full) {
+                out.position(start);
+                out = grow(out);
+            }
+        }
+    }
+
+    /** Encodes res into this thread's scratch buffer and returns it ready to write. */
+    static ByteBuffer encodeResponse(byte op, Response res) {
+        ByteBuffer out = SCRATCH.get();
+        out.clear();
+        out = encodeResponse(out, op, res);
+        SCRATCH.set(out);
+        return out.flip();
+    }
+
+    /**
+     * The part of res's frame after the opcode and id, for ResponseCache:
+     * encodeResponse(op, id, body) turns it back into a frame for any id.
+     */
+    static byte[] encodeResponseBody(byte op, Response res) {
+        ByteBuffer frame = encodeResponse(op, res);
+        int skip = 4 + 1 + (res.getId() != 0 ? 4 : 0);
+        byte[] body = new byte[frame.remaining() - skip];
+        frame.position(frame.position() + skip).get(body);
+        return body;
+    }
+
+    static ByteBuffer encodeResponse(byte op, int id, byte[] body) {
+        ByteBuffer out = SCRATCH.get();
+        if (out.capacity() < 9 + body.length) {
+            out = ByteBuffer.allocateDirect(9 + body.length);
+            SCRATCH.set(out);
+        }
+        out.clear();
+        out.putInt(0);
+        putOpcode(out, op, id);
+        out.put(body);
+        out.putInt(0, out.position() - 4);
+        return out.flip();
+    }
+
+    static Response decodeResponse(ByteBuffer in) {
+        int len = in.getInt();
+        int end = in.position() + len;
+        byte raw = in.get();
+        byte op = (byte) (raw & ~HAS_ID);
+        int id = (raw & HAS_ID) != 0 ? in.getInt() : 0;
+        boolean success = in.get() != 0;
+        String message = getString(in);
+        Object payload = null;
+        if (in.get() != 0) {
+            switch (op) {
+                case MAKE_RESERVATION, MAKE_RESERVATIONS_BATCH, CONFIRM_HOLD -> payload = in.getDouble();
+                case HOLD_SEATS -> payload = in.getLong();
+                case RESERVE_BEST_AVAILABLE -> payload = getReservations(in).get(0);
+                case STATS -> payload = getString(in);
+                case SEAT_EVENT -> {
+                    SeatEvent.State state = SeatEvent.State.values()[in.get()];
+                    LocalDate date = getDate(in);
+                    LocalTime time = getTime(in);
+                    int[] seats = new int[in.getInt()];
+                    for (int i = 0; i < seats.length; i++) seats[i] = in.getInt();
+                    String owner = in.get() != 0 ? getString(in) : null;
+                    payload = new SeatEvent(date, time, state, seats, owner);
+                }
+                case GET_RESERVATIONS, SUBSCRIBE_SLOT -> payload = getReservations(in);
+                case GET_USER_RESERVATIONS -> payload = getUserReservations(in);
+                case GET_RESERVATIONS_SINCE -> {
+                    SlotDelta.Kind kind = SlotDelta.Kind.values()[in.get()];
+                    long version = in.getLong();
+                    payload = new SlotDelta(kind, version, getReservations(in), getReservations(in));
+                }
+                default -> {
+                }
+            }
+        }
+        long retryAfter = !success && payload == null && end - in.position() >= 8 ? in.getLong() : 0;
+        in.position(end);
+        Response res = new Response(success, message, payload);
+        res.setId(id);
+        res.setRetryAfterMillis(retryAfter);
+        return res;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeRequestBody(ByteBuffer out, Request req) {
+        byte op = opcode(req.getAction());
+        if (op == 0) throw new IllegalArgumentException("No opcode for action " + req.getAction());
+        Object p = req.getPayload();
+        putOpcode(out, op, req.getId());
+        switch (op) {
+            case CREATE_ACCOUNT, LOGIN -> {
+                String[] data = (String[]) p;
+                putString(out, data[0]);
+                putString(out, data[1]);
+            }
+            case MAKE_RESERVATION, CANCEL_RESERVATION -> {
+                Object[] data = (Object[]) p;
+                putString(out, (String) data[0]);
+                putDate(out, (LocalDate) data[1]);
+                putTime(out, (LocalTime) data[2]);
+                putSeats(out, data[3]);
+            }
+            case GET_RESERVATIONS, CANCEL_ALL, SUBSCRIBE_SLOT, UNSUBSCRIBE_SLOT -> {
+                Object[] data = (Object[]) p;
+                putDate(out, (LocalDate) data[0]);
+                putTime(out, (LocalTime) data[1]);
+            }
+            case VALIDATE_ADMIN, STATS -> putString(out, (String) p);
+            case SET_HOURS -> {
+                Object[] data = (Object[]) p;
+                putTime(out, (LocalTime) data[0]);
+                putTime(out, (LocalTime) data[1]);
+            }
+            case SET_SEATING -> {
+                Object[] data = (Object[]) p;
+                out.putInt((Integer) data[0]);
+                out.putInt((Integer) data[1]);
+            }
+            case SET_SEAT_PRICE -> {
+                Object[] data = (Object[]) p;
+                out.putInt((Integer) data[0]);
+                out.putDouble((Double) data[1]);
+            }
+            case GET_RESERVATIONS_SINCE -> {
+                Object[] data = (Object[]) p;
+                putDate(out, (LocalDate) data[0]);
+                putTime(out, (LocalTime) data[1]);
+                out.putLong((Long) data[2]);
+            }
+            case HOLD_SEATS -> {
+                Object[] data = (Object[]) p;
+                putString(out, (String) data[0]);
+                putDate(out, (LocalDate) data[1]);
+                putTime(out, (LocalTime) data[2]);
+                putSeats(out, data[3]);
+                out.putInt((Integer) data[4]);
+            }
+            case CONFIRM_HOLD, RELEASE_HOLD -> {
+                Object[] data = (Object[]) p;
+                putString(out, (String) data[0]);
+                out.putLong((Long) data[1]);
+            }
+            case GET_USER_RESERVATIONS -> {
+                Object[] data = (Object[]) p;
+                putString(out, (String) data[0]);
+                putDate(out, (LocalDate) data[1]);
+                out.putInt((Integer) data[2]);
+                if (data.length > 4) {
+                    putTime(out, (LocalTime) data[3]);
+                    out.putInt((Integer) data[4]);
+                }
+            }
+            case RESERVE_BEST_AVAILABLE -> {
+                Object[] data = (Object[]) p;
+                SeatPreferences prefs = data[4] != null ? (SeatPreferences) data[4] : SeatPreferences.ANY;
+                putString(out, (String) data[0]);
+                putDate(out, (LocalDate) data[1]);
+                putTime(out, (LocalTime) data[2]);
+                out.putInt((Integer) data[3]);
+                out.putDouble(prefs.getMaxSeatPrice());
+                out.put((byte) (prefs.isPreferCentre() ? 1 : 0));
+            }
+            case MAKE_RESERVATIONS_BATCH -> {
+                Object[] data = (Object[]) p;
+                List<BatchEntry> entries = (List<BatchEntry>) data[1];
+                putString(out, (String) data[0]);
+                out.putInt(entries.size());
+                for (BatchEntry e : entries) {
+                    putDate(out, e.getDate());
+                    putTime(out, e.getTime());
+                    putSeats(out, e.getSeats());
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeResponsePayload(ByteBuffer out, byte op, Object payload) {
+        if (payload instanceof Double total && (op == MAKE_RESERVATION || op == MAKE_RESERVATIONS_BATCH || op == CONFIRM_HOLD)) {
+            out.put((byte) 1);
+            out.putDouble(total);
+        } else if (payload instanceof Long holdId && op == HOLD_SEATS) {
+            out.put((byte) 1);
+            out.putLong(holdId);
+        } else if (payload instanceof Reservation r && op == RESERVE_BEST_AVAILABLE) {
+            out.put((byte) 1);
+            putReservations(out, List.of(r));
+        } else if (payload instanceof String report && op == STATS) {
+            out.put((byte) 1);
+            putString(out, report);
+        } else if (payload instanceof SeatEvent e && op == SEAT_EVENT) {
+            out.put((byte) 1);
+            out.put((byte) e.getState().ordinal());
+            putDate(out, e.getDate());
+            putTime(out, e.getTime());
+            out.putInt(e.getSeats().length);
+            for (int seat : e.getSeats()) out.putInt(seat);
+            out.put((byte) (e.getOwner() != null ? 1 : 0));
+            if (e.getOwner() != null) putString(out, e.getOwner());
+        } else if (payload instanceof List<?> && (op == GET_RESERVATIONS || op == SUBSCRIBE_SLOT)) {
+            out.put((byte) 1);
+            putReservations(out, (List<Reservation>) payload);
+        } else if (payload instanceof List<?> && op == GET_USER_RESERVATIONS) {
+            out.put((byte) 1);
+            putUserReservations(out, (List<Reservation>) payload);
+        } else if (payload instanceof SlotDelta d && op == GET_RESERVATIONS_SINCE) {
+            out.put((byte) 1);
+            out.put((byte) d.getKind().ordinal());
+            out.putLong(d.getVersion());
+            putReservations(out, d.getAdded());
+            putReservations(out, d.getRemoved());
+        } else {
+            out.put((byte) 0);
+        }
+    }
+
+    // int count, then (only if count > 0) the slot's date and time once, then each reservation
+    private static void putReservations(ByteBuffer out, List<Reservation> list) {
+        int countAt = out.position();
+        out.putInt(0);
+        int n = 0;
+        for (Reservation r : list) {
+            if (n == 0) {
+                putDate(out, r.getDate());
+                putTime(out, r.getTime());
+            }
+            putString(out, r.getUser().getUsername());
+            int[] seats = r.getSeats();
+            out.putInt(seats.length);
+            for (int s : seats) out.putInt(s);
+            out.putDouble(r.getTotalPrice());
+            n++;
+        }
+        out.putInt(countAt, n);
+    }
+
+    private static List<Reservation> getReservations(ByteBuffer in) {
+        int n = in.getInt();
+        List<Reservation> list = new ArrayList<>(Math.max(0, n));
+        LocalDate date = n > 0 ? getDate(in) : null;
+        LocalTime time = n > 0 ? getTime(in) : null;
+        for (int i = 0; i < n; i++) {
+            String user = getString(in);
+            int[] seats = getSeats(in);
+            double price = in.getDouble();
+            list.add(new Reservation(new User(user, ""), date, time, seats, price));
+        }
+        return list;
+    }
+
+    // int count, then (only if count > 0) the user once, then each reservation with its own date and time
+    private static void putUserReservations(ByteBuffer out, List<Reservation> list) {
+        out.putInt(list.size());
+        if (list.isEmpty()) return;
+        putString(out, list.get(0).getUser().getUsername());
+        for (Reservation r : list) {
+            putDate(out, r.getDate());
+            putTime(out, r.getTime());
+            int[] seats = r.getSeats();
+            out.putInt(seats.length);
+            for (int s : seats) out.putInt(s);
+            out.putDouble(r.getTotalPrice());
+        }
+    }
+
+    private static List<Reservation> getUserReservations(ByteBuffer in) {
+        int n = in.getInt();
+        List<Reservation> list = new ArrayList<>(Math.max(0, n));
+        User user = n > 0 ? new User(getString(in), "") : null;
+        for (int i = 0; i < n; i++) {
+            LocalDate date = getDate(in);
+            LocalTime time = getTime(in);
+            int[] seats = getSeats(in);
+            double price = in.getDouble();
+            list.add(new Reservation(user, date, time, seats, price));
+        }
+        return list;
+    }
+
+    private static void putOpcode(ByteBuffer out, byte op, int id) {
+        if (id == 0) {
+            out.put(op);
+        } else {
+            out.put((byte) (op | HAS_ID));
+            out.putInt(id);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer b) {
+        if (b.capacity() >= MAX_FRAME * 2) throw new IllegalStateException("Frame too large");
+        ByteBuffer bigger = ByteBuffer.allocateDirect(b.capacity() * 2);
+        b.flip();
+        bigger.put(b);
+        return bigger;
+    }
+
+    private static void putString(ByteBuffer out, String s) {
+        byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) throw new IllegalArgumentException("String too long");
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putDate(ByteBuffer out, LocalDate d) {
+        out.putInt((int) d.toEpochDay());
+    }
+
+    private static LocalDate getDate(ByteBuffer in) {
+        return LocalDate.ofEpochDay(in.getInt());
+    }
+
+    private static void putTime(ByteBuffer out, LocalTime t) {
+        out.putInt(t.toSecondOfDay());
+    }
+
+    private static LocalTime getTime(ByteBuffer in) {
+        return LocalTime.ofSecondOfDay(in.getInt());
+    }
+
+    // An int[] as decodeRequest makes them, or the List<Integer> object stream clients send.
+    private static void putSeats(ByteBuffer out, Object seats) {
+        if (seats instanceof int[] array) {
+            out.putInt(array.length);
+            for (int s : array) out.putInt(s);
+            return;
+        }
+        List<?> list = (List<?>) seats;
+        out.putInt(list.size());
+        for (Object s : list) out.putInt((Integer) s);
+    }
+
+    // Seat lists decode straight to an int[]; the handler books from it without boxing.
+    private static int[] getSeats(ByteBuffer in) {
+        int n = in.getInt();
+        if (n < 0 || n > in.remaining() / 4) throw new IllegalStateException("Bad seat count " + n);
+        int[] seats = new int[n];
+        for (int i = 0; i < n; i++) seats[i] = in.getInt();
+        return seats;
+    }
+
+    // BatchEntry keeps a List<Integer>: that field is its serialized form, which object stream clients send too.
+    private static List<Integer> getSeatList(ByteBuffer in) {
+        int[] seats = getSeats(in);
+        List<Integer> list = new ArrayList<>(seats.length);
+        for (int s : seats) list.add(s);
+        return list;
+    }
+}
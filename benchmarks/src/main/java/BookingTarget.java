@@ -0,0 +1,72 @@
+import bench.Booking;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/** bench.Booking over a ReservationHandler, called directly as SeatingChartGUI does. */
+public class BookingTarget implements Booking {
+    private static final LocalDate FIRST_DAY = LocalDate.of(2031, 1, 1);
+    private static final LocalTime TIME = LocalTime.of(19, 0);
+    private static final String USER = "bench";
+
+    private ReservationHandler handler;
+    private LocalDate[] days;
+    private int[] free;
+    private int[][] freeArrays; // one single-seat array per free seat, built up front; never changed, so safe to hand over
+
+    @Override
+    public void open(int rows, int cols, int slots, int fillPercent, int seatsPerReservation) {
+        handler = new ReservationHandler();
+        handler.setSeatingArrangement(rows, cols, 10.0);
+        handler.createAccount(USER, "pw");
+        int total = rows * cols;
+        // a fixed scatter of the hall, so booked seats aren't all at the front
+        int[] order = new int[total];
+        for (int i = 0; i < total; i++) order[i] = (int) ((i * 7919L) % total);
+        int booked = total * fillPercent / 100;
+        days = new LocalDate[slots];
+        for (int s = 0; s < slots; s++) {
+            days[s] = FIRST_DAY.plusDays(s);
+            for (int i = 0; i < booked; i += seatsPerReservation) {
+                List<Integer> seats = new ArrayList<>();
+                for (int j = i; j < Math.min(booked, i + seatsPerReservation); j++) seats.add(order[j]);
+                handler.makeReservation(USER, days[s], TIME, seats);
+            }
+        }
+        free = new int[total - booked];
+        freeArrays = new int[free.length][];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = order[booked + i];
+            freeArrays[i] = new int[]{free[i]};
+        }
+    }
+
+    @Override
+    public int freeSeatCount() {
+        return free.length;
+    }
+
+    @Override
+    public int freeSeat(int i) {
+        return free[i];
+    }
+
+    @Override
+    public boolean isSeatAvailable(int slot, int seat) {
+        return handler.isSeatAvailable(days[slot], TIME, seat);
+    }
+
+    @Override
+    public boolean reserveAndCancel(int slot, int freeIndex) {
+        int[] seats = freeArrays[freeIndex];
+        return handler.makeReservation(USER, days[slot], TIME, seats)
+                && handler.cancelReservation(USER, days[slot], TIME, seats);
+    }
+
+    @Override
+    public void close() {
+        for (LocalDate day : days) handler.cancelAllReservations(day, TIME);
+    }
+}
@@ -0,0 +1,107 @@
+import bench.Codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/** bench.Codec over WireProtocol and Java serialization. */
+public class CodecTarget implements Codec {
+    private Request request;
+    private Response response;
+    private ByteBuffer out = ByteBuffer.allocateDirect(16 * 1024);
+    private ByteBuffer requestFrame;
+    private ByteBuffer responseFrame;
+    private byte[] requestBytes;
+    private byte[] responseBytes;
+
+    @Override
+    public void prepare(int reservations) {
+        LocalDate date = LocalDate.of(2031, 1, 1);
+        LocalTime time = LocalTime.of(19, 0);
+        request = new Request("makeReservation", new Object[]{"alice", date, time, new ArrayList<>(List.of(4, 5, 6))});
+        User user = new User("alice", "pw");
+        List<Reservation> list = new ArrayList<>();
+        for (int i = 0; i < reservations; i++) list.add(new Reservation(user, date, time, new int[] {2 * i, 2 * i + 1}, 20.0));
+        response = new Response(true, "Success", list);
+
+        requestFrame = copy(WireProtocol.encodeRequest(ByteBuffer.allocate(256), request));
+        responseFrame = copy(WireProtocol.encodeResponse(ByteBuffer.allocate(256), WireProtocol.GET_RESERVATIONS, response));
+        requestBytes = serialize(request);
+        responseBytes = serialize(response);
+    }
+
+    @Override
+    public Object encodeRequest() {
+        out.clear();
+        out = WireProtocol.encodeRequest(out, request);
+        return out;
+    }
+
+    @Override
+    public Object decodeRequest() {
+        return WireProtocol.decodeRequest(requestFrame.duplicate());
+    }
+
+    @Override
+    public Object encodeResponse() {
+        out.clear();
+        out = WireProtocol.encodeResponse(out, WireProtocol.GET_RESERVATIONS, response);
+        return out;
+    }
+
+    @Override
+    public Object decodeResponse() {
+        return WireProtocol.decodeResponse(responseFrame.duplicate());
+    }
+
+    @Override
+    public Object serializeRequest() {
+        return serialize(request);
+    }
+
+    @Override
+    public Object deserializeRequest() {
+        return deserialize(requestBytes);
+    }
+
+    @Override
+    public Object serializeResponse() {
+        return serialize(response);
+    }
+
+    @Override
+    public Object deserializeResponse() {
+        return deserialize(responseBytes);
+    }
+
+    private static ByteBuffer copy(ByteBuffer written) {
+        written.flip();
+        return ByteBuffer.allocate(written.remaining()).put(written).flip();
+    }
+
+    private static byte[] serialize(Object o) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(o);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
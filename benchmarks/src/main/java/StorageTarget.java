@@ -0,0 +1,53 @@
+import bench.Storage;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+/** bench.Storage over ReservationDatabase's snapshot and log. */
+public class StorageTarget implements Storage {
+    private static final LocalDate FIRST_DAY = LocalDate.of(2031, 1, 1);
+    private static final int PER_SLOT = 40; // two-seat reservations per slot
+    private static final int USERS = 100;
+
+    private ReservationDatabase db;
+    private int slots;
+
+    @Override
+    public void open(int reservations) {
+        db = new ReservationDatabase();
+        User[] users = new User[USERS];
+        for (int i = 0; i < USERS; i++) {
+            users[i] = new User("user" + i, "pw");
+            db.addUser(users[i]);
+        }
+        slots = (reservations + PER_SLOT - 1) / PER_SLOT;
+        for (int n = 0; n < reservations; n++) {
+            int slot = n / PER_SLOT;
+            int j = n % PER_SLOT;
+            db.addReservation(new Reservation(users[n % USERS], day(slot), time(slot), new int[] {2 * j, 2 * j + 1}, 20.0));
+        }
+        db.compact();
+    }
+
+    @Override
+    public void save() {
+        db.compact();
+    }
+
+    @Override
+    public int load() {
+        ReservationDatabase loaded = new ReservationDatabase();
+        int n = 0;
+        for (int s = 0; s < slots; s++) n += loaded.getReservationsForSlot(day(s), time(s)).size();
+        return n;
+    }
+
+    // four evening slots a day
+    private static LocalDate day(int slot) {
+        return FIRST_DAY.plusDays(slot / 4);
+    }
+
+    private static LocalTime time(int slot) {
+        return LocalTime.of(18 + slot % 4, 0);
+    }
+}
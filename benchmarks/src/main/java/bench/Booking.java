@@ -0,0 +1,23 @@
+package bench;
+
+/** The reservation core as the booking benchmarks see it; see BookingTarget. */
+public interface Booking {
+    /**
+     * A fresh ReservationHandler with a rows x cols hall and slots slots,
+     * each booked to fillPercent in reservations of seatsPerReservation
+     * seats, scattered over the hall.
+     */
+    void open(int rows, int cols, int slots, int fillPercent, int seatsPerReservation);
+
+    int freeSeatCount();
+
+    // the i-th seat left free by open, the same in every slot
+    int freeSeat(int i);
+
+    boolean isSeatAvailable(int slot, int seat);
+
+    // books seat in slot for the benchmark user and cancels it again, leaving the slot as it was
+    boolean reserveAndCancel(int slot, int seat);
+
+    void close();
+}
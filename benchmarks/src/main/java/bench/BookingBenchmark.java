@@ -0,0 +1,62 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReservationHandler.isSeatAvailable and makeReservation on one slot of a
+ * 20 x 50 hall, by how full the slot is and how many seats each existing
+ * reservation has (so 90% full in single seats is 900 reservations, in
+ * eights about 113). makeReservation books a free seat and cancels it
+ * again so the fill level holds. The log is asynchronous and never
+ * compacted, so neither the disk nor snapshots are part of the time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dreservation.durability=async", "-Dreservation.compactEvery=2000000000"})
+public class BookingBenchmark {
+    private static final int ROWS = 20;
+    private static final int COLS = 50;
+
+    @Param({"0", "50", "90"})
+    int fillPercent;
+
+    @Param({"1", "8"})
+    int seatsPerReservation;
+
+    private Path dir;
+    private Booking booking;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = Targets.freshDataDir();
+        booking = Targets.load("BookingTarget", Booking.class);
+        booking.open(ROWS, COLS, 1, fillPercent, seatsPerReservation);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        booking.close();
+        Targets.delete(dir);
+    }
+
+    @Benchmark
+    public boolean isSeatAvailable() {
+        int seat = next;
+        if (++next == ROWS * COLS) next = 0;
+        return booking.isSeatAvailable(0, seat);
+    }
+
+    @Benchmark
+    public boolean makeReservation() {
+        int i = next;
+        if (++next >= booking.freeSeatCount()) next = 0;
+        return booking.reserveAndCancel(0, i);
+    }
+}
@@ -0,0 +1,22 @@
+package bench;
+
+/**
+ * Request/Response encoding as the codec benchmarks see it; see CodecTarget.
+ * Each method works on a request or response prepared by prepare, so only
+ * the encoding is measured. Results are returned so JMH keeps them alive.
+ */
+public interface Codec {
+    // a makeReservation request and a getReservations answer holding reservations entries
+    void prepare(int reservations);
+
+    Object encodeRequest();
+    Object decodeRequest();
+    Object encodeResponse();
+    Object decodeResponse();
+
+    // the same two objects through Java serialization, as the object stream protocol sends them
+    Object serializeRequest();
+    Object deserializeRequest();
+    Object serializeResponse();
+    Object deserializeResponse();
+}
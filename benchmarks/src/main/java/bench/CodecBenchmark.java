@@ -0,0 +1,70 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding a makeReservation request and a getReservations
+ * answer, in the binary protocol (WireProtocol) and through Java
+ * serialization (the object stream protocol), by the number of
+ * reservations in the answer. Requests don't depend on it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"1", "40"})
+    int reservations;
+
+    private Codec codec;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        codec = Targets.load("CodecTarget", Codec.class);
+        codec.prepare(reservations);
+    }
+
+    @Benchmark
+    public Object binaryEncodeRequest() {
+        return codec.encodeRequest();
+    }
+
+    @Benchmark
+    public Object binaryDecodeRequest() {
+        return codec.decodeRequest();
+    }
+
+    @Benchmark
+    public Object binaryEncodeResponse() {
+        return codec.encodeResponse();
+    }
+
+    @Benchmark
+    public Object binaryDecodeResponse() {
+        return codec.decodeResponse();
+    }
+
+    @Benchmark
+    public Object serializeRequest() {
+        return codec.serializeRequest();
+    }
+
+    @Benchmark
+    public Object deserializeRequest() {
+        return codec.deserializeRequest();
+    }
+
+    @Benchmark
+    public Object serializeResponse() {
+        return codec.serializeResponse();
+    }
+
+    @Benchmark
+    public Object deserializeResponse() {
+        return codec.deserializeResponse();
+    }
+}
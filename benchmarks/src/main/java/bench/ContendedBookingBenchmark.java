@@ -0,0 +1,69 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Several threads booking and cancelling at once, never the same seat.
+ * "hot": every thread books in one slot, so they queue on its lock.
+ * "cold": each thread has a slot of its own. The gap between the two is
+ * what slot lock contention costs. Run with -t to change the thread count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dreservation.durability=async", "-Dreservation.compactEvery=2000000000"})
+@Threads(4)
+public class ContendedBookingBenchmark {
+    private static final int SLOTS = 64; // cold slots; more threads than this share them
+
+    @Param({"hot", "cold"})
+    String slots;
+
+    private Path dir;
+    private Booking booking;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = Targets.freshDataDir();
+        booking = Targets.load("BookingTarget", Booking.class);
+        booking.open(20, 50, "hot".equals(slots) ? 1 : SLOTS, 50, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        booking.close();
+        Targets.delete(dir);
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+        int slot;
+        int first; // this thread's free seats are first, first + stride, ...
+        int stride;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(ContendedBookingBenchmark b) {
+            int id = b.threads.getAndIncrement();
+            slot = "hot".equals(b.slots) ? 0 : id % SLOTS;
+            stride = 16;
+            first = id % stride;
+            next = first;
+        }
+    }
+
+    @Benchmark
+    public boolean reserveAndCancel(Worker w) {
+        int i = w.next;
+        w.next += w.stride;
+        if (w.next >= booking.freeSeatCount()) w.next = w.first;
+        return booking.reserveAndCancel(w.slot, i);
+    }
+}
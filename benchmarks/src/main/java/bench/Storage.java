@@ -0,0 +1,13 @@
+package bench;
+
+/** ReservationDatabase persistence as the storage benchmarks see it; see StorageTarget. */
+public interface Storage {
+    // a database in the current data directory holding reservations, with a snapshot already written
+    void open(int reservations);
+
+    // writes a snapshot of everything and empties the log
+    void save();
+
+    // a second database loaded from the same files; returns how many reservations it found
+    int load();
+}
@@ -0,0 +1,48 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReservationDatabase persistence by data size: save writes a full
+ * snapshot (what compaction does), load builds a database from it (what a
+ * restart does). Each is one shot per iteration, since a load at 100,000
+ * reservations takes long enough to time on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Dreservation.durability=async", "-Dreservation.compactEvery=2000000000"})
+public class StorageBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int reservations;
+
+    private Path dir;
+    private Storage storage;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = Targets.freshDataDir();
+        storage = Targets.load("StorageTarget", Storage.class);
+        storage.open(reservations);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Targets.delete(dir);
+    }
+
+    @Benchmark
+    public void save() {
+        storage.save();
+    }
+
+    @Benchmark
+    public int load() {
+        return storage.load();
+    }
+}
@@ -0,0 +1,48 @@
+package bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * JMH only accepts benchmarks in a named package, and a named package can't
+ * refer to the reservation classes, which live in the default package. So
+ * each benchmark drives an interface (Booking, Storage, Codec) implemented
+ * by a small default-package class next to them, loaded here by name. The
+ * calls are monomorphic interface calls, which the JIT inlines.
+ */
+final class Targets {
+    private Targets() {
+    }
+
+    static <T> T load(String className, Class<T> type) {
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't load " + className, e);
+        }
+    }
+
+    // A new empty directory for the database files; databases created after this call use it.
+    static Path freshDataDir() {
+        try {
+            Path dir = Files.createTempDirectory("reservation-bench");
+            System.setProperty("reservation.dataDir", dir.toString());
+            return dir;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void delete(Path dir) {
+        if (dir == null) return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}